@@ -0,0 +1,249 @@
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+
+/**
+ * Chooses where to sample next within a survey area, using what the
+ * {@link SensorGrid} has learned so far about one sensor field.
+ * <p/>
+ * Candidate targets lie on a lattice over the bounding box of the survey
+ * area.  Each is scored by the information expected from sampling it: high
+ * where the cell has few readings, and higher still where the field changes
+ * quickly between neighbouring cells.  The score is discounted by the
+ * distance from the vehicle, and the best candidate becomes the next
+ * waypoint.
+ * <p/>
+ * Planning runs on the update loop, so it stops evaluating candidates when
+ * its time budget is spent and returns the best found so far.  Each cycle
+ * starts where the previous one stopped, so every candidate is eventually
+ * considered.
+ */
+public class AdaptiveSampler {
+
+  private static final Logger logger = Logger.getLogger(AdaptiveSampler.class.getName());
+
+  /**
+   * Controller name that starts adaptive sampling over the area spanned by
+   * the given waypoints.
+   */
+  public static final String CONTROLLER = "ADAPTIVE_SAMPLING";
+
+  public static final String TYPE_PREF = "pref_adaptive_type";
+  public static final String INDEX_PREF = "pref_adaptive_index";
+  public static final String SPACING_PREF = "pref_adaptive_spacing_m";
+  public static final String BUDGET_PREF = "pref_adaptive_budget_ms";
+  public static final String GRADIENT_WEIGHT_PREF = "pref_adaptive_gradient_weight";
+  public static final String MAX_WAYPOINTS_PREF = "pref_adaptive_max_waypoints";
+
+  public static final String DEFAULT_TYPE = "HDS_DEPTH";
+  public static final double DEFAULT_SPACING = 10.0;
+  public static final long DEFAULT_BUDGET_MS = 20;
+  public static final double DEFAULT_GRADIENT_WEIGHT = 1.0;
+  public static final int DEFAULT_MAX_WAYPOINTS = 500;
+
+  /**
+   * Largest number of lattice points; the spacing is widened for larger
+   * areas.
+   */
+  public static final int MAX_CANDIDATES = 65536;
+
+  /**
+   * Distance, in lattice spacings, at which travel halves the value of a
+   * target.
+   */
+  public static final double TRAVEL_SCALE = 10.0;
+
+  // Visiting candidates in steps of a large prime spreads a partial cycle
+  // over the whole area.
+  private static final int STRIDE = 7919;
+
+  private final SensorGrid _grid;
+  private final SensorType _type;
+  private final int _index;
+  private final UtmPose[] _survey;
+  private final double _minEasting;
+  private final double _minNorthing;
+  private final int _columns;
+  private final int _rows;
+  private final double _spacing;
+  private final int _zone;
+  private final boolean _isNorth;
+  private final long _budgetNs;
+  private final double _gradientWeight;
+  private final int _maxWaypoints;
+
+  private final boolean[] _visited;
+  private final double[] _stats = new double[2];
+  private int _offset = 0;
+  private int _planned = 0;
+  private double _gradientScale = 0.0;
+
+  // Outcome of the last cycle, for logging.
+  private int _evaluated = 0;
+  private double _bestGain = 0.0;
+
+  public AdaptiveSampler(SensorGrid grid, SensorType type, int index, UtmPose[] survey,
+                         double spacing, long budgetMs, double gradientWeight, int maxWaypoints) {
+    _grid = grid;
+    _type = type;
+    _index = index;
+    _survey = survey.clone();
+    _zone = survey[0].origin.zone;
+    _isNorth = survey[0].origin.isNorth;
+    _budgetNs = budgetMs * 1000000L;
+    _gradientWeight = gradientWeight;
+    _maxWaypoints = maxWaypoints;
+
+    double minE = Double.POSITIVE_INFINITY, minN = Double.POSITIVE_INFINITY;
+    double maxE = Double.NEGATIVE_INFINITY, maxN = Double.NEGATIVE_INFINITY;
+    for (UtmPose corner : survey) {
+      minE = Math.min(minE, corner.pose.getX());
+      maxE = Math.max(maxE, corner.pose.getX());
+      minN = Math.min(minN, corner.pose.getY());
+      maxN = Math.max(maxN, corner.pose.getY());
+    }
+    double width = maxE - minE;
+    double height = maxN - minN;
+    double area = (width / spacing + 1) * (height / spacing + 1);
+    if (area > MAX_CANDIDATES)
+      spacing *= Math.sqrt(area / MAX_CANDIDATES);
+
+    _spacing = spacing;
+    _minEasting = minE;
+    _minNorthing = minN;
+    _columns = (int) (width / spacing) + 1;
+    _rows = (int) (height / spacing) + 1;
+    _visited = new boolean[_columns * _rows];
+  }
+
+  /**
+   * Creates a sampler over the area spanned by some waypoints, configured by
+   * the preferences.
+   */
+  public static AdaptiveSampler fromPrefs(Preferences prefs, SensorGrid grid, UtmPose[] survey) {
+    SensorType type;
+    try {
+      type = SensorType.valueOf(prefs.get(TYPE_PREF, DEFAULT_TYPE).trim().toUpperCase(Locale.US));
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.WARNING, "Unknown adaptive sampling type, using " + DEFAULT_TYPE);
+      type = SensorType.valueOf(DEFAULT_TYPE);
+    }
+    return new AdaptiveSampler(grid, type, prefs.getInt(INDEX_PREF, 0), survey,
+                               prefs.getDouble(SPACING_PREF, DEFAULT_SPACING),
+                               prefs.getLong(BUDGET_PREF, DEFAULT_BUDGET_MS),
+                               prefs.getDouble(GRADIENT_WEIGHT_PREF, DEFAULT_GRADIENT_WEIGHT),
+                               prefs.getInt(MAX_WAYPOINTS_PREF, DEFAULT_MAX_WAYPOINTS));
+  }
+
+  /**
+   * Returns the waypoints that define the survey area.
+   */
+  public UtmPose[] getSurvey() {
+    return _survey.clone();
+  }
+
+  public SensorType getType() {
+    return _type;
+  }
+
+  public int getEvaluated() {
+    return _evaluated;
+  }
+
+  public double getBestGain() {
+    return _bestGain;
+  }
+
+  /**
+   * Chooses the next place to sample.
+   *
+   * @param from the current pose of the vehicle
+   * @return the next waypoint, or null if the survey is complete
+   */
+  public UtmPose next(UtmPose from) {
+    if (_planned >= _maxWaypoints)
+      return null;
+
+    long deadline = System.nanoTime() + _budgetNs;
+    int total = _visited.length;
+    int stride = (total % STRIDE == 0) ? 1 : STRIDE;
+    double x = from.pose.getX();
+    double y = from.pose.getY();
+    boolean sameZone = (from.origin.zone == _zone && from.origin.isNorth == _isNorth);
+
+    int best = -1;
+    double bestUtility = 0.0;
+    _bestGain = 0.0;
+    _evaluated = 0;
+    int k = _offset;
+    while (_evaluated < total) {
+      if ((_evaluated & 63) == 0 && _evaluated > 0 && System.nanoTime() > deadline)
+        break;
+      int candidate = k;
+      k = (int) ((k + (long) stride) % total);
+      _evaluated++;
+      if (_visited[candidate])
+        continue;
+
+      double e = _minEasting + (candidate % _columns) * _spacing;
+      double n = _minNorthing + (candidate / _columns) * _spacing;
+      double distance = sameZone ? Math.hypot(e - x, n - y) : 0.0;
+      if (distance < _spacing / 2) {
+        _visited[candidate] = true;
+        continue;
+      }
+
+      double gain = gain(e, n);
+      double utility = gain / (1.0 + distance / (TRAVEL_SCALE * _spacing));
+      if (utility > bestUtility) {
+        bestUtility = utility;
+        _bestGain = gain;
+        best = candidate;
+      }
+    }
+    _offset = k;
+
+    if (best < 0)
+      return null;
+    _visited[best] = true;
+    _planned++;
+    double e = _minEasting + (best % _columns) * _spacing;
+    double n = _minNorthing + (best / _columns) * _spacing;
+    return new UtmPose(new Pose3D(e, n, 0, 0, 0, 0), new Utm(_zone, _isNorth));
+  }
+
+  // The expected value of sampling at a point: the fewer readings its cell
+  // has, the more there is to learn, and more again where the field changes
+  // quickly.
+  private double gain(double e, double n) {
+    int count = _grid.getCell(_type, _index, e, n, _zone, _isNorth, _stats);
+    double uncertainty = 1.0 / (1.0 + count);
+    double gradient = gradient(e, n);
+    _gradientScale = Math.max(_gradientScale, gradient);
+    double relative = (_gradientScale > 0) ? gradient / _gradientScale : 0.0;
+    return uncertainty * (1.0 + _gradientWeight * relative);
+  }
+
+  // Steepness of the field around a point: the spread of the means of the
+  // sampled lattice points in its 3x3 neighbourhood, per meter.  Unsampled
+  // points next to a front score high, which draws the vehicle across it.
+  private double gradient(double e, double n) {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int dy = -1; dy <= 1; dy++) {
+      for (int dx = -1; dx <= 1; dx++) {
+        if (_grid.getCell(_type, _index, e + dx * _spacing, n + dy * _spacing, _zone, _isNorth, _stats) == 0)
+          continue;
+        min = Math.min(min, _stats[0]);
+        max = Math.max(max, _stats[0]);
+      }
+    }
+    return (max > min) ? (max - min) / (2 * _spacing) : 0.0;
+  }
+}
@@ -38,8 +38,8 @@ public enum AirboatController {
 			VehicleServerImpl server_impl = (VehicleServerImpl) server;
 			
 			// Get the position of the vehicle
-			UtmPose state = server.getPose();
-			Pose3D pose = state.pose;
+			VehicleState state = server_impl.getState();
+			Pose3D pose = state.pose.pose;
 
 			// Get the current waypoint, or return if there are none
 			UtmPose waypoint_UtmPose = server_impl.getCurrentWaypoint();
@@ -95,9 +95,7 @@ public enum AirboatController {
 				buffer[bIndex] = error;
 				
 				// Define PID constants and boundary pos constants
-				double[] rudder_pids = server_impl.getGains(5);
-				
-				double pos = rudder_pids[0]*(angle_between) + rudder_pids[2]*(angle_destination_change - drz) + rudder_pids[1]*bSum;
+				double pos = state.getRudderGain(0)*(angle_between) + state.getRudderGain(2)*(angle_destination_change - drz) + state.getRudderGain(1)*bSum;
 				
 				// Ensure values are within bounds
 				if (pos < -1.0)
@@ -106,8 +104,7 @@ public enum AirboatController {
 					pos = 1.0;
 				
 				// THRUST CONTROL SEGMENT
-				double[] thrust_pids = server_impl.getGains(0);
-				double thrust = 1.0 * thrust_pids[0]; // Use a normalized thrust value of 1.0.
+				double thrust = 1.0 * state.getThrustGain(0); // Use a normalized thrust value of 1.0.
 				
 				// update twist
 				twist.dx(thrust);
@@ -0,0 +1,212 @@
+import com.platypus.crw.data.Twist;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A thrust mixer for an arbitrary arrangement of thrusters, described by a
+ * geometry string rather than code.
+ * <p/>
+ * The geometry is a list of thrusters separated by semicolons.  Positions are
+ * in meters in the body frame (x forward, y to port) and angles in degrees
+ * (counter-clockwise from forward):
+ * <pre>
+ *     fixed   &lt;motor&gt; &lt;x&gt; &lt;y&gt; &lt;angle&gt;
+ *     azimuth &lt;motor&gt; &lt;servo&gt; &lt;x&gt; &lt;y&gt; &lt;max angle&gt;
+ * </pre>
+ * For example, a quad-thruster hull with angled corner thrusters:
+ * <pre>
+ *     fixed m0 0.5 0.3 45; fixed m1 0.5 -0.3 -45; fixed m2 -0.5 0.3 -45; fixed m3 -0.5 -0.3 45
+ * </pre>
+ * and a vectored twin with two steerable drives:
+ * <pre>
+ *     azimuth m0 s0 -0.6 0.25 -45; azimuth m1 s1 -0.6 -0.25 -45
+ * </pre>
+ * A negative max angle reverses the servo direction.
+ * <p/>
+ * The Moore-Penrose pseudo-inverse of the allocation matrix is computed once,
+ * when the mixer is created.  Each tick is then a fixed (2N x 3) matrix-vector
+ * multiply from the [surge, sway, yaw] demand to thruster forces, followed by
+ * the same saturation scaling as {@link VehicleType#scaleDown}.  Each demand
+ * axis is normalized so that a unit demand drives the most loaded thruster to
+ * full output, which makes a two-thruster geometry reproduce the existing
+ * DIFFERENTIAL mixing whenever neither motor saturates.
+ */
+public class AllocationMixer implements ThrustMixer {
+
+  /**
+   * Vehicle type name under which this mixer is selected.
+   */
+  public static final String VEHICLE_TYPE = "CUSTOM";
+
+  /**
+   * Preference holding the thruster geometry for the CUSTOM vehicle type.
+   */
+  public static final String GEOMETRY_PREF = "pref_thruster_geometry";
+
+  // Number of physical thrusters, and how many of them are azimuthing.
+  private final int _numThrusters;
+  private final int _numServos;
+
+  // Per-thruster layout: the first virtual actuator of each thruster, whether
+  // it is azimuthing, and the servo angle that maps to a full deflection.
+  private final int[] _actuator;
+  private final boolean[] _isAzimuth;
+  private final double[] _maxAngle;
+
+  // Output names: motors first, then servos.
+  private final String[] _channels;
+  private final String[] _fields;
+
+  // Pseudo-inverse of the allocation matrix, row-major (actuators x 3).
+  private final int _numActuators;
+  private final double[] _allocation;
+
+  // Scratch space for the actuator forces of the current tick.
+  private final double[] _forces;
+
+  /**
+   * Creates a mixer from a thruster geometry string.
+   *
+   * @throws IllegalArgumentException if the geometry cannot be parsed
+   */
+  public AllocationMixer(String geometry) {
+    List<String[]> thrusters = new ArrayList<String[]>();
+    for (String entry : geometry.split(";")) {
+      if (!entry.trim().isEmpty())
+        thrusters.add(entry.trim().split("\\s+"));
+    }
+    if (thrusters.isEmpty())
+      throw new IllegalArgumentException("Empty thruster geometry");
+
+    _numThrusters = thrusters.size();
+    _actuator = new int[_numThrusters];
+    _isAzimuth = new boolean[_numThrusters];
+    _maxAngle = new double[_numThrusters];
+
+    // Build the allocation matrix, mapping actuator forces to [surge, sway, yaw].
+    List<double[]> columns = new ArrayList<double[]>();
+    List<String> motors = new ArrayList<String>();
+    List<String> servos = new ArrayList<String>();
+    try {
+      for (int i = 0; i < _numThrusters; i++) {
+        String[] t = thrusters.get(i);
+        _actuator[i] = columns.size();
+        if (t[0].equalsIgnoreCase("fixed") && t.length == 5) {
+          double x = Double.parseDouble(t[2]);
+          double y = Double.parseDouble(t[3]);
+          double angle = Math.toRadians(Double.parseDouble(t[4]));
+          double fx = Math.cos(angle);
+          double fy = Math.sin(angle);
+          columns.add(new double[]{fx, fy, x * fy - y * fx});
+          motors.add(t[1]);
+        } else if (t[0].equalsIgnoreCase("azimuth") && t.length == 6) {
+          double x = Double.parseDouble(t[3]);
+          double y = Double.parseDouble(t[4]);
+          // An azimuthing thruster is allocated as independent x and y forces.
+          columns.add(new double[]{1.0, 0.0, -y});
+          columns.add(new double[]{0.0, 1.0, x});
+          _isAzimuth[i] = true;
+          _maxAngle[i] = Math.toRadians(Double.parseDouble(t[5]));
+          if (_maxAngle[i] == 0.0)
+            throw new IllegalArgumentException("Azimuth thruster with zero max angle: " + t[1]);
+          motors.add(t[1]);
+          servos.add(t[2]);
+        } else {
+          throw new IllegalArgumentException("Malformed thruster: " + Arrays.toString(t));
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Malformed thruster geometry: " + geometry, e);
+    }
+
+    _numServos = servos.size();
+    _numActuators = columns.size();
+    _channels = new String[_numThrusters + _numServos];
+    _fields = new String[_numThrusters + _numServos];
+    for (int i = 0; i < _numThrusters; i++) {
+      _channels[i] = motors.get(i);
+      _fields[i] = "v";
+    }
+    for (int i = 0; i < _numServos; i++) {
+      _channels[_numThrusters + i] = servos.get(i);
+      _fields[_numThrusters + i] = "p";
+    }
+
+    RealMatrix B = new Array2DRowRealMatrix(3, _numActuators);
+    for (int k = 0; k < _numActuators; k++)
+      B.setColumn(k, columns.get(k));
+    RealMatrix pinv = new SingularValueDecomposition(B).getSolver().getInverse();
+
+    // Normalize each demand axis so that a unit demand saturates exactly.
+    _allocation = new double[_numActuators * 3];
+    for (int j = 0; j < 3; j++) {
+      double max = 0.0;
+      for (int k = 0; k < _numActuators; k++)
+        max = Math.max(max, Math.abs(pinv.getEntry(k, j)));
+      for (int k = 0; k < _numActuators; k++)
+        _allocation[k * 3 + j] = (max > 1e-9) ? pinv.getEntry(k, j) / max : 0.0;
+    }
+
+    _forces = new double[_numActuators];
+  }
+
+  @Override
+  public int getNumOutputs() {
+    return _channels.length;
+  }
+
+  @Override
+  public String getChannel(int output) {
+    return _channels[output];
+  }
+
+  @Override
+  public String getField(int output) {
+    return _fields[output];
+  }
+
+  @Override
+  public void mix(Twist velocity, double[] thrustGains, double[] outputs) {
+    double surge = VehicleServerImpl.clip(velocity.dx(), -1.0, 1.0);
+    double sway = VehicleServerImpl.clip(velocity.dy(), -1.0, 1.0);
+    double yaw = VehicleServerImpl.clip(velocity.drz(), -1.0, 1.0);
+
+    for (int k = 0; k < _numActuators; k++) {
+      int row = k * 3;
+      _forces[k] = _allocation[row] * surge
+        + _allocation[row + 1] * sway
+        + _allocation[row + 2] * yaw;
+    }
+
+    int servo = _numThrusters;
+    for (int i = 0; i < _numThrusters; i++) {
+      int k = _actuator[i];
+      if (!_isAzimuth[i]) {
+        outputs[i] = _forces[k];
+      } else {
+        double fx = _forces[k];
+        double fy = _forces[k + 1];
+        double magnitude = Math.sqrt(fx * fx + fy * fy);
+
+        // Thrust backwards rather than swinging the drive past 90 degrees.
+        if (fx < 0) {
+          magnitude = -magnitude;
+          fx = -fx;
+          fy = -fy;
+        }
+        double angle = (magnitude == 0.0) ? 0.0 : Math.atan2(fy, fx);
+        outputs[i] = magnitude;
+        outputs[servo++] = VehicleServerImpl.clip(angle / _maxAngle[i], -1.0, 1.0);
+      }
+    }
+
+    // Saturation-aware scaling, applied to motors only.
+    VehicleType.scaleDown(outputs, _numThrusters);
+  }
+}
@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Puts every timestamp of a vehicle on one timeline: the host's monotonic
+ * clock, counted in milliseconds since the epoch.
+ * <p/>
+ * Messages from the eboard and GPS receivers may carry times from their own
+ * clocks, which run with an unknown offset and drift.  For each remote clock
+ * the arrival times of its messages are regressed on their remote times.
+ * The slope estimates the drift, and the offset is taken from the message
+ * that arrived most promptly, since transport only ever delays a message.
+ * A remote time can then be mapped to when it happened on the host.
+ * <p/>
+ * Observations are kept at least {@link #SPACING_MS} apart, so the window
+ * spans about a minute of a clock whatever its message rate.
+ */
+public class ClockSync {
+
+  private static final Logger logger = Logger.getLogger(ClockSync.class.getName());
+
+  /**
+   * Clock of the eboard, for the times of sensor and IMU messages.
+   */
+  public static final String EBOARD = "eboard";
+
+  /**
+   * Clock of the GPS receivers, for the times of their fixes.
+   */
+  public static final String GPS = "gps";
+
+  /**
+   * Number of observations regressed for each clock.
+   */
+  public static final int WINDOW = 128;
+
+  /**
+   * Least interval between observations in the window.
+   */
+  public static final long SPACING_MS = 500;
+
+  /**
+   * Shortest span of observations over which drift is estimated; over a
+   * shorter one the clocks are assumed to run at the same rate.
+   */
+  public static final long MIN_DRIFT_SPAN_MS = 10000;
+
+  /**
+   * Largest drift believed, as a fraction.  Crystal clocks stay well
+   * within this.
+   */
+  public static final double MAX_DRIFT = 0.001;
+
+  /**
+   * Largest error of a mapped time before the remote clock is taken to have
+   * been reset, and its estimate is started over.
+   */
+  public static final long RESET_MS = 2000;
+
+  /**
+   * The estimated relation between a remote clock and the host clock.
+   */
+  public static class Estimate {
+    public final String clock;
+
+    /**
+     * Host time minus remote time, at the latest observation.
+     */
+    public final double offsetMs;
+
+    /**
+     * Rate of the host clock relative to the remote one, minus one, in
+     * parts per million.
+     */
+    public final double driftPpm;
+
+    public final int observations;
+
+    Estimate(String clock, double offsetMs, double driftPpm, int observations) {
+      this.clock = clock;
+      this.offsetMs = offsetMs;
+      this.driftPpm = driftPpm;
+      this.observations = observations;
+    }
+  }
+
+  // Regression of the host time on the time of one remote clock.  Times are
+  // kept relative to the first observation, to keep the sums precise.
+  private static class Regression {
+    final String clock;
+    final double[] remote = new double[WINDOW];
+    final double[] local = new double[WINDOW];
+    int head = 0;
+    int size = 0;
+    long remoteBase;
+    long localBase;
+    double lastRemote = Double.NEGATIVE_INFINITY;
+    long latest;
+
+    double slope = 1.0;
+    double intercept = 0.0;
+
+    Regression(String clock) {
+      this.clock = clock;
+    }
+
+    void reset(long remoteTime, long arrival) {
+      head = 0;
+      size = 0;
+      remoteBase = remoteTime;
+      localBase = arrival;
+      lastRemote = Double.NEGATIVE_INFINITY;
+      latest = remoteTime;
+      slope = 1.0;
+      intercept = 0.0;
+    }
+
+    double map(long remoteTime) {
+      return localBase + intercept + slope * (remoteTime - remoteBase);
+    }
+
+    void observe(long remoteTime, long arrival) {
+      // A repeated or reordered time, e.g. from a receiver that has lost its
+      // fix, says nothing about the clock.
+      if (size > 0 && remoteTime <= latest && latest - remoteTime < RESET_MS)
+        return;
+
+      if (size == 0 || Math.abs(map(remoteTime) - arrival) > RESET_MS) {
+        if (size > 0)
+          logger.log(Level.WARNING, "Clock " + clock + " jumped, restarting its estimate");
+        reset(remoteTime, arrival);
+      }
+
+      latest = remoteTime;
+      double r = remoteTime - remoteBase;
+      double a = arrival - localBase;
+
+      // A message that arrived sooner than predicted moves the offset now.
+      intercept = Math.min(intercept, a - slope * r);
+
+      if (size > 0 && r - lastRemote < SPACING_MS)
+        return;
+      lastRemote = r;
+      int i = (head + size) % WINDOW;
+      if (size == WINDOW)
+        head = (head + 1) % WINDOW;
+      else
+        size++;
+      remote[i] = r;
+      local[i] = a;
+      fit();
+    }
+
+    // Fits the slope by least squares, and the offset to the most prompt
+    // observation.
+    private void fit() {
+      double meanR = 0.0, meanA = 0.0;
+      double minR = Double.POSITIVE_INFINITY, maxR = Double.NEGATIVE_INFINITY;
+      for (int k = 0; k < size; k++) {
+        int i = (head + k) % WINDOW;
+        meanR += remote[i];
+        meanA += local[i];
+        minR = Math.min(minR, remote[i]);
+        maxR = Math.max(maxR, remote[i]);
+      }
+      meanR /= size;
+      meanA /= size;
+
+      slope = 1.0;
+      if (maxR - minR >= MIN_DRIFT_SPAN_MS) {
+        double sxy = 0.0, sxx = 0.0;
+        for (int k = 0; k < size; k++) {
+          int i = (head + k) % WINDOW;
+          sxy += (remote[i] - meanR) * (local[i] - meanA);
+          sxx += (remote[i] - meanR) * (remote[i] - meanR);
+        }
+        slope = Math.max(1.0 - MAX_DRIFT, Math.min(1.0 + MAX_DRIFT, sxy / sxx));
+      }
+
+      intercept = Double.POSITIVE_INFINITY;
+      for (int k = 0; k < size; k++) {
+        int i = (head + k) % WINDOW;
+        intercept = Math.min(intercept, local[i] - slope * remote[i]);
+      }
+    }
+  }
+
+  private final long _epochBase = System.currentTimeMillis();
+  private final long _nanoBase = System.nanoTime();
+  private final ConcurrentMap<String, Regression> _clocks = new ConcurrentHashMap<String, Regression>();
+
+  /**
+   * Returns the current time on the host timeline.  It starts at the wall
+   * clock time but never jumps, even if the wall clock is set.
+   */
+  public long now() {
+    return _epochBase + (System.nanoTime() - _nanoBase) / 1000000L;
+  }
+
+  /**
+   * Learns from a message of a remote clock, and returns when it happened
+   * on the host timeline.
+   *
+   * @param clock      name of the remote clock
+   * @param remoteTime time of the message on the remote clock
+   * @param arrival    time the message arrived, on the host timeline
+   */
+  public long stamp(String clock, long remoteTime, long arrival) {
+    Regression regression = _clocks.get(clock);
+    if (regression == null) {
+      Regression created = new Regression(clock);
+      regression = _clocks.putIfAbsent(clock, created);
+      if (regression == null)
+        regression = created;
+    }
+    synchronized (regression) {
+      regression.observe(remoteTime, arrival);
+      return Math.round(regression.map(remoteTime));
+    }
+  }
+
+  /**
+   * Returns the current estimate for every remote clock heard from.
+   */
+  public List<Estimate> getEstimates() {
+    List<Estimate> estimates = new ArrayList<Estimate>();
+    for (Regression r : _clocks.values()) {
+      synchronized (r) {
+        double remote = r.remoteBase + r.lastRemote;
+        double offset = r.map((long) remote) - remote;
+        estimates.add(new Estimate(r.clock, offset, (r.slope - 1.0) * 1e6, r.size));
+      }
+    }
+    return estimates;
+  }
+}
@@ -0,0 +1,137 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single-writer command queue for vehicle state.
+ * <p/>
+ * Every mutation of the vehicle state is submitted as a {@link Command} and
+ * applied in submission order by a single owner thread, which drains the
+ * queue in batches once per update tick.  Commands submitted from the owner
+ * thread itself (e.g. by a controller running inside the tick) are applied
+ * immediately, which preserves ordering without a round trip through the
+ * queue.
+ * <p/>
+ * Because every mutation passes through {@link #apply}, this is also the
+ * point at which commands can be recorded for later replay.
+ */
+public class CommandQueue {
+
+  private static final Logger logger = Logger.getLogger(CommandQueue.class.getName());
+
+  /**
+   * A single mutation of the vehicle state.
+   */
+  public static abstract class Command {
+    /**
+     * Short name of the command, used in logs and recordings.
+     */
+    public final String name;
+
+    /**
+     * Time at which the command was submitted, in milliseconds.
+     */
+    public final long time = System.currentTimeMillis();
+
+    protected Command(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Applies the command.  Only ever called from the owner thread.
+     */
+    protected abstract void apply();
+
+    /**
+     * Returns a record of the effect of the command on the mission, for
+     * {@link MissionJournal}, or null if the command does not change any
+     * state that should survive a restart.  Called on the owner thread
+     * immediately after the command has been applied.
+     */
+    protected JSONObject encode() throws JSONException {
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * Receives every command after it has been applied.
+   */
+  public interface Recorder {
+    void record(Command command);
+  }
+
+  private final Queue<Command> _queue = new ConcurrentLinkedQueue<Command>();
+  private volatile Thread _owner = null;
+  private volatile Recorder _recorder = null;
+
+  /**
+   * Submits a command to be applied on the owner thread.
+   */
+  public void submit(Command command) {
+    if (Thread.currentThread() == _owner)
+      apply(command);
+    else
+      _queue.add(command);
+  }
+
+  /**
+   * Applies up to a maximum number of pending commands, in order.  The
+   * calling thread becomes the owner of the queue.
+   *
+   * @param max the largest number of commands to apply in this batch
+   * @return the number of commands applied
+   */
+  public int drain(int max) {
+    _owner = Thread.currentThread();
+    int count = 0;
+    Command command;
+    while (count < max && (command = _queue.poll()) != null) {
+      apply(command);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Gives up ownership of the queue at the end of a batch.  This must be
+   * called when the owner runs on a thread pool, since the pool thread may
+   * go on to run unrelated tasks that submit commands.
+   */
+  public void release() {
+    if (_owner == Thread.currentThread())
+      _owner = null;
+  }
+
+  /**
+   * Returns the number of commands waiting to be applied.
+   */
+  public int size() {
+    return _queue.size();
+  }
+
+  public void setRecorder(Recorder recorder) {
+    _recorder = recorder;
+  }
+
+  private void apply(Command command) {
+    try {
+      command.apply();
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to apply command " + command, e);
+      return;
+    }
+
+    Recorder recorder = _recorder;
+    if (recorder != null)
+      recorder.record(command);
+  }
+}
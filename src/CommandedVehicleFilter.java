@@ -0,0 +1,17 @@
+import com.platypus.crw.data.Twist;
+
+/**
+ * A vehicle filter whose motion model is driven by the velocity commanded
+ * to the vehicle.
+ */
+public interface CommandedVehicleFilter extends WeightedVehicleFilter {
+
+	/**
+	 * Sets the commanded velocity, which holds until the next command.
+	 *
+	 * @param velocity the commanded velocity, as given to the thrust mixer:
+	 *                 dx is the thrust fraction and drz the rudder signal
+	 * @param time the time of the command in milliseconds
+	 */
+	void commandUpdate(Twist velocity, long time);
+}
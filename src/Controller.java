@@ -6,7 +6,7 @@ import java.nio.charset.Charset;
 
 import java.util.NoSuchElementException;
 import java.util.Queue;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import gnu.io.CommPort;
 import gnu.io.CommPortIdentifier;
@@ -19,12 +19,14 @@ public class Controller
   private static final int BAUD_RATE = 9600;
 
   private static final int HEART_BEAT_TIMEOUT = 200; //ms
-  private static long last_recv_cmd_t = 0;
+  private volatile long last_recv_cmd_t = 0;
 
   //private static final String PORT_NAME = "/dev/eboard";
   private static final String PORT_NAME = "/dev/ttyUSB6"; //write udev rule to make this always /dev/eboard
 
-  private static Queue<String> messageQueue = new LinkedList<String>();
+  // Each controller has its own port and queue, so several can share a process.
+  private final String portName;
+  private final Queue<String> messageQueue = new ConcurrentLinkedQueue<String>();
 
   SerialPort serialPort;
   Thread inThread;
@@ -32,8 +34,16 @@ public class Controller
   private boolean connected = false;
   private OutputStream out;
   public Controller()  {
+    this(PORT_NAME);
+  }
 
+  public Controller(String portName)  {
+    this.portName = portName;
+  }
 
+  public String getPortName()
+  {
+    return portName;
   }
 
   public void shutdown()
@@ -48,7 +58,7 @@ public class Controller
   {
     CommPortIdentifier portIdentifier = null;
     try {
-      portIdentifier = CommPortIdentifier.getPortIdentifier(PORT_NAME);
+      portIdentifier = CommPortIdentifier.getPortIdentifier(portName);
     }
     catch (Exception e){
       System.err.println("Port not found");
@@ -91,7 +101,7 @@ public class Controller
         try {
           InputStream in = serialPort.getInputStream();
           out = serialPort.getOutputStream();
-          inThread = new Thread(new SerialReader(in));
+          inThread = new Thread(new SerialReader(in), "serial " + portName);
           inThread.start();
         }
         catch(Exception IOException)
@@ -109,8 +119,28 @@ public class Controller
   protected void disconnect()
   {
     connected = false;
-    serialPort.close();
-    inThread.interrupt(); //does this close?
+    if (serialPort != null)
+      serialPort.close();
+    if (inThread != null)
+      inThread.interrupt(); //does this close?
+  }
+
+  /**
+   * Returns the thread currently reading from the serial port, or null if the
+   * port has never been opened.
+   */
+  public Thread getReaderThread()
+  {
+    return inThread;
+  }
+
+  /**
+   * Closes the serial port and opens it again with a fresh reader thread.
+   */
+  public boolean reconnect()
+  {
+    disconnect();
+    return connect();
   }
 
   public boolean isConnected()
@@ -135,13 +165,29 @@ public class Controller
     out.write(string.getBytes(Charset.forName(CHARSET)));
   }
 
+  /**
+   * Returns true if there are received messages waiting to be parsed.
+   */
+  public boolean hasMessages()
+  {
+    return !messageQueue.isEmpty();
+  }
+
+  /**
+   * Queues a line received from the eboard for parsing by {@link #receive()}.
+   */
+  protected void enqueue(String line)
+  {
+    messageQueue.add(line);
+  }
+
   public JSONObject receive() throws IOException, ControllerException, NoSuchElementException
   {
-    if (messageQueue.size() == 0)
+    String line = messageQueue.poll();
+    if (line == null)
     {
       throw new NoSuchElementException();
     }
-    String line = messageQueue.remove();
     try {
       JSONObject response = new JSONObject(line);
       if (response.has("error")) {
@@ -189,7 +235,7 @@ public class Controller
       {
         while ((len = this.in.read(buffer)) > -1)
         {
-          messageQueue.add(new String(buffer,0,len));
+          enqueue(new String(buffer,0,len));
           System.out.print(messageQueue.peek());
           if (last_recv_cmd_t - System.currentTimeMillis() > HEART_BEAT_TIMEOUT)
           {
@@ -0,0 +1,93 @@
+import org.jscience.geography.coordinates.UTM;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The set of crumbs dropped by a single vehicle, with their pairwise
+ * distances and neighbors, used to plan paths back home.
+ */
+
+public class CrumbGraph
+{
+		// Instance fields
+		public Map<Long, Crumb> crumbs_by_index = new HashMap<>();
+		public Map<Long, Double> distance_to_goal = new HashMap<>();
+		public Map<Long, Map<Long, Double>> pairwise_distances = new HashMap<>();
+		public Map<Long, List<Long>> neighbors = new HashMap<>();
+
+		// Instance methods
+		public double distanceBetweenCrumbs(long index_i, long index_j)
+		{
+				UTM location_i = crumbs_by_index.get(index_i).getLocation();
+				UTM location_j = crumbs_by_index.get(index_j).getLocation();
+				return Crumb.distanceBetweenUTM(location_i, location_j);
+		}
+
+		public long newCrumb(UTM _location)
+		{
+				// initialize objects
+				long new_index = crumbs_by_index.size();
+				Crumb new_crumb = new Crumb(new_index, _location);
+				crumbs_by_index.put(new_index, new_crumb);
+				pairwise_distances.put(new_index, new HashMap<Long, Double>());
+				neighbors.put(new_index, new ArrayList<Long>());
+
+				// calculate pairwise distances and neighbors
+				for (Map.Entry<Long, Crumb> entry_i : crumbs_by_index.entrySet())
+				{
+						for (Map.Entry<Long, Crumb> entry_j : crumbs_by_index.entrySet())
+						{
+								long index_i = entry_i.getKey();
+								long index_j = entry_j.getKey();
+
+								// if a Crumb is being compared to itself
+								// OR
+								// if a calculation was previously performed for pair (i,j)
+								if (index_i == index_j || pairwise_distances.get(index_i).containsKey(index_j))
+								{
+										continue; // don't perform the calculations
+								}
+
+								double pairwise_distance = distanceBetweenCrumbs(index_i, index_j);
+								pairwise_distances.get(index_i).put(index_j, pairwise_distance);
+								if (pairwise_distance <= Crumb.MAX_NEIGHBOR_DISTANCE)
+								{
+										neighbors.get(index_i).add(index_j);
+								}
+						}
+				}
+				return new_index;
+		}
+
+		public List<Long> straightHome(UTM start, UTM goal)
+		{
+				// Simple: go straight home from the start
+				List<Long> path_sequence = new ArrayList<>();
+				long start_index = newCrumb(start);
+				long goal_index = newCrumb(goal);
+				path_sequence.add(start_index);
+				path_sequence.add(goal_index);
+				return path_sequence;
+		}
+
+		public List<Long> aStar(UTM start, UTM goal)
+		{
+				List<Long> path_sequence = new ArrayList<>();
+				long start_index = newCrumb(start);
+				long goal_index = newCrumb(goal);
+
+				// make sure start is reachable (i.e. it has at least one neighbor)
+
+				// make sure goal is reachable (i.e. it has at least one neighbor)
+
+				// for each crumb, calculate distance to goal, fill in distance_to_goal Map
+
+				// TODO: FILL IN CODE
+
+				return path_sequence;
+		}
+}
@@ -0,0 +1,311 @@
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Quaternion;
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+import java.util.prefs.Preferences;
+
+/**
+ * An extended Kalman filter over the planar state of the vehicle:
+ * [x, y, yaw, surge, sway, yaw rate].
+ * <p/>
+ * Position is in UTM meters, yaw is counter-clockwise from east, and the
+ * velocities are in the body frame.  Between measurements the state is
+ * carried forward by a motion model in which the surge speed and yaw rate
+ * approach the commanded thrust and rudder with a first-order lag, and sway
+ * dies away.  GPS fixes, compass headings and gyro rates each correct the
+ * state as scalar measurements, weighted by their variances.
+ * <p/>
+ * The state and covariance live in preallocated arrays, so prediction and
+ * updates do not allocate; only {@link #pose(long)} builds a pose.
+ */
+public class EkfFilter implements CommandedVehicleFilter {
+
+	/**
+	 * Preference holding the surge speed at full thrust, in m/s.
+	 */
+	public static final String MAX_SPEED_PREF = "pref_ekf_max_speed_mps";
+
+	/**
+	 * Preference holding the yaw rate at full rudder, in rad/s.
+	 */
+	public static final String MAX_YAW_RATE_PREF = "pref_ekf_max_yaw_rate";
+
+	public static final double DEFAULT_MAX_SPEED = 2.0;
+	public static final double DEFAULT_MAX_YAW_RATE = 1.0;
+
+	// The largest integration step; longer intervals take several steps
+	public static final long MAX_STEP_MS = SimpleFilter.MAX_STEP_MS;
+
+	// Indices of the state
+	public static final int X = 0;
+	public static final int Y = 1;
+	public static final int YAW = 2;
+	public static final int SURGE = 3;
+	public static final int SWAY = 4;
+	public static final int YAW_RATE = 5;
+	public static final int N = 6;
+
+	// Time constants of the response to commands, in seconds
+	static final double TAU_SURGE = 2.0;
+	static final double TAU_SWAY = 1.0;
+	static final double TAU_YAW_RATE = 0.5;
+
+	// Process noise spectral densities, per second
+	static final double[] PROCESS_NOISE = { 0.01, 0.01, 0.001, 0.25, 0.1, 0.1 };
+
+	// Measurement variances
+	static final double COMPASS_VARIANCE = 0.03;  // about 10 degrees
+	static final double GYRO_VARIANCE = 0.0025;
+	static final double MIN_GPS_VARIANCE = 0.01;
+
+	// Covariance of the state when it is first taken from a measurement
+	static final double[] INITIAL_VARIANCE = { 25.0, 25.0, 1.0, 1.0, 1.0, 1.0 };
+
+	private final double _maxSpeed;
+	private final double _maxYawRate;
+	private final double _gpsVariance;
+
+	// State and covariance, row-major, and scratch space for the updates
+	private final double[] _s = new double[N];
+	private final double[] _p = new double[N * N];
+	private final double[] _f = new double[N * N];
+	private final double[] _fp = new double[N * N];
+	private final double[] _gain = new double[N];
+	private final double[] _row = new double[N];
+
+	// Altitude and UTM zone, carried along from the fixes
+	private double _z = 172.35;
+	private int _zone = 17;
+	private boolean _isNorth = true;
+
+	// Commanded thrust fraction and rudder signal
+	private double _thrust = 0.0;
+	private double _rudder = 0.0;
+
+	private boolean _isInitializedGps = false;
+	private boolean _isInitializedCompass = false;
+	private long _time = System.currentTimeMillis();
+
+	/**
+	 * @param maxSpeed surge speed at full thrust, in m/s
+	 * @param maxYawRate yaw rate at full rudder, in rad/s
+	 * @param gpsVariance variance of a fix given the nominal GPS weight,
+	 *                    {@link SimpleFilter#ALPHA_GPS}, in m^2
+	 */
+	public EkfFilter(double maxSpeed, double maxYawRate, double gpsVariance) {
+		_maxSpeed = maxSpeed;
+		_maxYawRate = maxYawRate;
+		_gpsVariance = gpsVariance;
+		_s[X] = 476608.34;
+		_s[Y] = 4671214.40;
+		for (int i = 0; i < N; i++)
+			_p[i * N + i] = INITIAL_VARIANCE[i];
+	}
+
+	/**
+	 * Creates a filter configured by the preferences.  The GPS variance is
+	 * the one assumed by {@link GpsFusion}, so that fused fixes keep their
+	 * variance.
+	 */
+	public static EkfFilter fromPrefs(Preferences prefs) {
+		return new EkfFilter(prefs.getDouble(MAX_SPEED_PREF, DEFAULT_MAX_SPEED),
+				prefs.getDouble(MAX_YAW_RATE_PREF, DEFAULT_MAX_YAW_RATE),
+				prefs.getDouble(GpsFusion.VARIANCE_PREF, GpsFusion.DEFAULT_VARIANCE));
+	}
+
+	/**
+	 * Carries the state and covariance forward to a time, in steps of at
+	 * most {@link #MAX_STEP_MS}.  Earlier times leave the state as it is.
+	 */
+	protected void predict(long time) {
+		while (_time < time) {
+			long step = Math.min(time - _time, MAX_STEP_MS);
+			step(step / 1000.0);
+			_time += step;
+		}
+	}
+
+	private void step(double dt) {
+		double yaw = _s[YAW], u = _s[SURGE], v = _s[SWAY], r = _s[YAW_RATE];
+		double cos = Math.cos(yaw), sin = Math.sin(yaw);
+
+		// Jacobian of the motion model
+		for (int i = 0; i < N * N; i++)
+			_f[i] = 0.0;
+		for (int i = 0; i < N; i++)
+			_f[i * N + i] = 1.0;
+		_f[X * N + YAW] = -dt * (u * sin + v * cos);
+		_f[X * N + SURGE] = dt * cos;
+		_f[X * N + SWAY] = -dt * sin;
+		_f[Y * N + YAW] = dt * (u * cos - v * sin);
+		_f[Y * N + SURGE] = dt * sin;
+		_f[Y * N + SWAY] = dt * cos;
+		_f[YAW * N + YAW_RATE] = dt;
+		_f[SURGE * N + SURGE] = 1.0 - dt / TAU_SURGE;
+		_f[SWAY * N + SWAY] = 1.0 - dt / TAU_SWAY;
+		_f[YAW_RATE * N + YAW_RATE] = 1.0 - dt / TAU_YAW_RATE;
+
+		// Motion model
+		_s[X] += dt * (u * cos - v * sin);
+		_s[Y] += dt * (u * sin + v * cos);
+		_s[YAW] = normalizeAngle(yaw + dt * r);
+		_s[SURGE] += dt * (_thrust * _maxSpeed - u) / TAU_SURGE;
+		_s[SWAY] -= dt * v / TAU_SWAY;
+		_s[YAW_RATE] += dt * (_rudder * _maxYawRate - r) / TAU_YAW_RATE;
+
+		// P = F P F' + Q dt
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j < N; j++) {
+				double sum = 0.0;
+				for (int k = 0; k < N; k++)
+					sum += _f[i * N + k] * _p[k * N + j];
+				_fp[i * N + j] = sum;
+			}
+		}
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j < N; j++) {
+				double sum = 0.0;
+				for (int k = 0; k < N; k++)
+					sum += _fp[i * N + k] * _f[j * N + k];
+				_p[i * N + j] = sum;
+			}
+			_p[i * N + i] += PROCESS_NOISE[i] * dt;
+		}
+	}
+
+	/**
+	 * Corrects the state with a measurement of one of its elements.
+	 *
+	 * @param index the element measured
+	 * @param innovation the measurement minus the current estimate
+	 * @param variance the variance of the measurement
+	 */
+	private void update(int index, double innovation, double variance) {
+		double s = _p[index * N + index] + variance;
+		for (int i = 0; i < N; i++) {
+			_gain[i] = _p[i * N + index] / s;
+			_row[i] = _p[index * N + i];
+		}
+		for (int i = 0; i < N; i++) {
+			_s[i] += _gain[i] * innovation;
+			for (int j = 0; j < N; j++)
+				_p[i * N + j] -= _gain[i] * _row[j];
+		}
+		_s[YAW] = normalizeAngle(_s[YAW]);
+	}
+
+	// Takes an element of the state from a measurement, forgetting its
+	// correlation with the rest.
+	private void initialize(int index, double value) {
+		_s[index] = value;
+		for (int i = 0; i < N; i++) {
+			_p[index * N + i] = 0.0;
+			_p[i * N + index] = 0.0;
+		}
+		_p[index * N + index] = INITIAL_VARIANCE[index];
+	}
+
+	@Override
+	public synchronized void commandUpdate(Twist velocity, long time) {
+		predict(time);
+		_thrust = velocity.dx();
+		_rudder = velocity.drz();
+	}
+
+	@Override
+	public synchronized void compassUpdate(double yaw, long time) {
+		predict(time);
+		if (_isInitializedCompass) {
+			update(YAW, normalizeAngle(yaw - _s[YAW]), COMPASS_VARIANCE);
+		} else {
+			initialize(YAW, normalizeAngle(yaw));
+			_isInitializedCompass = true;
+		}
+	}
+
+	@Override
+	public synchronized void gpsUpdate(UtmPose utm, long time) {
+		gpsUpdate(utm, SimpleFilter.ALPHA_GPS, time);
+	}
+
+	/**
+	 * Corrects the position with a fix.  The weight is read as a variance
+	 * relative to that of a fix of the nominal weight.
+	 */
+	@Override
+	public synchronized void gpsUpdate(UtmPose utm, double weight, long time) {
+		if (weight <= 0.0)
+			return;
+		predict(time);
+
+		// If we are in the wrong zone or are uninitialized, use the GPS position
+		if (!_isInitializedGps || utm.origin.zone != _zone || utm.origin.isNorth != _isNorth) {
+			_zone = utm.origin.zone;
+			_isNorth = utm.origin.isNorth;
+			initialize(X, utm.pose.getX());
+			initialize(Y, utm.pose.getY());
+			_isInitializedGps = true;
+		} else {
+			double variance = Math.max(MIN_GPS_VARIANCE,
+					_gpsVariance * (1.0 - weight) / (1.0 - SimpleFilter.ALPHA_GPS));
+			update(X, utm.pose.getX() - _s[X], variance);
+			update(Y, utm.pose.getY() - _s[Y], variance);
+		}
+		if (utm.pose.getZ() != 0.0)
+			_z = utm.pose.getZ();
+	}
+
+	@Override
+	public synchronized void gyroUpdate(double yawVel, long time) {
+		predict(time);
+		update(YAW_RATE, yawVel - _s[YAW_RATE], GYRO_VARIANCE);
+	}
+
+	@Override
+	public synchronized UtmPose pose(long time) {
+		predict(time);
+		return new UtmPose(new Pose3D(_s[X], _s[Y], _z, Quaternion.fromEulerAngles(0, 0, _s[YAW])),
+				new Utm(_zone, _isNorth));
+	}
+
+	@Override
+	public synchronized void reset(UtmPose pose, long time) {
+		_time = time;
+		_zone = pose.origin.zone;
+		_isNorth = pose.origin.isNorth;
+		_z = pose.pose.getZ();
+		for (int i = 0; i < N * N; i++)
+			_p[i] = 0.0;
+		for (int i = 0; i < N; i++)
+			initialize(i, 0.0);
+		_s[X] = pose.pose.getX();
+		_s[Y] = pose.pose.getY();
+		_s[YAW] = normalizeAngle(pose.pose.getRotation().toYaw());
+
+		_isInitializedGps = true;
+		_isInitializedCompass = true;
+	}
+
+	/**
+	 * Copies out the state, [x, y, yaw, surge, sway, yaw rate].
+	 */
+	public synchronized void readState(double[] state) {
+		System.arraycopy(_s, 0, state, 0, N);
+	}
+
+	/**
+	 * Returns the variance of an element of the state.
+	 */
+	public synchronized double getVariance(int index) {
+		return _p[index * N + index];
+	}
+
+	/**
+	 * Reprojects any angle into the range (-pi, pi].
+	 */
+	static double normalizeAngle(double angle) {
+		return -Math.IEEEremainder(-angle, 2 * Math.PI);
+	}
+}
@@ -0,0 +1,231 @@
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.udp.UdpVehicleService;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a fleet of simulated vehicles in a single process, all sharing one
+ * set of {@link VehicleContext.Pools} (scheduler, watchdog, sensor workers
+ * and archive writer) and one journal I/O thread, and reports how heap use
+ * and thread count grow with the number of vehicles.
+ * <p/>
+ * Usage:
+ * <pre>
+ *     java FleetLauncher [vehicles] [scheduler threads] [--udp]
+ * </pre>
+ * Vehicles are started in doubling steps up to the requested number, and the
+ * retained heap and live thread count are printed after each step.  With
+ * {@code --udp}, each vehicle is also served on its own UDP port starting at
+ * {@link #BASE_PORT}, and the fleet keeps running until the process is killed.
+ */
+public class FleetLauncher {
+
+  public static final int DEFAULT_VEHICLES = 64;
+  public static final int DEFAULT_THREADS = 4;
+  public static final int BASE_PORT = 11411;
+
+  /**
+   * Time to let each step settle before measuring it.
+   */
+  public static final long SETTLE_MS = 2000;
+
+  /**
+   * Interval at which simulated eboards report a GPS fix.
+   */
+  public static final long GPS_INTERVAL_MS = 1000;
+
+  private static final Logger logger = Logger.getLogger(FleetLauncher.class.getName());
+
+  /**
+   * An eboard connection that accepts every command without a serial port and
+   * lets the launcher inject received messages.
+   */
+  static class SimulatedController extends Controller {
+    final AtomicLong commandsSent = new AtomicLong(0);
+
+    SimulatedController(String name) {
+      super("sim:" + name);
+    }
+
+    @Override
+    public boolean connect() {
+      return true;
+    }
+
+    @Override
+    public boolean reconnect() {
+      return true;
+    }
+
+    @Override
+    public boolean isConnected() {
+      return true;
+    }
+
+    @Override
+    public void send(JSONObject obj) {
+      commandsSent.incrementAndGet();
+    }
+
+    /**
+     * Queues a message as if it had been received from the eboard.
+     */
+    public void inject(JSONObject obj) {
+      enqueue(obj.toString());
+    }
+  }
+
+  private final VehicleContext.Pools _pools;
+  private final ScheduledExecutorService _journalIo;
+  private final boolean _udp;
+  private final List<VehicleServerImpl> _vehicles = new ArrayList<VehicleServerImpl>();
+  private final List<SimulatedController> _controllers = new ArrayList<SimulatedController>();
+  private final List<VehicleLogger> _loggers = new ArrayList<VehicleLogger>();
+  private final List<UdpVehicleService> _services = new ArrayList<UdpVehicleService>();
+
+  public FleetLauncher(int threads, boolean udp) {
+    _pools = new VehicleContext.Pools("fleet", threads);
+    _journalIo = VehicleContext.newScheduler("fleet-journal", 1);
+    _udp = udp;
+
+    // A single task feeds GPS fixes to every simulated eboard.
+    _pools.scheduler.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          feedGps();
+        }
+      }, GPS_INTERVAL_MS, GPS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts one more simulated vehicle, driving slowly forward.
+   */
+  public synchronized VehicleServerImpl addVehicle() {
+    int index = _vehicles.size();
+    String name = "sim" + index;
+
+    SimulatedController controller = new SimulatedController(name);
+    VehicleLogger vLogger = new VehicleLogger(name);
+    VehicleServerImpl vehicle = new VehicleServerImpl(
+        new VehicleContext(name, _pools, controller, vLogger,
+                           VehicleContext.openJournal(name, _journalIo)));
+    vehicle.setVelocity(new Twist(0.2, 0, 0, 0, 0, 0.1));
+
+    if (_udp) {
+      int port = BASE_PORT + index;
+      try {
+        _services.add(new UdpVehicleService(port, vehicle));
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "UdpVehicleService failed to launch on port " + port, e);
+      }
+    }
+
+    _controllers.add(controller);
+    _loggers.add(vLogger);
+    _vehicles.add(vehicle);
+    return vehicle;
+  }
+
+  public synchronized int size() {
+    return _vehicles.size();
+  }
+
+  private synchronized void feedGps() {
+    long time = System.currentTimeMillis();
+    for (int i = 0; i < _controllers.size(); i++) {
+      try {
+        // Spread the vehicles out along a line of latitude.
+        _controllers.get(i).inject(new JSONObject()
+            .put("g0", new JSONObject()
+                .put("lat", 40.4433)
+                .put("lon", -79.9436 + 0.0001 * i)
+                .put("time", time)));
+      } catch (JSONException e) {
+        logger.log(Level.WARNING, "Unable to serialize simulated GPS fix", e);
+      }
+    }
+  }
+
+  public synchronized void shutdown() {
+    for (UdpVehicleService service : _services)
+      service.shutdown();
+    for (VehicleServerImpl vehicle : _vehicles)
+      vehicle.shutdown();
+    for (VehicleLogger vLogger : _loggers)
+      vLogger.close();
+    _pools.shutdown();
+    _journalIo.shutdown();
+  }
+
+  /**
+   * Returns the heap retained after a full collection, in bytes.
+   */
+  static long retainedHeap(MemoryMXBean memory) {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int vehicles = DEFAULT_VEHICLES;
+    int threads = DEFAULT_THREADS;
+    boolean udp = false;
+    int positional = 0;
+    for (String arg : args) {
+      if (arg.equals("--udp"))
+        udp = true;
+      else if (positional++ == 0)
+        vehicles = Integer.parseInt(arg);
+      else
+        threads = Integer.parseInt(arg);
+    }
+
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    long baseHeap = retainedHeap(memory);
+    int baseThreads = threadBean.getThreadCount();
+
+    final FleetLauncher fleet = new FleetLauncher(threads, udp);
+    System.out.println(String.format("%8s %12s %16s %8s", "vehicles", "heap (KB)", "per vehicle (KB)", "threads"));
+    System.out.println(String.format("%8d %12d %16s %8d", 0, baseHeap / 1024, "-", baseThreads));
+
+    for (int step = 1; step <= vehicles; step = (step >= vehicles) ? step + 1 : Math.min(step * 2, vehicles)) {
+      while (fleet.size() < step)
+        fleet.addVehicle();
+      Thread.sleep(SETTLE_MS);
+
+      long heap = retainedHeap(memory) - baseHeap;
+      System.out.println(String.format("%8d %12d %16.1f %8d",
+          step, heap / 1024, heap / 1024.0 / step, threadBean.getThreadCount()));
+    }
+
+    if (udp) {
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+          @Override
+          public void run() {
+            fleet.shutdown();
+          }
+        });
+      Thread.currentThread().join();
+    }
+    fleet.shutdown();
+  }
+}
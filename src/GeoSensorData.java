@@ -0,0 +1,79 @@
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Quaternion;
+import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+/**
+ * A sensor reading tagged with the time it arrived and where the vehicle was
+ * at that time.
+ * <p/>
+ * Listeners in the same process can recover the position by checking for
+ * this class; over UDP the reading is sent as a plain {@link SensorData}.
+ */
+public class GeoSensorData extends SensorData {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Arrival time of the reading, in milliseconds.
+   */
+  public long time;
+
+  /**
+   * True once the reading has been placed; the fields below are meaningless
+   * until then.
+   */
+  public boolean located = false;
+  public double easting;
+  public double northing;
+  public double altitude;
+  public double yaw;
+  public int zone;
+  public boolean isNorth;
+
+  public GeoSensorData() {
+  }
+
+  /**
+   * Copies a reading, sharing its values, and stamps it with a time.
+   */
+  public GeoSensorData(SensorData reading, long time) {
+    this.channel = reading.channel;
+    this.type = reading.type;
+    this.data = reading.data;
+    this.time = time;
+  }
+
+  /**
+   * Returns a copy of this reading, at the same time and place, with other
+   * values.
+   */
+  public GeoSensorData withData(double[] data) {
+    GeoSensorData copy = new GeoSensorData(this, time);
+    copy.data = data;
+    if (located)
+      copy.setLocation(easting, northing, altitude, yaw, zone, isNorth);
+    return copy;
+  }
+
+  void setLocation(double easting, double northing, double altitude, double yaw, int zone, boolean isNorth) {
+    this.easting = easting;
+    this.northing = northing;
+    this.altitude = altitude;
+    this.yaw = yaw;
+    this.zone = zone;
+    this.isNorth = isNorth;
+    this.located = true;
+  }
+
+  /**
+   * Returns where the reading was taken, or null if it has not been placed.
+   */
+  public UtmPose getPose() {
+    if (!located)
+      return null;
+    return new UtmPose(new Pose3D(easting, northing, altitude, Quaternion.fromEulerAngles(0, 0, yaw)),
+                       new Utm(zone, isNorth));
+  }
+}
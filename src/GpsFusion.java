@@ -0,0 +1,429 @@
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Quaternion;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+
+/**
+ * Combines the fixes of several GPS receivers on the eboard into one
+ * position update per tick.
+ * <p/>
+ * Each receiver keeps its latest fix and an estimate of its noise.  Once
+ * two or more receivers report, the noise of each is learned from how far
+ * its fixes fall from the average of the others, so a receiver with a poor
+ * view of the sky loses weight.  A receiver whose fixes stop arriving, or
+ * stop advancing in time, is left out until it recovers.  The fresh fixes
+ * are averaged by inverse variance into a single fix, whose variance sets
+ * its weight in the filter.  Each fix is fused only once, so the filter
+ * never counts the same measurement twice.
+ * <p/>
+ * With two receivers mounted a known distance apart along the hull, the
+ * baseline between their fixes also gives the heading of the vehicle.  The
+ * antennas of the pair are not compared with each other when learning their
+ * noise, since their fixes differ by the baseline.
+ */
+public class GpsFusion {
+
+  private static final Logger logger = Logger.getLogger(GpsFusion.class.getName());
+
+  /**
+   * Preference holding the variance assumed for a receiver until it is
+   * learned, in square meters.
+   */
+  public static final String VARIANCE_PREF = "pref_gps_variance_m2";
+
+  /**
+   * Preference holding the receivers of a dual-antenna pair, as
+   * "rear,front", or an empty string if there is none.
+   */
+  public static final String DUAL_ANTENNA_PREF = "pref_gps_dual_antenna";
+
+  /**
+   * Preference holding the distance between the antennas of the pair.
+   */
+  public static final String BASELINE_PREF = "pref_gps_baseline_m";
+
+  /**
+   * Preference holding the angle of the baseline from the bow, in degrees
+   * counter-clockwise, for antennas not mounted along the centerline.
+   */
+  public static final String BASELINE_YAW_PREF = "pref_gps_baseline_yaw_deg";
+
+  public static final double DEFAULT_VARIANCE = 4.0;
+
+  /**
+   * Age after which a receiver's fix is no longer used.
+   */
+  public static final long STALE_MS = 2000;
+
+  /**
+   * Age up to which a fresh fix is fused.  Older ones, left waiting by a
+   * stalled update loop, are dropped.
+   */
+  public static final long WINDOW_MS = 250;
+
+  /**
+   * Largest gap between the fixes of the two antennas for a heading.
+   */
+  public static final long MAX_SKEW_MS = 200;
+
+  /**
+   * Largest difference between the measured and expected baseline, as a
+   * fraction of the expected one, for a heading.
+   */
+  public static final double BASELINE_TOLERANCE = 0.25;
+
+  /**
+   * Weight of each new residual in a receiver's noise estimate.
+   */
+  public static final double NOISE_GAIN = 0.05;
+
+  /**
+   * Bounds on the weight of a fused fix in the filter.
+   */
+  public static final double MIN_WEIGHT = 0.05;
+  public static final double MAX_WEIGHT = 0.98;
+
+  /**
+   * A snapshot of the state of one receiver.
+   */
+  public static class Receiver {
+    public final int id;
+
+    // Latest fix.
+    double easting;
+    double northing;
+    int zone;
+    boolean isNorth;
+    long fixTime = Long.MIN_VALUE;
+    long arrival = Long.MIN_VALUE;
+    boolean fresh = false;
+
+    // Weight in the current fusion, or 0 if left out.
+    double weight = 0.0;
+
+    double variance;
+    long fixes = 0;
+    long rejected = 0;
+    boolean healthy = false;
+
+    Receiver(int id, double variance) {
+      this.id = id;
+      this.variance = variance;
+    }
+
+    public double getVariance() {
+      return variance;
+    }
+
+    public long getFixes() {
+      return fixes;
+    }
+
+    /**
+     * Returns the number of fixes ignored because their time did not
+     * advance.
+     */
+    public long getRejected() {
+      return rejected;
+    }
+
+    public boolean isHealthy() {
+      return healthy;
+    }
+
+    public long getArrival() {
+      return arrival;
+    }
+
+    Receiver copy() {
+      Receiver copy = new Receiver(id, variance);
+      copy.easting = easting;
+      copy.northing = northing;
+      copy.zone = zone;
+      copy.isNorth = isNorth;
+      copy.fixTime = fixTime;
+      copy.arrival = arrival;
+      copy.fixes = fixes;
+      copy.rejected = rejected;
+      copy.healthy = healthy;
+      return copy;
+    }
+  }
+
+  private final double _variance;
+  private final int _rear;
+  private final int _front;
+  private final double _baseline;
+  private final double _baselineYaw;
+  private final List<Receiver> _receivers = new ArrayList<Receiver>();
+
+  // Outcome of the last fusion, valid when fuse() returns true.
+  private double _easting;
+  private double _northing;
+  private int _zone;
+  private boolean _isNorth;
+  private double _fusedVariance;
+  private long _time;
+  private double _heading = Double.NaN;
+  private long _headingTime;
+
+  /**
+   * @param variance    variance assumed for a new receiver, in m^2
+   * @param rear        receiver at the rear of the baseline, or -1
+   * @param front       receiver at the front of the baseline, or -1
+   * @param baseline    distance between the antennas, or 0 to accept any
+   * @param baselineYaw angle of the baseline from the bow, in radians
+   */
+  public GpsFusion(double variance, int rear, int front, double baseline, double baselineYaw) {
+    _variance = variance;
+    _rear = rear;
+    _front = front;
+    _baseline = baseline;
+    _baselineYaw = baselineYaw;
+  }
+
+  /**
+   * Creates a fusion configured by the preferences.
+   */
+  public static GpsFusion fromPrefs(Preferences prefs) {
+    int rear = -1, front = -1;
+    String pair = prefs.get(DUAL_ANTENNA_PREF, "").trim();
+    if (!pair.isEmpty()) {
+      String[] ids = pair.split(",");
+      try {
+        if (ids.length != 2)
+          throw new NumberFormatException("expected two receivers");
+        rear = Integer.parseInt(ids[0].trim());
+        front = Integer.parseInt(ids[1].trim());
+      } catch (NumberFormatException e) {
+        logger.log(Level.WARNING, "Ignoring " + DUAL_ANTENNA_PREF + " '" + pair + "': " + e.getMessage());
+        rear = front = -1;
+      }
+    }
+    return new GpsFusion(prefs.getDouble(VARIANCE_PREF, DEFAULT_VARIANCE), rear, front,
+                         prefs.getDouble(BASELINE_PREF, 0.0),
+                         Math.toRadians(prefs.getDouble(BASELINE_YAW_PREF, 0.0)));
+  }
+
+  /**
+   * Records a fix from a receiver.
+   *
+   * @param fixTime time of the fix, as reported by the receiver
+   * @param arrival time the fix arrived
+   */
+  public synchronized void record(int id, UtmPose fix, long fixTime, long arrival) {
+    Receiver receiver = receiver(id);
+    if (fixTime <= receiver.fixTime && arrival - receiver.arrival <= STALE_MS) {
+      // A repeated fix, from a receiver that has lost lock.  A receiver that
+      // restarts after going stale may start its clock over.
+      receiver.rejected++;
+      return;
+    }
+    receiver.easting = fix.pose.getX();
+    receiver.northing = fix.pose.getY();
+    receiver.zone = fix.origin.zone;
+    receiver.isNorth = fix.origin.isNorth;
+    receiver.fixTime = fixTime;
+    receiver.arrival = arrival;
+    receiver.fresh = true;
+    receiver.fixes++;
+  }
+
+  /**
+   * Fuses the fixes that arrived since the last call.
+   *
+   * @return true if there was a new fix, available from {@link #getFix()}
+   */
+  public synchronized boolean fuse(long now) {
+    updateHealth(now);
+
+    // Drop the fixes left waiting too long, e.g. by a stalled update loop.
+    for (Receiver r : _receivers)
+      if (r.fresh && now - r.arrival > WINDOW_MS)
+        r.fresh = false;
+
+    // Use the zone of the healthiest fusable receiver, since fixes in
+    // different zones cannot be averaged.
+    Receiver best = null;
+    for (Receiver r : _receivers)
+      if (fusable(r, r, now) && (best == null || r.variance < best.variance))
+        best = r;
+    if (best == null)
+      return false;
+
+    double sumW = 0.0, sumE = 0.0, sumN = 0.0;
+    long sumT = 0;
+    int used = 0;
+    for (Receiver r : _receivers) {
+      r.weight = fusable(r, best, now) ? 1.0 / r.variance : 0.0;
+      if (r.weight == 0.0)
+        continue;
+      sumW += r.weight;
+      sumE += r.weight * r.easting;
+      sumN += r.weight * r.northing;
+      sumT += r.fixTime;
+      used++;
+    }
+    if (used == 0)
+      return false;
+
+    // Learn the noise of each receiver from its distance to the others,
+    // leaving out the other antenna of a dual-antenna pair.
+    for (Receiver r : _receivers) {
+      if (r.weight == 0.0)
+        continue;
+      double otherW = sumW - r.weight;
+      double otherE = sumE - r.weight * r.easting;
+      double otherN = sumN - r.weight * r.northing;
+      int others = used - 1;
+      Receiver partner = partner(r);
+      if (partner != null && partner.weight > 0.0) {
+        otherW -= partner.weight;
+        otherE -= partner.weight * partner.easting;
+        otherN -= partner.weight * partner.northing;
+        others--;
+      }
+      if (others == 0)
+        continue;
+      double de = r.easting - otherE / otherW;
+      double dn = r.northing - otherN / otherW;
+      // Half the squared distance: the residual is shared with the others.
+      double residual = 0.5 * (de * de + dn * dn);
+      r.variance += NOISE_GAIN * (Math.max(residual, 0.01) - r.variance);
+    }
+
+    _easting = sumE / sumW;
+    _northing = sumN / sumW;
+    _zone = best.zone;
+    _isNorth = best.isNorth;
+    _fusedVariance = 1.0 / sumW;
+    _time = sumT / used;
+
+    fuseHeading();
+    for (Receiver r : _receivers)
+      r.fresh = false;
+    return true;
+  }
+
+  /**
+   * Returns the last fused fix.
+   */
+  public synchronized UtmPose getFix() {
+    return new UtmPose(new Pose3D(_easting, _northing, 0.0, Quaternion.fromEulerAngles(0, 0, 0)),
+                       new Utm(_zone, _isNorth));
+  }
+
+  public synchronized long getTime() {
+    return _time;
+  }
+
+  public synchronized double getVariance() {
+    return _fusedVariance;
+  }
+
+  /**
+   * Returns the weight of the last fused fix in the filter: the usual GPS
+   * weight for a fix of the assumed variance, more for a better fix and less
+   * for a worse one.
+   */
+  public synchronized double getWeight() {
+    double weight = 1.0 - (1.0 - SimpleFilter.ALPHA_GPS) * _fusedVariance / _variance;
+    return Math.max(MIN_WEIGHT, Math.min(MAX_WEIGHT, weight));
+  }
+
+  /**
+   * Returns the heading from the dual antennas at the last fusion, counter-
+   * clockwise from east, or NaN if there was none.
+   */
+  public synchronized double getHeading() {
+    return _heading;
+  }
+
+  public synchronized long getHeadingTime() {
+    return _headingTime;
+  }
+
+  /**
+   * Returns a snapshot of every receiver heard from.
+   */
+  public synchronized List<Receiver> getReceivers() {
+    List<Receiver> receivers = new ArrayList<Receiver>();
+    for (Receiver r : _receivers)
+      receivers.add(r.copy());
+    return receivers;
+  }
+
+  private Receiver receiver(int id) {
+    for (Receiver r : _receivers)
+      if (r.id == id)
+        return r;
+    Receiver r = new Receiver(id, _variance);
+    _receivers.add(r);
+    return r;
+  }
+
+  // Whether a receiver has a new fix that can be averaged with the best one.
+  private static boolean fusable(Receiver r, Receiver best, long now) {
+    return r.healthy && r.fresh && now - r.arrival <= WINDOW_MS
+      && r.zone == best.zone && r.isNorth == best.isNorth;
+  }
+
+  // Returns the other antenna of the dual-antenna pair, or null.
+  private Receiver partner(Receiver r) {
+    int id;
+    if (r.id == _rear)
+      id = _front;
+    else if (r.id == _front)
+      id = _rear;
+    else
+      return null;
+    for (Receiver other : _receivers)
+      if (other.id == id)
+        return other;
+    return null;
+  }
+
+  private void updateHealth(long now) {
+    for (Receiver r : _receivers) {
+      boolean healthy = (r.arrival != Long.MIN_VALUE && now - r.arrival <= STALE_MS);
+      if (healthy != r.healthy) {
+        r.healthy = healthy;
+        logger.log(healthy ? Level.INFO : Level.WARNING,
+                   String.format(Locale.US, "GPS receiver g%d is %s", r.id, healthy ? "reporting" : "stale"));
+      }
+    }
+  }
+
+  // Takes the heading from the baseline between the two antennas, if both
+  // reported close together.
+  private void fuseHeading() {
+    _heading = Double.NaN;
+    if (_rear < 0)
+      return;
+    Receiver rear = null, front = null;
+    for (Receiver r : _receivers) {
+      if (r.id == _rear) rear = r;
+      if (r.id == _front) front = r;
+    }
+    if (rear == null || front == null || !rear.healthy || !front.healthy
+        || !(rear.fresh || front.fresh)
+        || rear.zone != front.zone || rear.isNorth != front.isNorth
+        || Math.abs(rear.fixTime - front.fixTime) > MAX_SKEW_MS)
+      return;
+
+    double de = front.easting - rear.easting;
+    double dn = front.northing - rear.northing;
+    double length = Math.hypot(de, dn);
+    if (length == 0.0 || (_baseline > 0 && Math.abs(length - _baseline) > BASELINE_TOLERANCE * _baseline))
+      return;
+    _heading = Math.IEEEremainder(Math.atan2(dn, de) - _baselineYaw, 2 * Math.PI);
+    _headingTime = Math.max(rear.fixTime, front.fixTime);
+  }
+}
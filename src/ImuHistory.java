@@ -0,0 +1,135 @@
+import java.util.Arrays;
+
+/**
+ * The recent samples of the eboard IMU, kept in a fixed-size ring of
+ * primitive arrays so that a stream of 50-100 Hz can be recorded without
+ * allocating.
+ * <p/>
+ * Each sample has a sequence number, so a consumer that runs at a lower
+ * rate (the update loop feeding the pose filter) can pick up every sample
+ * recorded since it last looked, as long as it keeps up with the ring.
+ * <p/>
+ * Angles follow the pose filter: yaw is counter-clockwise from east, and a
+ * positive yaw rate turns counter-clockwise.
+ */
+public class ImuHistory {
+
+  /**
+   * Number of values in a sample, as read by {@link #read}.
+   */
+  public static final int WIDTH = 7;
+
+  public static final int YAW = 0;
+  public static final int GYRO_X = 1;
+  public static final int GYRO_Y = 2;
+  public static final int GYRO_Z = 3;
+  public static final int ACCEL_X = 4;
+  public static final int ACCEL_Y = 5;
+  public static final int ACCEL_Z = 6;
+
+  private final int _capacity;
+  private final long[] _times;
+  private final double[][] _values;
+  private long _sequence = 0;
+
+  // Scratch space for average(), guarded by this.
+  private final double[] _sums = new double[WIDTH];
+  private final int[] _valid = new int[WIDTH];
+
+  public ImuHistory(int capacity) {
+    _capacity = Math.max(1, capacity);
+    _times = new long[_capacity];
+    _values = new double[WIDTH][_capacity];
+  }
+
+  /**
+   * Records a sample.  Values that the IMU did not report are NaN.
+   */
+  public synchronized void record(long time, double yaw, double gx, double gy, double gz,
+                                  double ax, double ay, double az) {
+    int i = (int) (_sequence % _capacity);
+    _times[i] = time;
+    _values[YAW][i] = yaw;
+    _values[GYRO_X][i] = gx;
+    _values[GYRO_Y][i] = gy;
+    _values[GYRO_Z][i] = gz;
+    _values[ACCEL_X][i] = ax;
+    _values[ACCEL_Y][i] = ay;
+    _values[ACCEL_Z][i] = az;
+    _sequence++;
+  }
+
+  /**
+   * Returns the sequence number the next sample will have, which is also
+   * the number of samples recorded so far.
+   */
+  public synchronized long getSequence() {
+    return _sequence;
+  }
+
+  /**
+   * Returns the sequence number of the oldest sample still in the ring.
+   */
+  public synchronized long getOldest() {
+    return Math.max(0, _sequence - _capacity);
+  }
+
+  /**
+   * Copies out a sample.
+   *
+   * @param sequence sequence number of the sample
+   * @param values   receives the {@link #WIDTH} values of the sample
+   * @return the time of the sample, or -1 if it is not in the ring
+   */
+  public synchronized long read(long sequence, double[] values) {
+    if (sequence < 0 || sequence >= _sequence || sequence < _sequence - _capacity)
+      return -1;
+    int i = (int) (sequence % _capacity);
+    for (int k = 0; k < WIDTH; k++)
+      values[k] = _values[k][i];
+    return _times[i];
+  }
+
+  /**
+   * Averages the samples since a time.  The yaw is averaged around the
+   * circle, and values the IMU did not report are skipped.
+   *
+   * @param values receives the {@link #WIDTH} averages, NaN where no sample
+   *               had a value
+   * @return the number of samples averaged
+   */
+  public synchronized int average(long since, double[] values) {
+    double sin = 0.0, cos = 0.0;
+    int yaws = 0;
+    int count = 0;
+    double[] sums = _sums;
+    int[] valid = _valid;
+    Arrays.fill(sums, 0.0);
+    Arrays.fill(valid, 0);
+    long oldest = Math.max(0, _sequence - _capacity);
+    for (long s = _sequence - 1; s >= oldest; s--) {
+      int i = (int) (s % _capacity);
+      if (_times[i] < since)
+        break;
+      count++;
+      double yaw = _values[YAW][i];
+      if (!Double.isNaN(yaw)) {
+        sin += Math.sin(yaw);
+        cos += Math.cos(yaw);
+        yaws++;
+      }
+      for (int k = GYRO_X; k < WIDTH; k++) {
+        double value = _values[k][i];
+        if (!Double.isNaN(value)) {
+          sums[k] += value;
+          valid[k]++;
+        }
+      }
+    }
+
+    values[YAW] = (yaws > 0) ? Math.atan2(sin, cos) : Double.NaN;
+    for (int k = GYRO_X; k < WIDTH; k++)
+      values[k] = (valid[k] > 0) ? sums[k] / valid[k] : Double.NaN;
+    return count;
+  }
+}
@@ -28,8 +28,6 @@ class LineFollowController implements VehicleController {
     final double SUFFICIENT_PROXIMITY = 3.0;
     double heading_error_old = 0.0;
     double heading_error_accum = 0.0;
-    double[] rudder_pids;
-    double[] thrust_pids;
     double base_thrust, thrust_coefficient;
 
     private double x_dest, x_source, x_current, y_dest, y_source, y_current, th_full, th_current;
@@ -51,8 +49,8 @@ class LineFollowController implements VehicleController {
         String vehicle_type = server_impl.getVehicleType();
 
         // Get the position of the vehicle
-        UtmPose state = server.getPose();
-        current_pose = state.pose;
+        VehicleState state = server_impl.getState();
+        current_pose = state.pose.pose;
 
         if (!original_pose_set)
         {
@@ -135,12 +133,11 @@ class LineFollowController implements VehicleController {
             heading_error = normalizeAngle(heading_desired - heading_current);
 
             // PID
-            rudder_pids = server_impl.getGains(5);
             heading_error_deriv = (heading_error - heading_error_old)/dt;
             //Log.v("gyro", String.format("heading error rate = %.2f  rev./sec", heading_error_deriv/2/Math.PI));
             logger.log(Level.parse("gryo"),String.format("heading error rate = %.2f  rev./sec", heading_error_deriv/2/Math.PI));
             double[] gyro = server_impl.getGyro(); // gyro[2] is yaw rate
-            if (rudder_pids[1] > 0.0)
+            if (state.getRudderGain(1) > 0.0)
             {
                 heading_error_accum += dt*heading_error;
             }
@@ -151,10 +148,10 @@ class LineFollowController implements VehicleController {
             // error_envelope is small when heading error approaches 90 degrees or more, i.e. derivative term is small
             // error_envelope approaches 1 when heading error approaches 0, so drastic derivative terms can take arresting action
 
-            heading_signal = rudder_pids[0]*heading_error
-                    + -1*rudder_pids[2]*gyro[2]*error_envelope;
-                    // + rudder_pids[1]*heading_error_accum
-                    //+ rudder_pids[2]*heading_error_deriv;
+            heading_signal = state.getRudderGain(0)*heading_error
+                    + -1*state.getRudderGain(2)*gyro[2]*error_envelope;
+                    // + state.getRudderGain(1)*heading_error_accum
+                    //+ state.getRudderGain(2)*heading_error_deriv;
 
             if (Math.abs(heading_signal) > 1.0)
             {
@@ -162,8 +159,7 @@ class LineFollowController implements VehicleController {
             }
 
             // thrust
-            thrust_pids = server_impl.getGains(0);
-            base_thrust = thrust_pids[0];
+            base_thrust = state.getThrustGain(0);
             angle_from_projected_to_boat = Math.atan2(y_projected - y_current,
                     x_projected - x_current);
             cross_product = Math.cos(th_full)*Math.sin(angle_from_projected_to_boat) -
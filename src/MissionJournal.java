@@ -0,0 +1,562 @@
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A crash-safe journal of the mission state of a vehicle, from which the
+ * waypoints, home, gains, autonomy and pose can be recovered after the process
+ * dies.
+ * <p/>
+ * The mission state is a JSON object.  Every command that changes it is
+ * recorded as a partial state (only the keys that changed), appended to a
+ * memory-mapped journal segment.  Periodically the full state is written as a
+ * compact snapshot, after which older segments are deleted.  On startup, the
+ * snapshot is loaded and every later record is merged into it in order.
+ * <p/>
+ * Records are framed as:
+ * <pre>
+ *     [int length][int crc32][long sequence][payload]
+ * </pre>
+ * and the length is written last, so a record torn by a crash reads as the end
+ * of the segment.  Because segments are memory-mapped, appended records
+ * survive a crash of the process as soon as they are written.  Flushing them
+ * to disk (to survive a power loss) is batched on a background executor, and
+ * so is writing snapshots and allocating the next segment, so recording
+ * never blocks on the disk.
+ * <p/>
+ * The owner asks {@link #needsSnapshot()} and takes a snapshot once enough
+ * has been journaled since the last one.
+ */
+public class MissionJournal implements CommandQueue.Recorder {
+
+  /**
+   * Size of each memory-mapped journal segment.
+   */
+  public static final int SEGMENT_BYTES = 1 << 20;
+
+  /**
+   * Interval at which appended records are flushed to disk.
+   */
+  public static final long FORCE_INTERVAL_MS = 200;
+
+  /**
+   * Number of records, or bytes of records, after which a snapshot is due.
+   */
+  public static final int SNAPSHOT_RECORDS = 256;
+  public static final int SNAPSHOT_BYTES = SEGMENT_BYTES / 4;
+
+  private static final String SNAPSHOT_FILE = "snapshot.json";
+  private static final String SPARE_FILE = "spare.tmp";
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".bin";
+  private static final int HEADER_BYTES = 16;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final Logger logger = Logger.getLogger(MissionJournal.class.getName());
+
+  /**
+   * A journal segment.  Segments recovered at startup are not mapped, since
+   * nothing more is appended to them.
+   */
+  private static class Segment {
+    final File file;
+    final FileChannel channel;
+    final MappedByteBuffer buffer;
+    volatile boolean dirty = false;
+
+    Segment(File file, FileChannel channel, MappedByteBuffer buffer) {
+      this.file = file;
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+
+    void delete() {
+      try {
+        if (channel != null)
+          channel.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to close journal segment " + file, e);
+      }
+      if (!file.delete())
+        logger.log(Level.WARNING, "Failed to delete journal segment " + file);
+    }
+  }
+
+  private final File _directory;
+  private final ScheduledExecutorService _io;
+  private final boolean _ownsIo;
+  private final ScheduledFuture<?> _forceFuture;
+
+  // Guarded by this.
+  private final List<Segment> _segments = new ArrayList<Segment>();
+  private final CRC32 _crc = new CRC32();
+  private final byte[] _seqBytes = new byte[8];
+  private Segment _current;
+  private Segment _spare = null;
+  private boolean _preparing = false;
+  private boolean _closed = false;
+  private int _pendingRecords = 0;
+  private long _pendingBytes = 0;
+  private long _seq = 0;
+  private volatile long _snapshotSeq = 0;
+
+  private final JSONObject _recovered;
+  private final int _recoveredRecords;
+
+  /**
+   * Opens the journal in a directory, recovering any state left by a
+   * previous run.
+   *
+   * @param directory directory holding the snapshot and journal segments
+   * @param io        single-threaded executor used to flush the journal and
+   *                  write snapshots, or null to create one
+   * @throws IOException if a new journal segment cannot be created
+   */
+  public MissionJournal(File directory, ScheduledExecutorService io) throws IOException {
+    _directory = directory;
+    _directory.mkdirs();
+    _ownsIo = (io == null);
+    _io = _ownsIo ? VehicleContext.newScheduler("journal", 1) : io;
+
+    // Load the last snapshot, then merge every newer record into it.
+    JSONObject state = readSnapshot();
+    int records = 0;
+    for (File file : listSegments()) {
+      records += replay(file, state);
+      _segments.add(new Segment(file, null, null));
+    }
+    _seq = Math.max(_seq, _snapshotSeq);
+    _recovered = (state.length() > 0) ? state : null;
+    _recoveredRecords = records;
+
+    File spare = new File(_directory, SPARE_FILE);
+    if (spare.exists() && !spare.delete())
+      logger.log(Level.WARNING, "Failed to delete stale journal segment " + spare);
+    _current = openSegment(_seq + 1);
+    prepareSpare();
+    _forceFuture = _io.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          force();
+        }
+      }, FORCE_INTERVAL_MS, FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the mission state recovered when the journal was opened, or
+   * null if there was none.
+   */
+  public JSONObject getRecoveredState() {
+    return _recovered;
+  }
+
+  /**
+   * Returns the number of journal records replayed on top of the snapshot.
+   */
+  public int getRecoveredRecords() {
+    return _recoveredRecords;
+  }
+
+  /**
+   * Records the effect of an applied command, if it has one.
+   */
+  @Override
+  public void record(CommandQueue.Command command) {
+    try {
+      JSONObject record = command.encode();
+      if (record != null)
+        append(record.put("c", command.name).put("t", command.time));
+    } catch (JSONException e) {
+      logger.log(Level.WARNING, "Failed to serialize command " + command, e);
+    }
+  }
+
+  /**
+   * Appends a partial mission state to the journal.
+   */
+  public synchronized void append(JSONObject record) {
+    byte[] payload = record.toString().getBytes(UTF8);
+    if (HEADER_BYTES + payload.length + 4 > SEGMENT_BYTES) {
+      logger.log(Level.WARNING, "Journal record too large: " + payload.length + " bytes");
+      return;
+    }
+
+    try {
+      // Leave room for the zero length that terminates the segment.
+      if (_current.buffer.remaining() < HEADER_BYTES + payload.length + 4)
+        roll();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to open journal segment", e);
+      return;
+    }
+
+    long seq = ++_seq;
+    MappedByteBuffer buffer = _current.buffer;
+    int start = buffer.position();
+    buffer.position(start + 4);
+    buffer.putInt(checksum(seq, payload, 0, payload.length));
+    buffer.putLong(seq);
+    buffer.put(payload);
+
+    // Writing the length commits the record.
+    buffer.putInt(start, payload.length);
+    _current.dirty = true;
+    _pendingRecords++;
+    _pendingBytes += HEADER_BYTES + payload.length;
+  }
+
+  /**
+   * Returns true once enough has been journaled since the last snapshot
+   * that replaying it would be slow, or the segments would pile up.
+   */
+  public synchronized boolean needsSnapshot() {
+    return _pendingRecords >= SNAPSHOT_RECORDS || _pendingBytes >= SNAPSHOT_BYTES;
+  }
+
+  /**
+   * Replaces the journal with a snapshot of the full mission state.  The
+   * snapshot is written in the background; the journal segments it replaces
+   * are deleted only once it is safely on disk.
+   */
+  public synchronized void snapshot(final JSONObject state) {
+    final long seq = _seq;
+    try {
+      // Segments are named after their first record, so only roll a
+      // segment that has records in it.
+      if (_current.buffer.position() > 0)
+        roll();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to open journal segment", e);
+      return;
+    }
+    final List<Segment> obsolete = new ArrayList<Segment>(_segments);
+    obsolete.remove(_current);
+    _pendingRecords = 0;
+    _pendingBytes = 0;
+
+    _io.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (writeSnapshot(seq, state)) {
+            synchronized (MissionJournal.this) {
+              _segments.removeAll(obsolete);
+            }
+            for (Segment segment : obsolete)
+              segment.delete();
+          }
+        }
+      });
+  }
+
+  /**
+   * Flushes the journal and releases its files.
+   */
+  public void close() {
+    _forceFuture.cancel(false);
+    force();
+    synchronized (this) {
+      _closed = true;
+      if (_spare != null) {
+        _spare.delete();
+        _spare = null;
+      }
+      for (Segment segment : _segments) {
+        try {
+          if (segment.channel != null)
+            segment.channel.close();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to close journal segment " + segment.file, e);
+        }
+      }
+    }
+    if (_ownsIo)
+      _io.shutdown();
+  }
+
+  /**
+   * Flushes every segment with unflushed records to disk.
+   */
+  void force() {
+    Segment[] segments;
+    synchronized (this) {
+      segments = _segments.toArray(new Segment[_segments.size()]);
+    }
+    for (Segment segment : segments) {
+      if (segment.dirty && segment.buffer != null) {
+        segment.dirty = false;
+        segment.buffer.force();
+      }
+    }
+  }
+
+  // Moves on to a new segment, taking the one allocated in the background
+  // if it is ready, and starts allocating the next.
+  private void roll() throws IOException {
+    File file = segmentFile(_seq + 1);
+    Segment spare = _spare;
+    _spare = null;
+    if (spare != null && spare.file.renameTo(file)) {
+      _current = track(new Segment(file, spare.channel, spare.buffer));
+    } else {
+      if (spare != null)
+        spare.delete();
+      _current = openSegment(_seq + 1);
+    }
+    prepareSpare();
+  }
+
+  // Allocates a segment on the I/O executor, for the next roll.
+  private void prepareSpare() {
+    if (_spare != null || _preparing || _closed)
+      return;
+    _preparing = true;
+    try {
+      _io.execute(new Runnable() {
+          @Override
+          public void run() {
+            Segment spare = null;
+            try {
+              spare = map(new File(_directory, SPARE_FILE));
+            } catch (IOException e) {
+              logger.log(Level.WARNING, "Failed to allocate journal segment", e);
+            }
+            synchronized (MissionJournal.this) {
+              _preparing = false;
+              if (spare != null && _closed)
+                spare.delete();
+              else
+                _spare = spare;
+            }
+          }
+        });
+    } catch (RejectedExecutionException e) {
+      _preparing = false;
+    }
+  }
+
+  private Segment openSegment(long firstSeq) throws IOException {
+    return track(map(segmentFile(firstSeq)));
+  }
+
+  // Adds a segment to the list, replacing one recovered for the same file,
+  // e.g. an empty tail left by the last run, so it is not deleted twice.
+  private Segment track(Segment segment) {
+    for (Iterator<Segment> i = _segments.iterator(); i.hasNext(); ) {
+      Segment other = i.next();
+      if (other.file.equals(segment.file)) {
+        i.remove();
+        if (other.channel != null && other.channel != segment.channel) {
+          try {
+            other.channel.close();
+          } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to close journal segment " + other.file, e);
+          }
+        }
+      }
+    }
+    _segments.add(segment);
+    return segment;
+  }
+
+  private File segmentFile(long firstSeq) {
+    return new File(_directory, String.format("%s%019d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+  }
+
+  private static Segment map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(SEGMENT_BYTES);
+    FileChannel channel = raf.getChannel();
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+    return new Segment(file, channel, buffer);
+  }
+
+  private File[] listSegments() {
+    File[] files = _directory.listFiles();
+    if (files == null)
+      return new File[0];
+    List<File> segments = new ArrayList<File>();
+    for (File file : files) {
+      if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX))
+        segments.add(file);
+    }
+    File[] sorted = segments.toArray(new File[segments.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private JSONObject readSnapshot() {
+    File file = new File(_directory, SNAPSHOT_FILE);
+    if (!file.exists())
+      return new JSONObject();
+    try {
+      JSONObject snapshot = new JSONObject(new String(Files.readAllBytes(file.toPath()), UTF8));
+      _snapshotSeq = snapshot.getLong("seq");
+      return snapshot.getJSONObject("state");
+    } catch (IOException | JSONException e) {
+      logger.log(Level.WARNING, "Ignoring unreadable mission snapshot " + file, e);
+      return new JSONObject();
+    }
+  }
+
+  private boolean writeSnapshot(long seq, JSONObject state) {
+    // Snapshots are written in order, but never let an older one win.
+    if (seq < _snapshotSeq)
+      return false;
+
+    File file = new File(_directory, SNAPSHOT_FILE);
+    File tmp = new File(_directory, SNAPSHOT_FILE + ".tmp");
+    try {
+      byte[] bytes = new JSONObject().put("seq", seq).put("state", state).toString().getBytes(UTF8);
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(bytes);
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      _snapshotSeq = seq;
+      return true;
+    } catch (IOException | JSONException e) {
+      logger.log(Level.WARNING, "Failed to write mission snapshot " + file, e);
+      return false;
+    }
+  }
+
+  /**
+   * Merges every intact record in a segment that is newer than the snapshot
+   * into the state.
+   *
+   * @return the number of records merged
+   */
+  private int replay(File file, JSONObject state) {
+    ByteBuffer buffer;
+    try {
+      buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read journal segment " + file, e);
+      return 0;
+    }
+
+    int records = 0;
+    while (buffer.remaining() >= HEADER_BYTES) {
+      int length = buffer.getInt();
+      if (length <= 0 || length > buffer.remaining() - HEADER_BYTES + 4)
+        break;
+      int crc = buffer.getInt();
+      long seq = buffer.getLong();
+      int offset = buffer.position();
+      buffer.position(offset + length);
+      if (crc != checksum(seq, buffer.array(), offset, length)) {
+        logger.log(Level.WARNING, "Torn record " + seq + " in journal segment " + file);
+        break;
+      }
+
+      _seq = Math.max(_seq, seq);
+      if (seq <= _snapshotSeq)
+        continue;
+      try {
+        merge(state, new JSONObject(new String(buffer.array(), offset, length, UTF8)));
+        records++;
+      } catch (JSONException e) {
+        logger.log(Level.WARNING, "Skipping malformed record " + seq + " in journal segment " + file, e);
+      }
+    }
+    return records;
+  }
+
+  private int checksum(long seq, byte[] payload, int offset, int length) {
+    for (int i = 0; i < 8; i++)
+      _seqBytes[i] = (byte) (seq >>> (56 - 8 * i));
+    _crc.reset();
+    _crc.update(_seqBytes, 0, 8);
+    _crc.update(payload, offset, length);
+    return (int) _crc.getValue();
+  }
+
+  /**
+   * Overwrites the keys of a state with those present in a record.
+   */
+  static void merge(JSONObject state, JSONObject record) throws JSONException {
+    @SuppressWarnings("unchecked")
+    Iterator<String> keys = record.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      if (!key.equals("c") && !key.equals("t"))
+        state.put(key, record.get(key));
+    }
+  }
+
+  /**
+   * Encodes a pose as [x, y, z, qw, qx, qy, qz, zone, north].
+   */
+  public static JSONArray encodePose(UtmPose utmPose) throws JSONException {
+    double[] p = utmPose.pose.getPosition();
+    double[] q = utmPose.pose.getRotation().getArray();
+    return new JSONArray()
+      .put(p[0]).put(p[1]).put(p[2])
+      .put(q[0]).put(q[1]).put(q[2]).put(q[3])
+      .put(utmPose.origin.zone).put(utmPose.origin.isNorth);
+  }
+
+  public static UtmPose decodePose(JSONArray a) throws JSONException {
+    Pose3D pose = new Pose3D(new double[]{a.getDouble(0), a.getDouble(1), a.getDouble(2)},
+                             new double[]{a.getDouble(3), a.getDouble(4), a.getDouble(5), a.getDouble(6)});
+    return new UtmPose(pose, new Utm(a.getInt(7), a.getBoolean(8)));
+  }
+
+  public static JSONArray encodePoses(UtmPose[] poses) throws JSONException {
+    JSONArray a = new JSONArray();
+    for (UtmPose pose : poses)
+      a.put(encodePose(pose));
+    return a;
+  }
+
+  public static UtmPose[] decodePoses(JSONArray a) throws JSONException {
+    UtmPose[] poses = new UtmPose[a.length()];
+    for (int i = 0; i < poses.length; i++)
+      poses[i] = decodePose(a.getJSONArray(i));
+    return poses;
+  }
+
+  public static JSONArray encodeArray(double[] values) throws JSONException {
+    JSONArray a = new JSONArray();
+    for (double value : values)
+      a.put(value);
+    return a;
+  }
+
+  public static double[] decodeArray(JSONArray a) throws JSONException {
+    double[] values = new double[a.length()];
+    for (int i = 0; i < values.length; i++)
+      values[i] = a.getDouble(i);
+    return values;
+  }
+}
@@ -0,0 +1,538 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * A reusable NMEA 0183 sentence parser that scans fields in place, without
+ * allocating.
+ * <p/>
+ * A sentence is copied into an internal buffer, its checksum is verified and
+ * the positions of its fields are recorded.  Fields are then read through
+ * typed accessors that parse numbers directly from the buffer.  Field 0 is the
+ * address, e.g. "SDDBT", and the data fields are numbered from 1.
+ * <p/>
+ * Sentences are recognized by their formatter regardless of talker, so
+ * "$GPGGA" and "$GNGGA" are both {@link Type#GGA}.  Proprietary "$PGO"
+ * sentences from the BlueBox are {@link Type#PGO}.
+ * <p/>
+ * A parser is not thread-safe; use one per thread.
+ */
+public class NmeaParser {
+
+  /**
+   * Longest sentence accepted.  Standard sentences are at most 82
+   * characters, but proprietary ones are often longer.
+   */
+  public static final int MAX_LENGTH = 256;
+  public static final int MAX_FIELDS = 40;
+
+  /**
+   * Conversion from knots to meters per second.
+   */
+  public static final double KNOTS_TO_MPS = 1852.0 / 3600.0;
+
+  /**
+   * The sentences with typed accessors.
+   */
+  public enum Type {
+    /** Depth below transducer. */
+    DBT,
+    /** Mean water temperature. */
+    MTW,
+    /** GPS fix data. */
+    GGA,
+    /** Recommended minimum GPS data. */
+    RMC,
+    /** Course and speed over ground. */
+    VTG,
+    /** True heading. */
+    HDT,
+    /** Go Systemes BlueBox proprietary sensor data. */
+    PGO,
+    /** Any other well-formed sentence. */
+    UNKNOWN
+  }
+
+  private static final Type[] TYPES = Type.values();
+  private static final double[] POW10 = new double[19];
+  static {
+    POW10[0] = 1.0;
+    for (int i = 1; i < POW10.length; i++)
+      POW10[i] = POW10[i - 1] * 10.0;
+  }
+
+  private final char[] _buffer = new char[MAX_LENGTH];
+  private final int[] _start = new int[MAX_FIELDS];
+  private final int[] _end = new int[MAX_FIELDS];
+  private int _numFields = 0;
+  private Type _type = null;
+  private boolean _requireChecksum;
+
+  /**
+   * Creates a parser that rejects sentences without a checksum.
+   */
+  public NmeaParser() {
+    this(true);
+  }
+
+  /**
+   * @param requireChecksum if false, sentences without a "*hh" checksum are
+   *                        accepted; a checksum that is present is always
+   *                        verified
+   */
+  public NmeaParser(boolean requireChecksum) {
+    _requireChecksum = requireChecksum;
+  }
+
+  public void setRequireChecksum(boolean requireChecksum) {
+    _requireChecksum = requireChecksum;
+  }
+
+  /**
+   * Parses a sentence, e.g. "$SDDBT,10.5,f,3.2,M,1.7,F*3B".  Trailing
+   * whitespace and line endings are ignored.
+   *
+   * @return the type of the sentence, or null if it is malformed, too long
+   * or fails its checksum
+   */
+  public Type parse(String sentence) {
+    int length = trimmedLength(sentence);
+    if (length > MAX_LENGTH)
+      return invalid();
+    sentence.getChars(0, length, _buffer, 0);
+    return scan(length);
+  }
+
+  /**
+   * Parses a sentence from a buffer of ASCII bytes.
+   *
+   * @see #parse(String)
+   */
+  public Type parse(byte[] bytes, int offset, int length) {
+    while (length > 0 && bytes[offset + length - 1] <= ' ')
+      length--;
+    if (length > MAX_LENGTH)
+      return invalid();
+    for (int i = 0; i < length; i++)
+      _buffer[i] = (char) (bytes[offset + i] & 0xFF);
+    return scan(length);
+  }
+
+  /**
+   * Returns the type of the last sentence parsed, or null if it was invalid.
+   */
+  public Type getType() {
+    return _type;
+  }
+
+  /**
+   * Returns the number of fields, including the address.
+   */
+  public int getFieldCount() {
+    return _numFields;
+  }
+
+  public boolean isEmpty(int field) {
+    return field >= _numFields || _start[field] == _end[field];
+  }
+
+  /**
+   * Returns the first character of a field, or 0 if it is empty.
+   */
+  public char getChar(int field) {
+    return isEmpty(field) ? 0 : _buffer[_start[field]];
+  }
+
+  /**
+   * Returns true if a field is exactly the given text.
+   */
+  public boolean fieldEquals(int field, String text) {
+    if (field >= _numFields || _end[field] - _start[field] != text.length())
+      return false;
+    for (int i = 0, j = _start[field]; i < text.length(); i++, j++) {
+      if (_buffer[j] != text.charAt(i))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns a field as a string.  This allocates, so it is meant for
+   * logging and error messages.
+   */
+  public String getString(int field) {
+    return (field >= _numFields) ? "" : new String(_buffer, _start[field], _end[field] - _start[field]);
+  }
+
+  /**
+   * Returns the sentence as a string, for logging and error messages.
+   */
+  public String getSentence() {
+    return (_numFields == 0) ? "" : new String(_buffer, 0, _end[_numFields - 1]);
+  }
+
+  /**
+   * Parses a decimal field, e.g. "-12.345".
+   *
+   * @return the value, or NaN if the field is empty or not a number
+   */
+  public double getDouble(int field) {
+    if (isEmpty(field))
+      return Double.NaN;
+
+    int i = _start[field];
+    int end = _end[field];
+    boolean negative = false;
+    if (_buffer[i] == '-' || _buffer[i] == '+') {
+      negative = (_buffer[i] == '-');
+      i++;
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int decimals = -1;
+    for (; i < end; i++) {
+      char c = _buffer[i];
+      if (c >= '0' && c <= '9') {
+        // Digits beyond the precision of a double are dropped.
+        if (digits < 18) {
+          mantissa = mantissa * 10 + (c - '0');
+          digits++;
+          if (decimals >= 0)
+            decimals++;
+        } else if (decimals < 0) {
+          return Double.NaN;
+        }
+      } else if (c == '.' && decimals < 0) {
+        decimals = 0;
+      } else {
+        return Double.NaN;
+      }
+    }
+    if (digits == 0)
+      return Double.NaN;
+
+    // Dividing two exactly representable values rounds correctly.
+    double value = (decimals > 0) ? mantissa / POW10[decimals] : mantissa;
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parses an integer field.
+   *
+   * @return the value, or the default if the field is empty or not an integer
+   */
+  public int getInt(int field, int defaultValue) {
+    if (isEmpty(field))
+      return defaultValue;
+    int value = 0;
+    for (int i = _start[field]; i < _end[field]; i++) {
+      char c = _buffer[i];
+      if (c < '0' || c > '9')
+        return defaultValue;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * Parses an angle in "dddmm.mmmm" format, with the hemisphere (N, S, E or
+   * W) in the following field.
+   *
+   * @return the angle in decimal degrees, negative to the south and west, or
+   * NaN if either field is missing
+   */
+  public double getDegrees(int field) {
+    double value = getDouble(field);
+    char hemisphere = getChar(field + 1);
+    if (Double.isNaN(value) || hemisphere == 0)
+      return Double.NaN;
+    double degrees = Math.floor(value / 100.0);
+    degrees += (value - degrees * 100.0) / 60.0;
+    return (hemisphere == 'S' || hemisphere == 'W') ? -degrees : degrees;
+  }
+
+  /**
+   * Parses a time in "hhmmss.ss" format.
+   *
+   * @return seconds since midnight UTC, or NaN if the field is malformed
+   */
+  public double getTimeOfDay(int field) {
+    double value = getDouble(field);
+    if (Double.isNaN(value))
+      return Double.NaN;
+    int hhmmss = (int) value;
+    return (hhmmss / 10000) * 3600 + ((hhmmss / 100) % 100) * 60 + (value - (hhmmss / 100) * 100);
+  }
+
+  // Typed accessors.  Each returns NaN (or a default) if the last sentence
+  // was not of a type that carries the value.
+
+  /**
+   * Depth below the transducer in meters, from DBT.
+   */
+  public double getDepth() {
+    return (_type == Type.DBT) ? getDouble(3) : Double.NaN;
+  }
+
+  /**
+   * Water temperature in degrees Celsius, from MTW.
+   */
+  public double getWaterTemperature() {
+    return (_type == Type.MTW) ? getDouble(1) : Double.NaN;
+  }
+
+  /**
+   * Latitude in decimal degrees, from GGA or RMC.
+   */
+  public double getLatitude() {
+    if (_type == Type.GGA)
+      return getDegrees(2);
+    if (_type == Type.RMC)
+      return getDegrees(3);
+    return Double.NaN;
+  }
+
+  /**
+   * Longitude in decimal degrees, from GGA or RMC.
+   */
+  public double getLongitude() {
+    if (_type == Type.GGA)
+      return getDegrees(4);
+    if (_type == Type.RMC)
+      return getDegrees(5);
+    return Double.NaN;
+  }
+
+  /**
+   * Time of the fix in seconds since midnight UTC, from GGA or RMC.
+   */
+  public double getFixTime() {
+    return (_type == Type.GGA || _type == Type.RMC) ? getTimeOfDay(1) : Double.NaN;
+  }
+
+  /**
+   * Returns true if a GGA or RMC sentence reports a valid position fix.
+   */
+  public boolean hasFix() {
+    if (_type == Type.GGA)
+      return getFixQuality() > 0 && !Double.isNaN(getLatitude()) && !Double.isNaN(getLongitude());
+    if (_type == Type.RMC)
+      return getChar(2) == 'A' && !Double.isNaN(getLatitude()) && !Double.isNaN(getLongitude());
+    return false;
+  }
+
+  /**
+   * GPS fix quality from GGA: 0 invalid, 1 GPS, 2 DGPS, 4 RTK fixed, 5 RTK
+   * float.  Returns 0 for other sentences.
+   */
+  public int getFixQuality() {
+    return (_type == Type.GGA) ? getInt(6, 0) : 0;
+  }
+
+  /**
+   * Number of satellites in use, from GGA, or 0.
+   */
+  public int getSatellites() {
+    return (_type == Type.GGA) ? getInt(7, 0) : 0;
+  }
+
+  /**
+   * Horizontal dilution of precision, from GGA.
+   */
+  public double getHdop() {
+    return (_type == Type.GGA) ? getDouble(8) : Double.NaN;
+  }
+
+  /**
+   * Altitude above mean sea level in meters, from GGA.
+   */
+  public double getAltitude() {
+    return (_type == Type.GGA) ? getDouble(9) : Double.NaN;
+  }
+
+  /**
+   * Speed over ground in meters per second, from RMC or VTG.
+   */
+  public double getSpeed() {
+    if (_type == Type.RMC)
+      return getDouble(7) * KNOTS_TO_MPS;
+    if (_type == Type.VTG)
+      return getDouble(5) * KNOTS_TO_MPS;
+    return Double.NaN;
+  }
+
+  /**
+   * True course over ground in degrees, from RMC or VTG.
+   */
+  public double getCourse() {
+    if (_type == Type.RMC)
+      return getDouble(8);
+    if (_type == Type.VTG)
+      return getDouble(1);
+    return Double.NaN;
+  }
+
+  /**
+   * True heading in degrees, from HDT.
+   */
+  public double getHeading() {
+    return (_type == Type.HDT) ? getDouble(1) : Double.NaN;
+  }
+
+  /**
+   * Returns true if a PGO sentence carries the named BlueBox probe, e.g.
+   * "Oxygen".
+   */
+  public boolean isProbe(String name) {
+    return _type == Type.PGO && fieldEquals(4, name);
+  }
+
+  /**
+   * The probe value from a PGO sentence.
+   */
+  public double getProbeValue() {
+    return (_type == Type.PGO) ? getDouble(5) : Double.NaN;
+  }
+
+  private Type invalid() {
+    _numFields = 0;
+    _type = null;
+    return null;
+  }
+
+  private static int trimmedLength(String s) {
+    int length = s.length();
+    while (length > 0 && s.charAt(length - 1) <= ' ')
+      length--;
+    return length;
+  }
+
+  private Type scan(int length) {
+    if (length < 7 || (_buffer[0] != '$' && _buffer[0] != '!'))
+      return invalid();
+
+    // Split fields and accumulate the checksum up to the '*'.
+    int checksum = 0;
+    int star = -1;
+    int fields = 0;
+    int start = 1;
+    for (int i = 1; i < length; i++) {
+      char c = _buffer[i];
+      if (c == '*') {
+        star = i;
+        break;
+      }
+      checksum ^= c;
+      if (c == ',') {
+        if (fields == MAX_FIELDS - 1)
+          return invalid();
+        _start[fields] = start;
+        _end[fields] = i;
+        fields++;
+        start = i + 1;
+      }
+    }
+    int end = (star >= 0) ? star : length;
+    _start[fields] = start;
+    _end[fields] = end;
+    fields++;
+
+    if (star >= 0) {
+      if (star + 3 != length)
+        return invalid();
+      int hi = hexValue(_buffer[star + 1]);
+      int lo = hexValue(_buffer[star + 2]);
+      if (hi < 0 || lo < 0 || ((hi << 4) | lo) != checksum)
+        return invalid();
+    } else if (_requireChecksum) {
+      return invalid();
+    }
+
+    _numFields = fields;
+    _type = classify();
+    return _type;
+  }
+
+  private Type classify() {
+    int start = _start[0];
+    int length = _end[0] - start;
+    if (length >= 3 && _buffer[start] == 'P' && _buffer[start + 1] == 'G' && _buffer[start + 2] == 'O')
+      return Type.PGO;
+    if (length != 5)
+      return Type.UNKNOWN;
+
+    // Standard sentences have a two letter talker and a three letter formatter.
+    for (Type type : TYPES) {
+      String name = type.name();
+      if (type != Type.PGO && type != Type.UNKNOWN
+          && _buffer[start + 2] == name.charAt(0)
+          && _buffer[start + 3] == name.charAt(1)
+          && _buffer[start + 4] == name.charAt(2))
+        return type;
+    }
+    return Type.UNKNOWN;
+  }
+
+  private static int hexValue(char c) {
+    if (c >= '0' && c <= '9')
+      return c - '0';
+    if (c >= 'A' && c <= 'F')
+      return c - 'A' + 10;
+    if (c >= 'a' && c <= 'f')
+      return c - 'a' + 10;
+    return -1;
+  }
+
+  /**
+   * Benchmarks parsing a mix of sentences and reports the time and heap
+   * allocation per sentence.
+   */
+  public static void main(String[] args) {
+    final int iterations = 5000000;
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+
+    String[] sentences = {
+      withChecksum("$SDDBT,35.4,f,10.8,M,5.9,F"),
+      withChecksum("$SDMTW,18.5,C"),
+      withChecksum("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,"),
+      withChecksum("$GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W"),
+      withChecksum("$GPVTG,054.7,T,034.4,M,005.5,N,010.2,K"),
+      withChecksum("$HEHDT,274.07,T"),
+      "$PGO00,1,2,3,Oxygen,8.25"
+    };
+
+    NmeaParser parser = new NmeaParser(false);
+    double sum = 0;
+    for (int round = 0; round < 2; round++) {
+      long bytes = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        Type type = parser.parse(sentences[i % sentences.length]);
+        if (type == Type.DBT)
+          sum += parser.getDepth();
+        else if (type == Type.GGA || type == Type.RMC)
+          sum += parser.getLatitude() + parser.getLongitude();
+        else if (type == Type.PGO)
+          sum += parser.getProbeValue();
+      }
+      long elapsed = System.nanoTime() - start;
+      bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+      // The first round warms up the JIT.
+      if (round == 1)
+        System.out.println(String.format("%6.1f ns/sentence  %.4f bytes/sentence  (%f)",
+            (double) elapsed / iterations, (double) bytes / iterations, sum));
+    }
+  }
+
+  /**
+   * Appends the checksum to a sentence.
+   */
+  static String withChecksum(String sentence) {
+    int checksum = 0;
+    for (int i = 1; i < sentence.length(); i++)
+      checksum ^= sentence.charAt(i);
+    return String.format("%s*%02X", sentence, checksum);
+  }
+}
@@ -0,0 +1,140 @@
+import com.platypus.crw.data.UtmPose;
+
+/**
+ * The recent poses of the vehicle, as estimated by its filter, kept in a
+ * fixed-size ring of primitive arrays so that anything timestamped in the
+ * recent past can be placed where the vehicle was at the time.
+ * <p/>
+ * Poses are looked up by binary search and interpolated linearly, with the
+ * heading taking the shorter way around.  Poses on either side of a UTM zone
+ * boundary are not interpolated; the nearer one is used.  A time after the
+ * latest pose is extrapolated from the last two, for at most
+ * {@link #MAX_EXTRAPOLATION_MS}; a time before the oldest pose takes the
+ * oldest.
+ */
+public class PoseHistory {
+
+  /**
+   * Longest interval past the latest pose that is extrapolated.
+   */
+  public static final long MAX_EXTRAPOLATION_MS = 2 * VehicleServerImpl.UPDATE_INTERVAL_MS;
+
+  private final int _capacity;
+  private final long[] _times;
+  private final double[] _x;
+  private final double[] _y;
+  private final double[] _z;
+  private final double[] _yaw;
+  private final int[] _zone;
+  private final boolean[] _north;
+  private int _head = 0;
+  private int _size = 0;
+
+  public PoseHistory(int capacity) {
+    _capacity = Math.max(2, capacity);
+    _times = new long[_capacity];
+    _x = new double[_capacity];
+    _y = new double[_capacity];
+    _z = new double[_capacity];
+    _yaw = new double[_capacity];
+    _zone = new int[_capacity];
+    _north = new boolean[_capacity];
+  }
+
+  public synchronized int size() {
+    return _size;
+  }
+
+  /**
+   * Records the pose at a time.  A pose older than the latest one is
+   * ignored.
+   */
+  public synchronized void record(long time, UtmPose pose) {
+    if (_size > 0 && time < _times[physical(_size - 1)])
+      return;
+
+    _times[_head] = time;
+    _x[_head] = pose.pose.getX();
+    _y[_head] = pose.pose.getY();
+    _z[_head] = pose.pose.getZ();
+    _yaw[_head] = pose.pose.getRotation().toYaw();
+    _zone[_head] = pose.origin.zone;
+    _north[_head] = pose.origin.isNorth;
+
+    _head = (_head + 1) % _capacity;
+    if (_size < _capacity)
+      _size++;
+  }
+
+  /**
+   * Places a reading where the vehicle was at its time.
+   *
+   * @return false, leaving the reading unlocated, if there are no poses yet
+   */
+  public synchronized boolean locate(GeoSensorData reading) {
+    if (_size == 0)
+      return false;
+
+    long time = reading.time;
+    int a, b;
+    int upper = upperBound(time);
+    if (upper == 0) {
+      a = b = 0;
+    } else if (upper == _size) {
+      // Past the latest pose, extrapolate from the last two.
+      a = Math.max(0, _size - 2);
+      b = _size - 1;
+      time = Math.min(time, _times[physical(b)] + MAX_EXTRAPOLATION_MS);
+    } else {
+      a = upper - 1;
+      b = upper;
+    }
+
+    int pa = physical(a);
+    int pb = physical(b);
+    long span = _times[pb] - _times[pa];
+    double t = (span > 0) ? (double) (time - _times[pa]) / span : 1.0;
+
+    if (_zone[pa] != _zone[pb] || _north[pa] != _north[pb]) {
+      int p = (t < 0.5) ? pa : pb;
+      reading.setLocation(_x[p], _y[p], _z[p], _yaw[p], _zone[p], _north[p]);
+    } else {
+      double dyaw = Math.IEEEremainder(_yaw[pb] - _yaw[pa], 2 * Math.PI);
+      reading.setLocation(_x[pa] + t * (_x[pb] - _x[pa]),
+                          _y[pa] + t * (_y[pb] - _y[pa]),
+                          _z[pa] + t * (_z[pb] - _z[pa]),
+                          Math.IEEEremainder(_yaw[pa] + t * dyaw, 2 * Math.PI),
+                          _zone[pa], _north[pa]);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the pose of the vehicle at a time, or null if there are no poses
+   * yet.
+   */
+  public UtmPose poseAt(long time) {
+    GeoSensorData probe = new GeoSensorData();
+    probe.time = time;
+    return locate(probe) ? probe.getPose() : null;
+  }
+
+  // Maps the i-th oldest pose to its position in the arrays.
+  private int physical(int i) {
+    return (_head - _size + i + _capacity) % _capacity;
+  }
+
+  // Returns the index of the oldest pose after the given time.
+  private int upperBound(long time) {
+    int lo = 0;
+    int hi = _size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (_times[physical(mid)] <= time)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+}
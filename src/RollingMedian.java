@@ -0,0 +1,233 @@
+/**
+ * The median and median absolute deviation of the last N values of a
+ * stream, updated in O(log N) without allocating.
+ * <p/>
+ * The window is kept both in arrival order, in a ring, and in sorted order,
+ * in an indexable skip list whose nodes live in preallocated primitive
+ * arrays.  Each link records how many values it skips, so the k-th smallest
+ * value is found in O(log N).  The median absolute deviation is the k-th
+ * smallest distance from the median, which is found by binary search over
+ * the two sorted runs of distances below and above the median, in
+ * O(log^2 N).
+ */
+public class RollingMedian {
+
+  private static final int HEAD = 0;
+  private static final int NIL = -1;
+
+  private final int _window;
+  private final int _levels;
+
+  // Skip list nodes; node 0 is the head.
+  private final double[] _value;
+  private final int[] _next;
+  private final int[] _width;
+  private final int[] _free;
+  private int _numFree;
+  private int _size = 0;
+
+  // Scratch space for updates.
+  private final int[] _chain;
+  private final int[] _steps;
+  private int _random = 0x2545F491;
+
+  // Values in arrival order.
+  private final double[] _ring;
+  private int _head = 0;
+
+  public RollingMedian(int window) {
+    _window = Math.max(1, window);
+    _levels = 33 - Integer.numberOfLeadingZeros(_window);
+
+    int nodes = _window + 1;
+    _value = new double[nodes];
+    _next = new int[nodes * _levels];
+    _width = new int[nodes * _levels];
+    _free = new int[_window];
+    for (int i = 0; i < _window; i++)
+      _free[i] = _window - i;
+    _numFree = _window;
+    for (int l = 0; l < _levels; l++) {
+      _next[l * nodes + HEAD] = NIL;
+      _width[l * nodes + HEAD] = 1;
+    }
+
+    _chain = new int[_levels];
+    _steps = new int[_levels];
+    _ring = new double[_window];
+  }
+
+  public int getWindow() {
+    return _window;
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  /**
+   * Adds a value, evicting the oldest one if the window is full.  NaN is
+   * ignored, since it has no place in the order.
+   */
+  public void add(double value) {
+    if (Double.isNaN(value))
+      return;
+    if (_size == _window)
+      remove(_ring[_head]);
+    insert(value);
+    _ring[_head] = value;
+    _head = (_head + 1) % _window;
+  }
+
+  public void clear() {
+    while (_size > 0)
+      remove(select(0));
+    _head = 0;
+  }
+
+  /**
+   * Returns the k-th smallest value in the window, from 0.
+   */
+  public double select(int k) {
+    int nodes = _window + 1;
+    int x = HEAD;
+    int i = k + 1;
+    for (int l = _levels - 1; l >= 0; l--) {
+      while (_next[l * nodes + x] != NIL && _width[l * nodes + x] <= i) {
+        i -= _width[l * nodes + x];
+        x = _next[l * nodes + x];
+      }
+    }
+    return _value[x];
+  }
+
+  /**
+   * Returns the number of values in the window that are less than a value.
+   */
+  public int rank(double value) {
+    int nodes = _window + 1;
+    int x = HEAD;
+    int rank = 0;
+    for (int l = _levels - 1; l >= 0; l--) {
+      while (_next[l * nodes + x] != NIL && _value[_next[l * nodes + x]] < value) {
+        rank += _width[l * nodes + x];
+        x = _next[l * nodes + x];
+      }
+    }
+    return rank;
+  }
+
+  /**
+   * Returns the median of the window, or NaN if it is empty.
+   */
+  public double median() {
+    if (_size == 0)
+      return Double.NaN;
+    if (_size % 2 == 1)
+      return select(_size / 2);
+    return (select(_size / 2 - 1) + select(_size / 2)) / 2.0;
+  }
+
+  /**
+   * Returns the median absolute deviation of the window from its median, or
+   * NaN if it is empty.
+   */
+  public double mad() {
+    if (_size == 0)
+      return Double.NaN;
+    double median = median();
+    int below = rank(median);
+    if (_size % 2 == 1)
+      return kthDistance(_size / 2, median, below);
+    return (kthDistance(_size / 2 - 1, median, below) + kthDistance(_size / 2, median, below)) / 2.0;
+  }
+
+  // The distances below the median, m - x, increase as x goes down from
+  // index below - 1, and those above, x - m, increase from index below.
+  // Finds the k-th smallest of the two runs by choosing how many come from
+  // the first.
+  private double kthDistance(int k, double median, int below) {
+    int above = _size - below;
+    int lo = Math.max(0, k + 1 - above);
+    int hi = Math.min(k + 1, below);
+    while (lo < hi) {
+      int i = (lo + hi) >>> 1;
+      int j = k + 1 - i;
+      if (median - select(below - 1 - i) < select(below + j - 1) - median)
+        lo = i + 1;
+      else
+        hi = i;
+    }
+    int j = k + 1 - lo;
+    double fromBelow = (lo > 0) ? median - select(below - lo) : Double.NEGATIVE_INFINITY;
+    double fromAbove = (j > 0) ? select(below + j - 1) - median : Double.NEGATIVE_INFINITY;
+    return Math.max(fromBelow, fromAbove);
+  }
+
+  private void insert(double value) {
+    int nodes = _window + 1;
+    int node = _free[--_numFree];
+    _value[node] = value;
+
+    // Find the last node at or before the value on each level.
+    int x = HEAD;
+    int steps = 0;
+    for (int l = _levels - 1; l >= 0; l--) {
+      while (_next[l * nodes + x] != NIL && _value[_next[l * nodes + x]] <= value) {
+        steps += _width[l * nodes + x];
+        x = _next[l * nodes + x];
+      }
+      _chain[l] = x;
+      _steps[l] = steps;
+    }
+
+    int level = randomLevel();
+    for (int l = 0; l < level; l++) {
+      int prev = _chain[l];
+      int skipped = _steps[0] - _steps[l];
+      _next[l * nodes + node] = _next[l * nodes + prev];
+      _next[l * nodes + prev] = node;
+      _width[l * nodes + node] = _width[l * nodes + prev] - skipped;
+      _width[l * nodes + prev] = skipped + 1;
+    }
+    for (int l = level; l < _levels; l++)
+      _width[l * nodes + _chain[l]]++;
+    _size++;
+  }
+
+  private void remove(double value) {
+    int nodes = _window + 1;
+
+    // Find the last node before the value on each level.
+    int x = HEAD;
+    for (int l = _levels - 1; l >= 0; l--) {
+      while (_next[l * nodes + x] != NIL && _value[_next[l * nodes + x]] < value)
+        x = _next[l * nodes + x];
+      _chain[l] = x;
+    }
+    int target = _next[_chain[0]];
+    if (target == NIL || _value[target] != value)
+      return;
+
+    for (int l = 0; l < _levels; l++) {
+      int prev = _chain[l];
+      if (_next[l * nodes + prev] == target) {
+        _width[l * nodes + prev] += _width[l * nodes + target] - 1;
+        _next[l * nodes + prev] = _next[l * nodes + target];
+      } else {
+        _width[l * nodes + prev]--;
+      }
+    }
+    _free[_numFree++] = target;
+    _size--;
+  }
+
+  // Each level is half as likely as the one below, using xorshift so that
+  // no Random is shared or allocated.
+  private int randomLevel() {
+    _random ^= _random << 13;
+    _random ^= _random >>> 17;
+    _random ^= _random << 5;
+    return Math.min(_levels, 1 + Integer.numberOfTrailingZeros(_random | (1 << 30)));
+  }
+}
@@ -0,0 +1,914 @@
+import com.platypus.crw.VehicleServer.SensorType;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent store of every sensor reading, kept on the vehicle so that
+ * past readings can be queried by time without parsing the log files.
+ * <p/>
+ * Each series (one sensor type on one channel) is kept in three tiers: the
+ * raw readings, and their mean, minimum and maximum over each second and
+ * each minute.  Each tier of a series is split into time partitions, one
+ * file each:
+ * <pre>
+ *     archive/[vehicle]/[tier]/[channel]-[TYPE]/[partition start].col
+ * </pre>
+ * Files are only ever appended to, in blocks of up to {@link #BLOCK_ROWS}
+ * rows.  Within a block the values are stored column by column, so a query
+ * reads only the blocks whose time span overlaps it.  A block is framed as:
+ * <pre>
+ *     [int magic][int rows][int width][int flags][long first][long last]
+ *     [int payload length][int crc32][payload]
+ * </pre>
+ * and a block torn by a power loss reads as the end of its file.
+ * <p/>
+ * Each tier has a budget of disk space.  When a tier exceeds it, or the card
+ * runs low on space, its oldest partitions are deleted, so the coarse tiers
+ * outlive the raw readings.  All file I/O runs on a background thread of its
+ * own.
+ */
+public class SensorArchive {
+
+  private static final Logger logger = Logger.getLogger(SensorArchive.class.getName());
+
+  /**
+   * Directory under which each vehicle keeps its archive.
+   */
+  public static final File DIRECTORY = new File("platypus", "archive");
+
+  public static final String ENABLED_PREF = "pref_sensor_archive_enabled";
+  public static final String FLUSH_PREF = "pref_sensor_archive_flush_ms";
+  public static final String RESERVE_PREF = "pref_sensor_archive_reserve_mb";
+
+  public static final long DEFAULT_FLUSH_MS = 10000;
+  public static final long DEFAULT_RESERVE_MB = 256;
+
+  /**
+   * Largest number of rows written as one block.
+   */
+  public static final int BLOCK_ROWS = 256;
+
+  private static final long HOUR_MS = 3600000L;
+  private static final long DAY_MS = 24 * HOUR_MS;
+  private static final int MAGIC = 0x50534131;
+  private static final int FLAG_AGGREGATE = 1;
+  private static final int HEADER_BYTES = 40;
+  private static final String SUFFIX = ".col";
+  private static final int NUM_TYPES = SensorType.values().length;
+
+  /**
+   * The resolutions at which readings are kept.
+   */
+  public enum Tier {
+    RAW("raw", 0, HOUR_MS, 1024),
+    SECOND("1s", 1000, DAY_MS, 256),
+    MINUTE("1m", 60000, 30 * DAY_MS, 64);
+
+    /**
+     * Name of the directory of the tier.
+     */
+    public final String directory;
+
+    /**
+     * Interval over which readings are summarized, or zero for raw readings.
+     */
+    public final long bucket;
+
+    /**
+     * Time span of each file.
+     */
+    public final long partition;
+
+    public final long defaultBudgetMb;
+
+    Tier(String directory, long bucket, long partition, long defaultBudgetMb) {
+      this.directory = directory;
+      this.bucket = bucket;
+      this.partition = partition;
+      this.defaultBudgetMb = defaultBudgetMb;
+    }
+
+    /**
+     * Returns the preference holding the disk budget of the tier, in
+     * megabytes.
+     */
+    public String budgetPref() {
+      return "pref_sensor_archive_" + directory + "_mb";
+    }
+
+    boolean isAggregate() {
+      return bucket > 0;
+    }
+  }
+
+  /**
+   * The rows of one tier of a series within a time range, in time order.
+   * Rows of the raw tier have a count of one, and the same array for their
+   * mean, minimum and maximum.
+   */
+  public static class Range {
+    public final Tier tier;
+    public int size = 0;
+    public int width = 0;
+
+    /**
+     * Time of each reading, or start of each interval.
+     */
+    public long[] time = new long[0];
+
+    /**
+     * Number of readings summarized by each row.
+     */
+    public int[] count = new int[0];
+
+    /**
+     * Where the vehicle was, on average, when the readings arrived.  The
+     * zone of a row is 0 if none of its readings was located.
+     */
+    public double[] easting = new double[0];
+    public double[] northing = new double[0];
+    public int[] zone = new int[0];
+    public boolean[] isNorth = new boolean[0];
+
+    /**
+     * Statistics of each value, indexed by value and then by row.
+     */
+    public double[][] mean = new double[0][];
+    public double[][] min = new double[0][];
+    public double[][] max = new double[0][];
+
+    Range(Tier tier) {
+      this.tier = tier;
+    }
+
+    // Makes room for more rows of a given width.  Rows of different widths
+    // (after a sensor is replaced) are padded with NaN.
+    void ensure(int rows, int width) {
+      if (width > this.width) {
+        mean = Arrays.copyOf(mean, width);
+        min = tier.isAggregate() ? Arrays.copyOf(min, width) : mean;
+        max = tier.isAggregate() ? Arrays.copyOf(max, width) : mean;
+        for (int i = this.width; i < width; i++) {
+          mean[i] = nans(time.length);
+          if (tier.isAggregate()) {
+            min[i] = nans(time.length);
+            max[i] = nans(time.length);
+          }
+        }
+        this.width = width;
+      }
+
+      int needed = size + rows;
+      if (needed <= time.length)
+        return;
+      int capacity = Math.max(needed, 2 * time.length);
+      time = Arrays.copyOf(time, capacity);
+      count = Arrays.copyOf(count, capacity);
+      easting = Arrays.copyOf(easting, capacity);
+      northing = Arrays.copyOf(northing, capacity);
+      zone = Arrays.copyOf(zone, capacity);
+      isNorth = Arrays.copyOf(isNorth, capacity);
+      for (int i = 0; i < this.width; i++) {
+        mean[i] = grow(mean[i], capacity);
+        if (tier.isAggregate()) {
+          min[i] = grow(min[i], capacity);
+          max[i] = grow(max[i], capacity);
+        }
+      }
+    }
+
+    private static double[] nans(int length) {
+      double[] values = new double[length];
+      Arrays.fill(values, Double.NaN);
+      return values;
+    }
+
+    private static double[] grow(double[] values, int capacity) {
+      int length = values.length;
+      values = Arrays.copyOf(values, capacity);
+      Arrays.fill(values, length, capacity, Double.NaN);
+      return values;
+    }
+  }
+
+  // Rows waiting to be written, all in the same partition of one tier.
+  private static class Block {
+    final Tier tier;
+    final int width;
+    final long partition;
+    final long[] time = new long[BLOCK_ROWS];
+    final int[] count = new int[BLOCK_ROWS];
+    final int[] utm = new int[BLOCK_ROWS];
+    final double[] easting = new double[BLOCK_ROWS];
+    final double[] northing = new double[BLOCK_ROWS];
+    final double[][] mean;
+    final double[][] min;
+    final double[][] max;
+    int rows = 0;
+    long created;
+
+    Block(Tier tier, int width, long partition, long created) {
+      this.tier = tier;
+      this.width = width;
+      this.partition = partition;
+      this.created = created;
+      mean = new double[width][BLOCK_ROWS];
+      min = tier.isAggregate() ? new double[width][BLOCK_ROWS] : null;
+      max = tier.isAggregate() ? new double[width][BLOCK_ROWS] : null;
+    }
+
+    int payloadBytes() {
+      int columns = tier.isAggregate() ? 3 * width : width;
+      return rows * (8 + 4 + 4 + 8 + 8 + 8 * columns);
+    }
+  }
+
+  // The readings of a series within the current interval of an aggregate
+  // tier.
+  private static class Bucket {
+    long start = Long.MIN_VALUE;
+    int count = 0;
+    int located = 0;
+    int utm = 0;
+    double easting = 0.0;
+    double northing = 0.0;
+    double[] sum = new double[0];
+    int[] valid = new int[0];
+    double[] min = new double[0];
+    double[] max = new double[0];
+
+    void reset(long start, int width) {
+      this.start = start;
+      count = 0;
+      located = 0;
+      utm = 0;
+      easting = 0.0;
+      northing = 0.0;
+      if (sum.length != width) {
+        sum = new double[width];
+        valid = new int[width];
+        min = new double[width];
+        max = new double[width];
+      }
+      Arrays.fill(sum, 0.0);
+      Arrays.fill(valid, 0);
+      Arrays.fill(min, Double.POSITIVE_INFINITY);
+      Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    }
+  }
+
+  // Everything pending for one series.  Guarded by itself.
+  private static class Series {
+    final String name;
+    final Block[] pending = new Block[Tier.values().length];
+    final Bucket[] buckets = new Bucket[Tier.values().length];
+    int width = -1;
+
+    Series(int channel, SensorType type) {
+      name = channel + "-" + type.name();
+      for (Tier tier : Tier.values())
+        if (tier.isAggregate())
+          buckets[tier.ordinal()] = new Bucket();
+    }
+  }
+
+  // A file of the archive, for enforcing the budgets.
+  private static class Segment {
+    final File file;
+    final long start;
+    long bytes;
+
+    Segment(File file, long start, long bytes) {
+      this.file = file;
+      this.start = start;
+      this.bytes = bytes;
+    }
+  }
+
+  private static final Comparator<Segment> OLDEST_FIRST = new Comparator<Segment>() {
+      @Override
+      public int compare(Segment a, Segment b) {
+        if (a.start != b.start)
+          return (a.start < b.start) ? -1 : 1;
+        return a.file.compareTo(b.file);
+      }
+    };
+
+  private final File _directory;
+  private final long[] _budgets = new long[Tier.values().length];
+  private final long _reserve;
+  private final long _flushMs;
+  private final ScheduledExecutorService _io;
+  private final ClockSync _clock;
+  private final ScheduledFuture<?> _flushFuture;
+  private volatile boolean _closed = false;
+  private final ConcurrentMap<Integer, Series> _series = new ConcurrentHashMap<Integer, Series>();
+
+  // Only used on the I/O thread.
+  private final List<TreeSet<Segment>> _segments = new ArrayList<TreeSet<Segment>>();
+  private final List<Map<File, Segment>> _segmentsByFile = new ArrayList<Map<File, Segment>>();
+  private final long[] _bytes = new long[Tier.values().length];
+  private final CRC32 _crc = new CRC32();
+
+  /**
+   * Opens the archive in a directory, continuing any series left there by a
+   * previous run.
+   *
+   * @param budgetsMb disk budget of each tier, in megabytes, in the order of
+   *                  {@link Tier#values()}
+   * @param reserveMb free space to leave on the card, in megabytes
+   * @param flushMs   longest time a reading waits before it is written
+   * @param io        single-threaded executor for the writes, which may be
+   *                  shared with other archives
+   * @param clock     the timeline the readings are stamped on
+   */
+  public SensorArchive(File directory, long[] budgetsMb, long reserveMb, long flushMs,
+                       ScheduledExecutorService io, ClockSync clock) {
+    _directory = directory;
+    for (int i = 0; i < _budgets.length; i++) {
+      _budgets[i] = budgetsMb[i] << 20;
+      _segments.add(new TreeSet<Segment>(OLDEST_FIRST));
+      _segmentsByFile.add(new HashMap<File, Segment>());
+    }
+    _reserve = reserveMb << 20;
+    _flushMs = flushMs;
+    _io = io;
+    _clock = clock;
+
+    _io.execute(new Runnable() {
+        @Override
+        public void run() {
+          scan();
+        }
+      });
+    _flushFuture = _io.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          flushDue(_clock.now());
+        }
+      }, flushMs, Math.max(1, flushMs / 4), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Opens the archive of a vehicle as configured by its preferences, or
+   * returns null if archiving is disabled.
+   */
+  public static SensorArchive fromPrefs(Preferences prefs, String name,
+                                        ScheduledExecutorService io, ClockSync clock) {
+    if (!prefs.getBoolean(ENABLED_PREF, true))
+      return null;
+    long[] budgets = new long[Tier.values().length];
+    for (Tier tier : Tier.values())
+      budgets[tier.ordinal()] = prefs.getLong(tier.budgetPref(), tier.defaultBudgetMb);
+    return new SensorArchive(new File(DIRECTORY, name.isEmpty() ? "default" : name), budgets,
+                             prefs.getLong(RESERVE_PREF, DEFAULT_RESERVE_MB),
+                             prefs.getLong(FLUSH_PREF, DEFAULT_FLUSH_MS), io, clock);
+  }
+
+  public File getDirectory() {
+    return _directory;
+  }
+
+  /**
+   * Adds a reading to the archive.  Its values are copied, so the reading
+   * may be reused afterwards.
+   */
+  public void append(GeoSensorData reading) {
+    Series series = series(reading.channel, reading.type);
+    double[] data = reading.data;
+    long time = reading.time;
+    int utm = reading.located ? utm(reading.zone, reading.isNorth) : 0;
+
+    synchronized (series) {
+      if (data.length != series.width) {
+        // A different sensor on the channel: close off what the old one left.
+        closeBuckets(series);
+        flush(series);
+        series.width = data.length;
+        for (Bucket bucket : series.buckets)
+          if (bucket != null)
+            bucket.start = Long.MIN_VALUE;
+      }
+
+      Block block = block(series, Tier.RAW, time);
+      int row = block.rows++;
+      block.time[row] = time;
+      block.count[row] = 1;
+      block.utm[row] = utm;
+      block.easting[row] = reading.located ? reading.easting : Double.NaN;
+      block.northing[row] = reading.located ? reading.northing : Double.NaN;
+      for (int i = 0; i < data.length; i++)
+        block.mean[i][row] = data[i];
+      if (block.rows == BLOCK_ROWS)
+        write(series, block);
+
+      for (Tier tier : Tier.values()) {
+        if (!tier.isAggregate())
+          continue;
+        Bucket bucket = series.buckets[tier.ordinal()];
+        long start = time - floorMod(time, tier.bucket);
+        if (bucket.start == Long.MIN_VALUE) {
+          bucket.reset(start, data.length);
+        } else if (start > bucket.start) {
+          closeBucket(series, tier, bucket);
+          bucket.reset(start, data.length);
+        }
+
+        bucket.count++;
+        if (reading.located) {
+          if (bucket.located == 0 || bucket.utm != utm) {
+            bucket.located = 0;
+            bucket.easting = 0.0;
+            bucket.northing = 0.0;
+            bucket.utm = utm;
+          }
+          bucket.located++;
+          bucket.easting += (reading.easting - bucket.easting) / bucket.located;
+          bucket.northing += (reading.northing - bucket.northing) / bucket.located;
+        }
+        for (int i = 0; i < data.length; i++) {
+          double value = data[i];
+          if (Double.isNaN(value))
+            continue;
+          bucket.valid[i]++;
+          bucket.sum[i] += value;
+          bucket.min[i] = Math.min(bucket.min[i], value);
+          bucket.max[i] = Math.max(bucket.max[i], value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the rows of one tier of a series within a time range, including
+   * every reading appended before the call.  The intervals of the summary
+   * tiers are only written once they are over.
+   *
+   * @param from earliest time, inclusive
+   * @param to   latest time, exclusive
+   */
+  public Range query(int channel, SensorType type, final Tier tier, final long from, final long to)
+    throws IOException {
+    final Series series = series(channel, type);
+    synchronized (series) {
+      Block block = series.pending[tier.ordinal()];
+      if (block != null)
+        write(series, block);
+    }
+
+    // Writes are applied in order, so this runs after the ones above.
+    Future<Range> result = _io.submit(new Callable<Range>() {
+        @Override
+        public Range call() throws IOException {
+          return read(series, tier, from, to);
+        }
+      });
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while querying " + series.name, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException("Failed to query " + series.name, e.getCause());
+    }
+  }
+
+  /**
+   * Returns the number of bytes used by a tier.
+   */
+  public long getBytes(final Tier tier) {
+    try {
+      return _io.submit(new Callable<Long>() {
+          @Override
+          public Long call() {
+            return _bytes[tier.ordinal()];
+          }
+        }).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return -1;
+    } catch (ExecutionException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Writes everything pending, including the unfinished summary intervals,
+   * and waits for the writes.  The I/O executor is left running for the
+   * other archives sharing it.
+   */
+  public void close() {
+    _flushFuture.cancel(false);
+    for (Series series : _series.values()) {
+      synchronized (series) {
+        closeBuckets(series);
+        flush(series);
+      }
+    }
+    _closed = true;
+
+    // Writes are applied in order, so this finishes after the ones above.
+    try {
+      _io.submit(new Runnable() {
+          @Override
+          public void run() {
+          }
+        }).get(5, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      logger.log(Level.WARNING, "Timed out writing the sensor archive");
+    } catch (ExecutionException e) {
+      logger.log(Level.WARNING, "Failed to write the sensor archive", e.getCause());
+    } catch (RejectedExecutionException e) {
+      logger.log(Level.WARNING, "Sensor archive executor stopped before it was closed");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Series series(int channel, SensorType type) {
+    Integer key = channel * NUM_TYPES + type.ordinal();
+    Series series = _series.get(key);
+    if (series == null) {
+      Series created = new Series(channel, type);
+      series = _series.putIfAbsent(key, created);
+      if (series == null)
+        series = created;
+    }
+    return series;
+  }
+
+  // Returns the pending block of a tier that a row at a time belongs in,
+  // writing out the previous one if it covers another partition.
+  private Block block(Series series, Tier tier, long time) {
+    long partition = time - floorMod(time, tier.partition);
+    Block block = series.pending[tier.ordinal()];
+    if (block != null && block.partition != partition) {
+      write(series, block);
+      block = null;
+    }
+    if (block == null) {
+      block = new Block(tier, series.width, partition, _clock.now());
+      series.pending[tier.ordinal()] = block;
+    }
+    return block;
+  }
+
+  private void closeBuckets(Series series) {
+    for (Tier tier : Tier.values()) {
+      Bucket bucket = series.buckets[tier.ordinal()];
+      if (bucket != null && bucket.start != Long.MIN_VALUE && bucket.count > 0)
+        closeBucket(series, tier, bucket);
+      if (bucket != null)
+        bucket.start = Long.MIN_VALUE;
+    }
+  }
+
+  private void closeBucket(Series series, Tier tier, Bucket bucket) {
+    Block block = block(series, tier, bucket.start);
+    int row = block.rows++;
+    block.time[row] = bucket.start;
+    block.count[row] = bucket.count;
+    block.utm[row] = (bucket.located > 0) ? bucket.utm : 0;
+    block.easting[row] = (bucket.located > 0) ? bucket.easting : Double.NaN;
+    block.northing[row] = (bucket.located > 0) ? bucket.northing : Double.NaN;
+    for (int i = 0; i < block.width; i++) {
+      boolean any = (i < bucket.valid.length && bucket.valid[i] > 0);
+      block.mean[i][row] = any ? bucket.sum[i] / bucket.valid[i] : Double.NaN;
+      block.min[i][row] = any ? bucket.min[i] : Double.NaN;
+      block.max[i][row] = any ? bucket.max[i] : Double.NaN;
+    }
+    if (block.rows == BLOCK_ROWS)
+      write(series, block);
+  }
+
+  private void flush(Series series) {
+    for (Block block : series.pending)
+      if (block != null)
+        write(series, block);
+  }
+
+  // Writes out the pending blocks that have waited long enough.
+  private void flushDue(long now) {
+    for (Series series : _series.values()) {
+      synchronized (series) {
+        for (Block block : series.pending)
+          if (block != null && now - block.created >= _flushMs)
+            write(series, block);
+      }
+    }
+  }
+
+  // Hands a block to the I/O thread.  Called with the series locked.
+  private void write(final Series series, final Block block) {
+    if (series.pending[block.tier.ordinal()] == block)
+      series.pending[block.tier.ordinal()] = null;
+    if (block.rows == 0)
+      return;
+    if (_closed) {
+      logger.log(Level.WARNING, "Sensor archive is closed, dropping " + block.rows + " rows of " + series.name);
+      return;
+    }
+    try {
+      _io.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              writeBlock(series, block);
+            } catch (IOException e) {
+              logger.log(Level.WARNING, "Failed to write " + block.rows + " rows of " + series.name, e);
+            }
+          }
+        });
+    } catch (RejectedExecutionException e) {
+      logger.log(Level.WARNING, "Sensor archive is closed, dropping " + block.rows + " rows of " + series.name);
+    }
+  }
+
+  private File partitionFile(Series series, Tier tier, long partition) {
+    File directory = new File(new File(_directory, tier.directory), series.name);
+    return new File(directory, partition + SUFFIX);
+  }
+
+  private void writeBlock(Series series, Block block) throws IOException {
+    int rows = block.rows;
+    int payload = block.payloadBytes();
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload);
+    buffer.position(HEADER_BYTES);
+    for (int r = 0; r < rows; r++) buffer.putLong(block.time[r]);
+    for (int r = 0; r < rows; r++) buffer.putInt(block.count[r]);
+    for (int r = 0; r < rows; r++) buffer.putInt(block.utm[r]);
+    for (int r = 0; r < rows; r++) buffer.putDouble(block.easting[r]);
+    for (int r = 0; r < rows; r++) buffer.putDouble(block.northing[r]);
+    for (int i = 0; i < block.width; i++) {
+      for (int r = 0; r < rows; r++) buffer.putDouble(block.mean[i][r]);
+      if (block.tier.isAggregate()) {
+        for (int r = 0; r < rows; r++) buffer.putDouble(block.min[i][r]);
+        for (int r = 0; r < rows; r++) buffer.putDouble(block.max[i][r]);
+      }
+    }
+
+    _crc.reset();
+    _crc.update(buffer.array(), HEADER_BYTES, payload);
+    buffer.position(0);
+    buffer.putInt(MAGIC)
+      .putInt(rows)
+      .putInt(block.width)
+      .putInt(block.tier.isAggregate() ? FLAG_AGGREGATE : 0)
+      .putLong(block.time[0])
+      .putLong(block.time[rows - 1])
+      .putInt(payload)
+      .putInt((int) _crc.getValue());
+
+    File file = partitionFile(series, block.tier, block.partition);
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write(buffer.array());
+    } finally {
+      out.close();
+    }
+
+    int t = block.tier.ordinal();
+    Segment segment = _segmentsByFile.get(t).get(file);
+    if (segment == null) {
+      segment = new Segment(file, block.partition, 0);
+      _segments.get(t).add(segment);
+      _segmentsByFile.get(t).put(file, segment);
+    }
+    segment.bytes += buffer.capacity();
+    _bytes[t] += buffer.capacity();
+    enforceBudgets();
+  }
+
+  // Deletes the oldest partitions of any tier over its budget, and then of
+  // the finest tiers while the card is short of space.
+  private void enforceBudgets() {
+    for (Tier tier : Tier.values()) {
+      while (_bytes[tier.ordinal()] > _budgets[tier.ordinal()] && deleteOldest(tier))
+        ;
+    }
+    for (Tier tier : Tier.values()) {
+      while (_directory.getUsableSpace() < _reserve && deleteOldest(tier))
+        ;
+    }
+  }
+
+  // Deletes the oldest partition of a tier, unless it is the only one left.
+  private boolean deleteOldest(Tier tier) {
+    TreeSet<Segment> segments = _segments.get(tier.ordinal());
+    if (segments.size() <= 1)
+      return false;
+    Segment oldest = segments.pollFirst();
+    _segmentsByFile.get(tier.ordinal()).remove(oldest.file);
+    _bytes[tier.ordinal()] -= oldest.bytes;
+    if (!oldest.file.delete())
+      logger.log(Level.WARNING, "Failed to delete archive partition " + oldest.file);
+    logger.log(Level.INFO, "Deleted archive partition " + oldest.file + " (" + oldest.bytes + " bytes)");
+    return true;
+  }
+
+  // Finds the partitions left by previous runs.
+  private void scan() {
+    for (Tier tier : Tier.values()) {
+      File[] seriesDirectories = new File(_directory, tier.directory).listFiles();
+      if (seriesDirectories == null)
+        continue;
+      for (File seriesDirectory : seriesDirectories) {
+        File[] files = seriesDirectory.listFiles();
+        if (files == null)
+          continue;
+        for (File file : files) {
+          long start = partitionStart(file);
+          if (start == Long.MIN_VALUE)
+            continue;
+          Segment segment = new Segment(file, start, file.length());
+          _segments.get(tier.ordinal()).add(segment);
+          _segmentsByFile.get(tier.ordinal()).put(file, segment);
+          _bytes[tier.ordinal()] += segment.bytes;
+        }
+      }
+    }
+    enforceBudgets();
+  }
+
+  private static long partitionStart(File file) {
+    String name = file.getName();
+    if (!name.endsWith(SUFFIX))
+      return Long.MIN_VALUE;
+    try {
+      return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return Long.MIN_VALUE;
+    }
+  }
+
+  private Range read(Series series, Tier tier, long from, long to) throws IOException {
+    Range range = new Range(tier);
+    File[] files = new File(new File(_directory, tier.directory), series.name).listFiles();
+    if (files == null)
+      return range;
+
+    List<File> partitions = new ArrayList<File>();
+    for (File file : files) {
+      long start = partitionStart(file);
+      if (start != Long.MIN_VALUE && start < to && start + tier.partition > from)
+        partitions.add(file);
+    }
+    Collections.sort(partitions, new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+          long sa = partitionStart(a), sb = partitionStart(b);
+          return (sa < sb) ? -1 : ((sa == sb) ? 0 : 1);
+        }
+      });
+
+    for (File file : partitions)
+      readPartition(file, tier, from, to, range);
+    return range;
+  }
+
+  private void readPartition(File file, Tier tier, long from, long to, Range range) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      byte[] payload = new byte[0];
+      while (true) {
+        int magic, rows, width, flags, length, crc;
+        long first, last;
+        try {
+          magic = in.readInt();
+          rows = in.readInt();
+          width = in.readInt();
+          flags = in.readInt();
+          first = in.readLong();
+          last = in.readLong();
+          length = in.readInt();
+          crc = in.readInt();
+        } catch (EOFException e) {
+          return;
+        }
+        boolean aggregate = (flags & FLAG_AGGREGATE) != 0;
+        if (magic != MAGIC || rows <= 0 || rows > BLOCK_ROWS || width < 0 || aggregate != tier.isAggregate()
+            || length != rows * (8 + 4 + 4 + 8 + 8 + 8 * (aggregate ? 3 * width : width))) {
+          logger.log(Level.WARNING, "Corrupt block in " + file + ", ignoring the rest of it");
+          return;
+        }
+
+        if (last < from || first >= to) {
+          if (!skipFully(in, length))
+            return;
+          continue;
+        }
+
+        if (payload.length < length)
+          payload = new byte[length];
+        try {
+          in.readFully(payload, 0, length);
+        } catch (EOFException e) {
+          return; // torn block
+        }
+        _crc.reset();
+        _crc.update(payload, 0, length);
+        if ((int) _crc.getValue() != crc) {
+          logger.log(Level.WARNING, "Checksum mismatch in " + file + ", ignoring the rest of it");
+          return;
+        }
+        decode(ByteBuffer.wrap(payload, 0, length), rows, width, from, to, range);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static boolean skipFully(InputStream in, long bytes) throws IOException {
+    while (bytes > 0) {
+      long skipped = in.skip(bytes);
+      if (skipped <= 0)
+        return in.read() >= 0 && skipFully(in, bytes - 1);
+      bytes -= skipped;
+    }
+    return true;
+  }
+
+  // Appends the rows of a block within the time range to a result.
+  private static void decode(ByteBuffer buffer, int rows, int width, long from, long to, Range range) {
+    int lo = 0;
+    while (lo < rows && buffer.getLong(8 * lo) < from)
+      lo++;
+    int hi = lo;
+    while (hi < rows && buffer.getLong(8 * hi) < to)
+      hi++;
+    int n = hi - lo;
+    if (n == 0)
+      return;
+
+    range.ensure(n, width);
+    int base = range.size;
+    int offset = 0;
+    for (int r = 0; r < n; r++) range.time[base + r] = buffer.getLong(offset + 8 * (lo + r));
+    offset += 8 * rows;
+    for (int r = 0; r < n; r++) range.count[base + r] = buffer.getInt(offset + 4 * (lo + r));
+    offset += 4 * rows;
+    for (int r = 0; r < n; r++) {
+      int utm = buffer.getInt(offset + 4 * (lo + r));
+      range.zone[base + r] = utm >> 1;
+      range.isNorth[base + r] = (utm & 1) != 0;
+    }
+    offset += 4 * rows;
+    for (int r = 0; r < n; r++) range.easting[base + r] = buffer.getDouble(offset + 8 * (lo + r));
+    offset += 8 * rows;
+    for (int r = 0; r < n; r++) range.northing[base + r] = buffer.getDouble(offset + 8 * (lo + r));
+    offset += 8 * rows;
+    for (int i = 0; i < width; i++) {
+      for (int r = 0; r < n; r++) range.mean[i][base + r] = buffer.getDouble(offset + 8 * (lo + r));
+      offset += 8 * rows;
+      if (range.tier.isAggregate()) {
+        for (int r = 0; r < n; r++) range.min[i][base + r] = buffer.getDouble(offset + 8 * (lo + r));
+        offset += 8 * rows;
+        for (int r = 0; r < n; r++) range.max[i][base + r] = buffer.getDouble(offset + 8 * (lo + r));
+        offset += 8 * rows;
+      }
+    }
+    range.size += n;
+  }
+
+  private static int utm(int zone, boolean isNorth) {
+    return zone * 2 + (isNorth ? 1 : 0);
+  }
+
+  private static long floorMod(long a, long b) {
+    long m = a % b;
+    return (m < 0) ? m + b : m;
+  }
+}
@@ -0,0 +1,17 @@
+import com.platypus.crw.SensorListener;
+import com.platypus.crw.data.SensorData;
+
+/**
+ * A sensor listener that takes the readings of a channel a batch at a time,
+ * e.g. to send them in one packet.  Registered like any other
+ * {@link SensorListener}; listeners that do not implement this interface get
+ * one call per reading.
+ */
+public interface SensorBatchListener extends SensorListener {
+
+  /**
+   * Receives the readings of one channel from a batch, in the order they
+   * were taken.  The array is reused after the call returns.
+   */
+  void receivedSensors(SensorData[] readings, int count);
+}
@@ -0,0 +1,183 @@
+import com.platypus.crw.data.SensorData;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Gathers sensor readings as they are parsed and hands them to the sensor
+ * listeners in batches, so a burst of readings costs one dispatch instead of
+ * one per reading.
+ * <p/>
+ * Readings are flushed once they have waited {@link #DELAY_PREF}
+ * milliseconds (checked by the update loop on every tick), or as soon as
+ * {@link #SIZE_PREF} of them are pending.  Batches are sent to the sink on
+ * the given executor, so a slow listener does not hold up the update loop.
+ * If {@link #COALESCE_PREF} is turned on, a reading replaces a pending one
+ * of the same type from the same channel instead of being queued behind it,
+ * so listeners only get the latest value per tick; this drops readings, so
+ * it is off by default.
+ * <p/>
+ * Pending readings are held in two sets of arrays that are swapped on each
+ * flush, so batching does not allocate.
+ */
+public class SensorBatcher {
+
+  /**
+   * Receives a batch of readings, in the order they were offered.  The
+   * arrays are reused after the call returns.
+   */
+  public interface Sink {
+    void send(int[] channels, SensorData[] readings, int count);
+  }
+
+  public static final String SIZE_PREF = "pref_sensor_batch_size";
+  public static final String DELAY_PREF = "pref_sensor_batch_delay_ms";
+  public static final String COALESCE_PREF = "pref_sensor_batch_coalesce";
+
+  public static final int DEFAULT_SIZE = 32;
+  public static final long DEFAULT_DELAY_MS = 0;
+  public static final boolean DEFAULT_COALESCE = false;
+
+  private final Sink _sink;
+  private final int _maxSize;
+  private final long _maxDelayMs;
+  private final boolean _coalesce;
+  private final Executor _executor;
+
+  private final Object _dispatchLock = new Object();
+  private int[] _channels;
+  private SensorData[] _readings;
+  private int[] _spareChannels;
+  private SensorData[] _spareReadings;
+  private int _count = 0;
+  private long _oldest = 0;
+  private boolean _scheduled = false;
+
+  private long _offered = 0;
+  private long _coalesced = 0;
+  private long _batches = 0;
+
+  /**
+   * @param maxSize number of pending readings that forces a flush
+   * @param maxDelayMs time a reading may wait for the next scheduled flush
+   * @param coalesce if true, a reading replaces a pending one of the same
+   *                 type from the same channel
+   * @param executor sends the batches to the sink, one at a time
+   */
+  public SensorBatcher(Sink sink, int maxSize, long maxDelayMs, boolean coalesce, Executor executor) {
+    _sink = sink;
+    _maxSize = Math.max(1, maxSize);
+    _maxDelayMs = maxDelayMs;
+    _coalesce = coalesce;
+    _executor = executor;
+    _channels = new int[_maxSize];
+    _readings = new SensorData[_maxSize];
+    _spareChannels = new int[_maxSize];
+    _spareReadings = new SensorData[_maxSize];
+  }
+
+  /**
+   * Queues a reading for the next batch, flushing immediately if the batch
+   * is full.
+   */
+  public void offer(int channel, SensorData reading, long now) {
+    boolean full;
+    synchronized (this) {
+      _offered++;
+      if (_coalesce) {
+        for (int i = 0; i < _count; i++) {
+          if (_channels[i] == channel && _readings[i].type == reading.type) {
+            _readings[i] = reading;
+            _coalesced++;
+            return;
+          }
+        }
+      }
+      if (_count == 0)
+        _oldest = now;
+      _channels[_count] = channel;
+      _readings[_count] = reading;
+      _count++;
+      full = (_count == _maxSize);
+    }
+    if (full)
+      schedule();
+  }
+
+  /**
+   * Has the pending readings flushed if the oldest has waited long enough.
+   * Called once per tick by the update loop.
+   */
+  public void flushIfDue(long now) {
+    synchronized (this) {
+      if (_count == 0 || now - _oldest < _maxDelayMs)
+        return;
+    }
+    schedule();
+  }
+
+  private final Runnable _flushTask = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (SensorBatcher.this) {
+          _scheduled = false;
+        }
+        flush();
+      }
+    };
+
+  // Has the executor flush the pending readings, unless it already will.
+  private void schedule() {
+    synchronized (this) {
+      if (_scheduled)
+        return;
+      _scheduled = true;
+    }
+    try {
+      _executor.execute(_flushTask);
+    } catch (RejectedExecutionException e) {
+      // Shutting down; flush() sends what is left.
+      synchronized (this) {
+        _scheduled = false;
+      }
+    }
+  }
+
+  /**
+   * Sends all pending readings to the sink on the calling thread.
+   */
+  public void flush() {
+    synchronized (_dispatchLock) {
+      int[] channels;
+      SensorData[] readings;
+      int count;
+      synchronized (this) {
+        if (_count == 0)
+          return;
+        channels = _channels;
+        readings = _readings;
+        count = _count;
+        _channels = _spareChannels;
+        _readings = _spareReadings;
+        _spareChannels = channels;
+        _spareReadings = readings;
+        _count = 0;
+        _batches++;
+      }
+      try {
+        _sink.send(channels, readings, count);
+      } finally {
+        Arrays.fill(readings, 0, count, null);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of readings offered, the number replaced by a newer
+   * one before being sent, and the number of batches sent.
+   */
+  public synchronized long[] getCounts() {
+    return new long[] { _offered, _coalesced, _batches };
+  }
+}
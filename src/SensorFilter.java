@@ -0,0 +1,194 @@
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cleans up a stream of sensor readings, value by value.
+ * <p/>
+ * A filter is written as comma-separated settings, e.g.
+ * "window=7,hampel=3,ema=0.2":
+ * <ul>
+ *   <li>window: number of recent values in the rolling window (default 7)</li>
+ *   <li>hampel: replace a value with the window median if it lies more than
+ *       this many scaled median absolute deviations from it</li>
+ *   <li>median: output the rolling median instead of the value</li>
+ *   <li>ema: smooth the output exponentially, with this weight on each new
+ *       value</li>
+ * </ul>
+ * The stages are applied in that order.  An empty filter passes values
+ * through unchanged.
+ * <p/>
+ * The filter itself is immutable; the state of each channel it applies to is
+ * kept in a {@link State}.
+ */
+public class SensorFilter {
+
+  private static final Logger logger = Logger.getLogger(SensorFilter.class.getName());
+
+  /**
+   * Scales the median absolute deviation to the standard deviation of
+   * normally distributed values.
+   */
+  public static final double MAD_SCALE = 1.4826;
+
+  public static final int DEFAULT_WINDOW = 7;
+
+  /**
+   * A filter that passes values through unchanged.
+   */
+  public static final SensorFilter NONE = new SensorFilter(DEFAULT_WINDOW, -1.0, false, -1.0);
+
+  public final int window;
+  public final double hampel;
+  public final boolean median;
+  public final double ema;
+
+  public SensorFilter(int window, double hampel, boolean median, double ema) {
+    this.window = Math.max(1, window);
+    this.hampel = hampel;
+    this.median = median;
+    this.ema = ema;
+  }
+
+  /**
+   * Parses a filter, ignoring (with a warning) any setting it does not
+   * understand.
+   */
+  public static SensorFilter parse(String spec) {
+    if (spec == null || spec.trim().isEmpty())
+      return NONE;
+
+    int window = DEFAULT_WINDOW;
+    double hampel = -1.0;
+    boolean median = false;
+    double ema = -1.0;
+    for (String setting : spec.split(",")) {
+      String[] pair = setting.split("=", 2);
+      String key = pair[0].trim().toLowerCase(Locale.US);
+      try {
+        if (key.equals("median")) {
+          median = true;
+          continue;
+        }
+        if (pair.length != 2)
+          throw new IllegalArgumentException("missing value");
+        String value = pair[1].trim();
+        if (key.equals("window"))
+          window = Integer.parseInt(value);
+        else if (key.equals("hampel"))
+          hampel = Double.parseDouble(value);
+        else if (key.equals("ema"))
+          ema = Double.parseDouble(value);
+        else
+          throw new IllegalArgumentException("unknown setting");
+      } catch (IllegalArgumentException e) {
+        logger.log(Level.WARNING, "Ignoring sensor filter setting '" + setting + "' in '" + spec + "': " + e.getMessage());
+      }
+    }
+    return new SensorFilter(window, hampel, median, ema);
+  }
+
+  /**
+   * Returns true if this filter passes values through unchanged.
+   */
+  public boolean isNone() {
+    return hampel < 0 && !median && !(ema > 0 && ema < 1);
+  }
+
+  private boolean usesWindow() {
+    return hampel >= 0 || median;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("window=%d,hampel=%s,median=%b,ema=%s", window, hampel, median, ema);
+  }
+
+  /**
+   * The state of a filter for the readings of one channel.  States are not
+   * thread-safe.
+   */
+  public static class State {
+    private SensorFilter _filter;
+    private RollingMedian[] _windows = new RollingMedian[0];
+    private double[] _smoothed = new double[0];
+    private double[] _output = new double[0];
+    private boolean _started = false;
+    private int _rejected = 0;
+
+    public State(SensorFilter filter) {
+      _filter = filter;
+    }
+
+    public SensorFilter getFilter() {
+      return _filter;
+    }
+
+    /**
+     * Switches to a new filter, starting over from the next value.
+     */
+    public void setFilter(SensorFilter filter) {
+      if (filter == _filter)
+        return;
+      _filter = filter;
+      _windows = new RollingMedian[0];
+      _started = false;
+    }
+
+    /**
+     * Filters a reading.
+     *
+     * @return the filtered values, in an array that is reused by the next
+     * call, or the raw values themselves if the filter passes them through
+     */
+    public double[] apply(double[] raw) {
+      SensorFilter filter = _filter;
+      if (filter.isNone())
+        return raw;
+
+      if (_output.length != raw.length) {
+        _output = new double[raw.length];
+        _smoothed = new double[raw.length];
+        _windows = new RollingMedian[0];
+        _started = false;
+      }
+      if (filter.usesWindow() && _windows.length != raw.length) {
+        _windows = new RollingMedian[raw.length];
+        for (int i = 0; i < raw.length; i++)
+          _windows[i] = new RollingMedian(filter.window);
+      }
+
+      _rejected = 0;
+      for (int i = 0; i < raw.length; i++) {
+        double value = raw[i];
+        if (filter.usesWindow()) {
+          RollingMedian window = _windows[i];
+          window.add(value);
+          double median = window.median();
+          if (filter.median) {
+            value = median;
+          } else if (window.size() >= 3
+                     && Math.abs(value - median) > filter.hampel * MAD_SCALE * window.mad()) {
+            value = median;
+            _rejected++;
+          }
+        }
+        if (filter.ema > 0 && filter.ema < 1) {
+          _smoothed[i] = _started ? filter.ema * value + (1 - filter.ema) * _smoothed[i] : value;
+          value = _smoothed[i];
+        }
+        _output[i] = value;
+      }
+      _started = true;
+      return _output;
+    }
+
+    /**
+     * Returns the number of values of the last reading rejected as
+     * outliers.
+     */
+    public int getRejected() {
+      return _rejected;
+    }
+  }
+}
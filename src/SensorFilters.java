@@ -0,0 +1,31 @@
+import com.platypus.crw.VehicleServer.SensorType;
+
+/**
+ * The {@link SensorFilter} of each sensor type, along with the state of each
+ * filter on each channel.
+ * <p/>
+ * Filters are read from preferences named after the type, e.g.
+ * "pref_sensor_filter_hds_depth", and kept up to date as the preferences
+ * change.  A type without a filter passes its readings through unchanged.
+ */
+public class SensorFilters extends SensorTypeConfig<SensorFilter, SensorFilter.State> {
+
+  public SensorFilters() {
+    super("pref_sensor_filter_", SensorFilter.NONE);
+  }
+
+  @Override
+  protected SensorFilter parse(String value) {
+    return SensorFilter.parse(value);
+  }
+
+  @Override
+  protected SensorFilter.State newState(SensorFilter filter) {
+    return new SensorFilter.State(filter);
+  }
+
+  @Override
+  protected void follow(SensorFilter.State state, SensorFilter filter) {
+    state.setFilter(filter);
+  }
+}
@@ -0,0 +1,269 @@
+import com.platypus.crw.VehicleServer.SensorType;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maps geotagged sensor readings onto a grid of square UTM cells as they
+ * arrive, keeping the count, mean and variance of the readings in each cell.
+ * <p/>
+ * Each value of each mapped sensor type has its own layer, e.g. the
+ * conductivity and temperature of an ES2 probe.  A layer is stored sparsely
+ * as tiles of {@link #TILE_SIZE} by {@link #TILE_SIZE} cells, created when
+ * the first reading falls in them, so only the surveyed area takes memory.
+ * Statistics are updated with Welford's method in O(1) per reading.
+ */
+public class SensorGrid {
+
+  private static final Logger logger = Logger.getLogger(SensorGrid.class.getName());
+
+  /**
+   * Preference holding the side of a cell, in meters.
+   */
+  public static final String CELL_SIZE_PREF = "pref_sensor_grid_cell_m";
+
+  /**
+   * Preference holding the comma-separated sensor types that are mapped.
+   */
+  public static final String TYPES_PREF = "pref_sensor_grid_types";
+
+  public static final double DEFAULT_CELL_SIZE = 5.0;
+  public static final String DEFAULT_TYPES = "HDS_DEPTH,ES2,ATLAS_DO,ATLAS_PH";
+
+  /**
+   * Number of cells along each side of a tile.
+   */
+  public static final int TILE_SIZE = 32;
+
+  /**
+   * The statistics of one tile of a layer.  Cells are stored row by row,
+   * from the south-west corner.
+   */
+  public static class Tile {
+    public final int zone;
+    public final boolean isNorth;
+    public final int tileX;
+    public final int tileY;
+    final int[] count = new int[TILE_SIZE * TILE_SIZE];
+    final double[] mean = new double[TILE_SIZE * TILE_SIZE];
+    final double[] m2 = new double[TILE_SIZE * TILE_SIZE];
+
+    Tile(int zone, boolean isNorth, int tileX, int tileY) {
+      this.zone = zone;
+      this.isNorth = isNorth;
+      this.tileX = tileX;
+      this.tileY = tileY;
+    }
+
+    void add(int cell, double value) {
+      int n = ++count[cell];
+      double delta = value - mean[cell];
+      mean[cell] += delta / n;
+      m2[cell] += delta * (value - mean[cell]);
+    }
+  }
+
+  /**
+   * A copy of the statistics of one tile, safe to read while the grid keeps
+   * changing.
+   */
+  public static class TileSnapshot {
+    public final int zone;
+    public final boolean isNorth;
+    public final double minEasting;
+    public final double minNorthing;
+    public final double cellSize;
+    public final int[] count;
+    public final double[] mean;
+    public final double[] variance;
+
+    TileSnapshot(Tile tile, double cellSize) {
+      this.zone = tile.zone;
+      this.isNorth = tile.isNorth;
+      this.cellSize = cellSize;
+      this.minEasting = tile.tileX * TILE_SIZE * cellSize;
+      this.minNorthing = tile.tileY * TILE_SIZE * cellSize;
+      this.count = tile.count.clone();
+      this.mean = tile.mean.clone();
+      this.variance = new double[tile.m2.length];
+      for (int i = 0; i < variance.length; i++)
+        variance[i] = (count[i] > 1) ? tile.m2[i] / (count[i] - 1) : 0.0;
+    }
+
+    /**
+     * Returns the number of cells of the tile with at least one reading.
+     */
+    public int getCoveredCells() {
+      int covered = 0;
+      for (int n : count)
+        if (n > 0)
+          covered++;
+      return covered;
+    }
+  }
+
+  // The tiles of one value of one sensor type.
+  private static class Layer {
+    final Map<Long, Tile> tiles = new HashMap<Long, Tile>();
+    long lastKey = Long.MIN_VALUE;
+    Tile lastTile = null;
+  }
+
+  private final double _cellSize;
+  private final Set<SensorType> _types;
+  private final Map<SensorType, Layer[]> _layers = new HashMap<SensorType, Layer[]>();
+
+  public SensorGrid(double cellSize, Set<SensorType> types) {
+    _cellSize = cellSize;
+    _types = EnumSet.noneOf(SensorType.class);
+    _types.addAll(types);
+  }
+
+  /**
+   * Parses a comma-separated list of sensor type names, ignoring (with a
+   * warning) any that are unknown.
+   */
+  public static Set<SensorType> parseTypes(String spec) {
+    Set<SensorType> types = EnumSet.noneOf(SensorType.class);
+    for (String name : spec.split(",")) {
+      if (name.trim().isEmpty())
+        continue;
+      try {
+        types.add(SensorType.valueOf(name.trim().toUpperCase(Locale.US)));
+      } catch (IllegalArgumentException e) {
+        logger.log(Level.WARNING, "Ignoring unknown sensor type '" + name + "' in " + TYPES_PREF);
+      }
+    }
+    return types;
+  }
+
+  public double getCellSize() {
+    return _cellSize;
+  }
+
+  /**
+   * Adds the values of a located reading to their cells, if its type is
+   * mapped.
+   */
+  public void add(GeoSensorData reading) {
+    if (!reading.located || !_types.contains(reading.type))
+      return;
+
+    long cellX = (long) Math.floor(reading.easting / _cellSize);
+    long cellY = (long) Math.floor(reading.northing / _cellSize);
+    int tileX = (int) floorDiv(cellX, TILE_SIZE);
+    int tileY = (int) floorDiv(cellY, TILE_SIZE);
+    int cell = (int) floorMod(cellY, TILE_SIZE) * TILE_SIZE + (int) floorMod(cellX, TILE_SIZE);
+    long key = key(reading.zone, reading.isNorth, tileX, tileY);
+
+    synchronized (this) {
+      Layer[] layers = layers(reading.type, reading.data.length);
+      for (int i = 0; i < layers.length && i < reading.data.length; i++) {
+        double value = reading.data[i];
+        if (Double.isNaN(value))
+          continue;
+
+        // Consecutive readings almost always land in the same tile.
+        Layer layer = layers[i];
+        Tile tile = (layer.lastKey == key) ? layer.lastTile : layer.tiles.get(key);
+        if (tile == null) {
+          tile = new Tile(reading.zone, reading.isNorth, tileX, tileY);
+          layer.tiles.put(key, tile);
+        }
+        layer.lastKey = key;
+        layer.lastTile = tile;
+        tile.add(cell, value);
+      }
+    }
+  }
+
+  /**
+   * Returns the tiles of one value of a type that hold readings.
+   */
+  public synchronized List<TileSnapshot> getTiles(SensorType type, int index) {
+    List<TileSnapshot> snapshots = new ArrayList<TileSnapshot>();
+    Layer[] layers = _layers.get(type);
+    if (layers != null && index < layers.length) {
+      for (Tile tile : layers[index].tiles.values())
+        snapshots.add(new TileSnapshot(tile, _cellSize));
+    }
+    return snapshots;
+  }
+
+  /**
+   * Returns the tile of one value of a type that contains a position, or
+   * null if no reading has fallen in it.
+   */
+  public synchronized TileSnapshot getTile(SensorType type, int index,
+                                           double easting, double northing, int zone, boolean isNorth) {
+    Layer[] layers = _layers.get(type);
+    if (layers == null || index >= layers.length)
+      return null;
+    int tileX = (int) floorDiv((long) Math.floor(easting / _cellSize), TILE_SIZE);
+    int tileY = (int) floorDiv((long) Math.floor(northing / _cellSize), TILE_SIZE);
+    Tile tile = layers[index].tiles.get(key(zone, isNorth, tileX, tileY));
+    return (tile == null) ? null : new TileSnapshot(tile, _cellSize);
+  }
+
+  /**
+   * Reads the statistics of the cell of one value of a type that contains a
+   * position, without copying its tile.
+   *
+   * @param stats receives the mean and variance of the cell
+   * @return the number of readings in the cell
+   */
+  public synchronized int getCell(SensorType type, int index,
+                                  double easting, double northing, int zone, boolean isNorth, double[] stats) {
+    Layer[] layers = _layers.get(type);
+    if (layers == null || index >= layers.length)
+      return 0;
+    long cellX = (long) Math.floor(easting / _cellSize);
+    long cellY = (long) Math.floor(northing / _cellSize);
+    long key = key(zone, isNorth, (int) floorDiv(cellX, TILE_SIZE), (int) floorDiv(cellY, TILE_SIZE));
+    Layer layer = layers[index];
+    Tile tile = (layer.lastKey == key) ? layer.lastTile : layer.tiles.get(key);
+    if (tile == null)
+      return 0;
+    int cell = (int) floorMod(cellY, TILE_SIZE) * TILE_SIZE + (int) floorMod(cellX, TILE_SIZE);
+    int count = tile.count[cell];
+    stats[0] = tile.mean[cell];
+    stats[1] = (count > 1) ? tile.m2[cell] / (count - 1) : 0.0;
+    return count;
+  }
+
+  private Layer[] layers(SensorType type, int width) {
+    Layer[] layers = _layers.get(type);
+    if (layers == null || layers.length < width) {
+      Layer[] grown = new Layer[width];
+      for (int i = 0; i < width; i++)
+        grown[i] = (layers != null && i < layers.length) ? layers[i] : new Layer();
+      _layers.put(type, grown);
+      layers = grown;
+    }
+    return layers;
+  }
+
+  private static long floorDiv(long a, long b) {
+    long q = a / b;
+    return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+  }
+
+  private static long floorMod(long a, long b) {
+    return a - floorDiv(a, b) * b;
+  }
+
+  // Packs a tile's zone, hemisphere and coordinates into a map key.  Tile
+  // coordinates fit in 24 bits for any cell size of a meter or more.
+  private static long key(int zone, boolean isNorth, int tileX, int tileY) {
+    return ((long) (zone * 2 + (isNorth ? 1 : 0)) << 48)
+      | ((tileX & 0xFFFFFFL) << 24)
+      | (tileY & 0xFFFFFFL);
+  }
+}
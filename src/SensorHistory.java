@@ -0,0 +1,114 @@
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recent readings from every sensor of a vehicle, kept in memory so they can
+ * be summarized without going back to the logs, e.g. the mean dissolved
+ * oxygen over the last five minutes:
+ * <pre>
+ *     long now = clock.now();
+ *     history.summarize(2, SensorType.ATLAS_DO, 0, now - 5 * 60 * 1000, now).mean;
+ * </pre>
+ * Readings are timestamped on the vehicle's {@link ClockSync} timeline, so
+ * windows are measured on it too.  Each channel keeps one
+ * {@link SensorSeries} per type of reading it sends, created when the first
+ * reading arrives.
+ */
+public class SensorHistory {
+
+  /**
+   * Preference holding the number of readings kept per series.
+   */
+  public static final String CAPACITY_PREF = "pref_sensor_history_samples";
+
+  /**
+   * Default number of readings kept per series, about 27 minutes at 10 Hz.
+   */
+  public static final int DEFAULT_CAPACITY = 16384;
+
+  private static final int NUM_TYPES = SensorType.values().length;
+
+  private final int _capacity;
+  private final ClockSync _clock;
+  private final ConcurrentMap<Integer, SensorSeries> _series = new ConcurrentHashMap<Integer, SensorSeries>();
+
+  /**
+   * @param clock the timeline the readings are stamped on
+   */
+  public SensorHistory(int capacity, ClockSync clock) {
+    _capacity = capacity;
+    _clock = clock;
+  }
+
+  /**
+   * Records a reading taken at the given time.
+   */
+  public void record(SensorData reading, long time) {
+    Integer key = key(reading.channel, reading.type);
+    SensorSeries series = _series.get(key);
+    if (series == null) {
+      SensorSeries created = new SensorSeries(_capacity, reading.data.length);
+      series = _series.putIfAbsent(key, created);
+      if (series == null)
+        series = created;
+    }
+    series.append(time, reading.data);
+  }
+
+  /**
+   * Returns the readings of a type from a channel, or null if there are none.
+   */
+  public SensorSeries get(int channel, SensorType type) {
+    return _series.get(key(channel, type));
+  }
+
+  /**
+   * Summarizes one value of the readings of a type from a channel,
+   * timestamped in [from, to].
+   *
+   * @return the summary, or null if there are no readings in the window
+   */
+  public SensorSeries.Summary summarize(int channel, SensorType type, int index, long from, long to) {
+    SensorSeries series = get(channel, type);
+    return (series == null) ? null : series.summarize(index, from, to);
+  }
+
+  /**
+   * Summarizes one value of the readings of a type from a channel over the
+   * most recent interval.
+   */
+  public SensorSeries.Summary summarizeLast(int channel, SensorType type, int index, long duration, TimeUnit unit) {
+    long now = _clock.now();
+    return summarize(channel, type, index, now - unit.toMillis(duration), now);
+  }
+
+  /**
+   * Returns a percentile of one value of the readings of a type from a
+   * channel, timestamped in [from, to], or NaN if there are none.
+   */
+  public double percentile(int channel, SensorType type, int index, double percentile, long from, long to) {
+    SensorSeries series = get(channel, type);
+    return (series == null) ? Double.NaN : series.percentile(index, percentile, from, to);
+  }
+
+  /**
+   * Returns the channel and type of every series, as {channel, type ordinal}
+   * pairs.
+   */
+  public List<int[]> getSeries() {
+    List<int[]> series = new ArrayList<int[]>();
+    for (Integer key : _series.keySet())
+      series.add(new int[] { key / NUM_TYPES, key % NUM_TYPES });
+    return series;
+  }
+
+  private static Integer key(int channel, SensorType type) {
+    return channel * NUM_TYPES + type.ordinal();
+  }
+}
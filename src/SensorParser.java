@@ -0,0 +1,27 @@
+import com.platypus.crw.data.SensorData;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Converts the JSON messages reported by one kind of instrument on an eboard
+ * sensor port into sensor readings.
+ * <p/>
+ * Parsers are registered by type name in a {@link SensorRegistry}, so support
+ * for a new instrument can be added without changing the message dispatch.
+ */
+public interface SensorParser {
+
+  /**
+   * Parses a sensor message.
+   *
+   * @param server  the vehicle that received the message
+   * @param channel the sensor port the message arrived on
+   * @param value   the message, including its "type" field
+   * @param time    when the message was taken, on the host timeline, for
+   *                anything the parser passes on besides the reading
+   * @return the reading to log and send out, or null to skip the message
+   * @throws JSONException if the message is missing expected fields
+   */
+  SensorData parse(VehicleServerImpl server, int channel, JSONObject value, long time) throws JSONException;
+}
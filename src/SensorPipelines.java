@@ -0,0 +1,319 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes the messages of each source (a sensor channel, GPS receiver or
+ * IMU) in a pipeline of its own, so a slow or bursting source cannot hold up
+ * the others.
+ * <p/>
+ * Each source has a bounded queue.  When it is full the oldest message is
+ * dropped, since a newer reading is worth more than a stale one.  Sources
+ * are drained by a small pool of workers, a few messages at a turn, so each
+ * source is handled in order while the workers rotate among them.  Priority
+ * sources (GPS fixes, IMU samples and battery readings) have a worker of
+ * their own.  The workers are taken from the {@link VehicleContext.Pools},
+ * so they are shared by the vehicles on the pools.
+ * <p/>
+ * Each pipeline counts its messages and drops and tracks how long messages
+ * wait in its queue, for {@link #getMetrics()}.
+ */
+public class SensorPipelines {
+
+  private static final Logger logger = Logger.getLogger(SensorPipelines.class.getName());
+
+  public static final String CAPACITY_PREF = "pref_sensor_pipeline_capacity";
+
+  /**
+   * Preference holding the number of workers for the sources without
+   * priority.  It is read from the default preferences when the pools are
+   * created, since the workers are shared.
+   */
+  public static final String THREADS_PREF = "pref_sensor_pipeline_threads";
+
+  public static final int DEFAULT_CAPACITY = 64;
+  public static final int DEFAULT_THREADS = 2;
+
+  /**
+   * Largest number of messages a worker handles from one source before
+   * moving on to the next.
+   */
+  public static final int BATCH = 16;
+
+  /**
+   * Weight of each new message in the averaged latency and service time.
+   */
+  private static final double EWMA_WEIGHT = 0.05;
+
+  /**
+   * Handles the messages of every source.  The messages of one source are
+   * handled one at a time, in order, but those of different sources may be
+   * handled concurrently.
+   */
+  public interface Handler {
+    /**
+     * @param arrival the time the message arrived, as given to
+     *                {@link #submit}
+     */
+    void handle(String source, JSONObject message, long arrival) throws JSONException;
+  }
+
+  /**
+   * A snapshot of the counters of one pipeline.
+   */
+  public static class Metrics {
+    public final String source;
+    public final boolean priority;
+    public final long received;
+    public final long processed;
+    public final long dropped;
+    public final int depth;
+    public final int maxDepth;
+
+    /**
+     * Averaged time messages wait in the queue, in milliseconds.
+     */
+    public final double latencyMs;
+
+    /**
+     * Longest wait since the previous snapshot, in milliseconds.
+     */
+    public final double peakLatencyMs;
+
+    /**
+     * Averaged time to handle a message, in milliseconds.
+     */
+    public final double serviceMs;
+
+    Metrics(Pipeline p) {
+      source = p.source;
+      priority = p.priority;
+      received = p.received;
+      processed = p.processed;
+      dropped = p.dropped;
+      depth = p.size;
+      maxDepth = p.maxDepth;
+      latencyMs = p.latencyNs / 1e6;
+      peakLatencyMs = p.peakLatencyNs / 1e6;
+      serviceMs = p.serviceNs / 1e6;
+    }
+
+    public JSONObject toJSON() throws JSONException {
+      return new JSONObject()
+        .put("source", source)
+        .put("priority", priority)
+        .put("received", received)
+        .put("processed", processed)
+        .put("dropped", dropped)
+        .put("depth", depth)
+        .put("maxDepth", maxDepth)
+        .put("latency", latencyMs)
+        .put("peak", peakLatencyMs)
+        .put("service", serviceMs);
+    }
+  }
+
+  // The queue and counters of one source.  Guarded by itself.
+  private class Pipeline implements Runnable {
+    final String source;
+    final boolean priority;
+    final ExecutorService executor;
+    final JSONObject[] messages;
+    final long[] arrivals;
+    final long[] times;
+    int head = 0;
+    int size = 0;
+    boolean scheduled = false;
+    boolean handling = false;
+
+    long received = 0;
+    long processed = 0;
+    long dropped = 0;
+    int maxDepth = 0;
+    double latencyNs = 0.0;
+    double peakLatencyNs = 0.0;
+    double serviceNs = 0.0;
+
+    Pipeline(String source, boolean priority, int capacity) {
+      this.source = source;
+      this.priority = priority;
+      this.executor = priority ? _priorityWorkers : _workers;
+      messages = new JSONObject[capacity];
+      arrivals = new long[capacity];
+      times = new long[capacity];
+    }
+
+    void offer(JSONObject message, long arrival, long now) {
+      boolean schedule;
+      synchronized (this) {
+        received++;
+        if (size == messages.length) {
+          head = (head + 1) % messages.length;
+          size--;
+          dropped++;
+        }
+        int tail = (head + size) % messages.length;
+        messages[tail] = message;
+        arrivals[tail] = arrival;
+        times[tail] = now;
+        size++;
+        maxDepth = Math.max(maxDepth, size);
+        schedule = !scheduled;
+        scheduled = true;
+      }
+      if (schedule)
+        execute();
+    }
+
+    void execute() {
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        // Shutting down.
+      }
+    }
+
+    // Handles a batch of messages, then yields the worker to other sources.
+    @Override
+    public void run() {
+      for (int i = 0; i < BATCH; i++) {
+        JSONObject message;
+        long arrival;
+        long queued;
+        synchronized (this) {
+          if (size == 0 || _closed) {
+            scheduled = false;
+            return;
+          }
+          handling = true;
+          message = messages[head];
+          arrival = arrivals[head];
+          queued = times[head];
+          messages[head] = null;
+          head = (head + 1) % messages.length;
+          size--;
+        }
+
+        long start = System.nanoTime();
+        try {
+          _handler.handle(source, message, arrival);
+        } catch (JSONException e) {
+          logger.log(Level.WARNING, "Malformed message from " + source + ": " + message, e);
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Failed to handle message from " + source + ": " + message, e);
+        }
+        long end = System.nanoTime();
+
+        synchronized (this) {
+          handling = false;
+          notifyAll();
+          processed++;
+          double latency = start - queued;
+          latencyNs += EWMA_WEIGHT * (latency - latencyNs);
+          peakLatencyNs = Math.max(peakLatencyNs, latency);
+          serviceNs += EWMA_WEIGHT * ((end - start) - serviceNs);
+        }
+      }
+
+      synchronized (this) {
+        if (size == 0) {
+          scheduled = false;
+          return;
+        }
+      }
+      execute();
+    }
+  }
+
+  private final Handler _handler;
+  private final int _capacity;
+  private final ExecutorService _workers;
+  private final ExecutorService _priorityWorkers;
+  private final ConcurrentMap<String, Pipeline> _pipelines = new ConcurrentHashMap<String, Pipeline>();
+  private volatile boolean _closed = false;
+
+  /**
+   * @param capacity        largest number of messages waiting for each source
+   * @param workers         handle the sources without priority
+   * @param priorityWorkers handle the priority sources
+   */
+  public SensorPipelines(Handler handler, int capacity,
+                         ExecutorService workers, ExecutorService priorityWorkers) {
+    _handler = handler;
+    _capacity = Math.max(1, capacity);
+    _workers = workers;
+    _priorityWorkers = priorityWorkers;
+  }
+
+  /**
+   * Queues a message from a source.  A source keeps the priority it was
+   * first given.
+   *
+   * @param arrival the time the message arrived, passed on to the handler
+   */
+  public void submit(String source, JSONObject message, boolean priority, long arrival) {
+    if (_closed)
+      return;
+    Pipeline pipeline = _pipelines.get(source);
+    if (pipeline == null) {
+      Pipeline created = new Pipeline(source, priority, _capacity);
+      pipeline = _pipelines.putIfAbsent(source, created);
+      if (pipeline == null)
+        pipeline = created;
+    }
+    pipeline.offer(message, arrival, System.nanoTime());
+  }
+
+  /**
+   * Returns the counters of every pipeline, and starts a new peak latency
+   * interval.
+   */
+  public List<Metrics> getMetrics() {
+    List<Metrics> metrics = new ArrayList<Metrics>();
+    for (Pipeline pipeline : _pipelines.values()) {
+      synchronized (pipeline) {
+        metrics.add(new Metrics(pipeline));
+        pipeline.peakLatencyNs = 0.0;
+      }
+    }
+    return metrics;
+  }
+
+  /**
+   * Stops taking messages, drops the queued ones, and gives the messages
+   * being handled a moment to finish.  The workers are shared, so they are
+   * left running.
+   */
+  public void shutdown() {
+    _closed = true;
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    try {
+      for (Pipeline pipeline : _pipelines.values()) {
+        synchronized (pipeline) {
+          pipeline.dropped += pipeline.size;
+          while (pipeline.size > 0) {
+            pipeline.messages[pipeline.head] = null;
+            pipeline.head = (pipeline.head + 1) % pipeline.messages.length;
+            pipeline.size--;
+          }
+          long remaining;
+          while (pipeline.handling && (remaining = deadline - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.timedWait(pipeline, remaining);
+          if (pipeline.handling)
+            logger.log(Level.WARNING, "Timed out waiting for a message from " + pipeline.source);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+import com.platypus.crw.VehicleServer.SensorType;
+
+import java.util.Locale;
+import java.util.prefs.Preferences;
+
+/**
+ * The {@link SensorPolicy} of each sensor type, for logging and for
+ * broadcasting to listeners separately, along with the state of each policy
+ * on each channel.
+ * <p/>
+ * Policies are read from preferences named after the output and the type,
+ * e.g. "pref_sensor_log_policy_hds_temp" or
+ * "pref_sensor_broadcast_policy_atlas_do", and kept up to date as the
+ * preferences change.  A type without a policy keeps every reading.
+ */
+public class SensorPolicies {
+
+  /**
+   * Where a reading is going.
+   */
+  public enum Output {
+    LOG, BROADCAST;
+
+    String prefPrefix() {
+      return "pref_sensor_" + name().toLowerCase(Locale.US) + "_policy_";
+    }
+  }
+
+  /**
+   * The policies for one output.
+   */
+  static class Policies extends SensorTypeConfig<SensorPolicy, SensorPolicy.Gate> {
+
+    Policies(Output output) {
+      super(output.prefPrefix(), SensorPolicy.KEEP_ALL);
+    }
+
+    @Override
+    protected SensorPolicy parse(String value) {
+      return SensorPolicy.parse(value);
+    }
+
+    @Override
+    protected SensorPolicy.Gate newState(SensorPolicy policy) {
+      return new SensorPolicy.Gate(policy);
+    }
+
+    @Override
+    protected void follow(SensorPolicy.Gate gate, SensorPolicy policy) {
+      gate.setPolicy(policy);
+    }
+  }
+
+  private static final Output[] OUTPUTS = Output.values();
+
+  private final Policies[] _policies = new Policies[OUTPUTS.length];
+
+  public SensorPolicies() {
+    for (Output output : OUTPUTS)
+      _policies[output.ordinal()] = new Policies(output);
+  }
+
+  /**
+   * Reads the policies from the preferences, and keeps them up to date as
+   * the preferences change.
+   */
+  public void bind(Preferences prefs) {
+    for (Policies policies : _policies)
+      policies.bind(prefs);
+  }
+
+  /**
+   * Returns the name of the preference holding the policy for a type.
+   */
+  public String prefName(Output output, SensorType type) {
+    return _policies[output.ordinal()].prefName(type);
+  }
+
+  public void setPolicy(Output output, SensorType type, SensorPolicy policy) {
+    _policies[output.ordinal()].set(type, policy);
+  }
+
+  public SensorPolicy getPolicy(Output output, SensorType type) {
+    return _policies[output.ordinal()].get(type);
+  }
+
+  /**
+   * Returns the gate for the readings of a type from a channel, following
+   * the current policy.
+   */
+  public SensorPolicy.Gate gate(Output output, int channel, SensorType type) {
+    return _policies[output.ordinal()].state(channel, type);
+  }
+}
@@ -0,0 +1,233 @@
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which readings of a sensor are worth logging or broadcasting.
+ * <p/>
+ * A policy is written as comma-separated settings, any of which may be
+ * omitted, e.g. "every=5,interval=1000,deadband=0.05,window=10000":
+ * <ul>
+ *   <li>every: keep only one reading in N</li>
+ *   <li>interval: keep at most one reading per interval, in milliseconds</li>
+ *   <li>deadband: keep a reading only if some value has changed by more than
+ *       this since the last one kept; 0 keeps any change</li>
+ *   <li>window: instead of the readings themselves, emit the min, max and
+ *       mean of the readings kept over each window, in milliseconds</li>
+ * </ul>
+ * The settings are applied in that order.  An empty policy keeps every
+ * reading.
+ * <p/>
+ * The policy itself is immutable; the state of each channel it applies to is
+ * kept in a {@link Gate}.
+ */
+public class SensorPolicy {
+
+  private static final Logger logger = Logger.getLogger(SensorPolicy.class.getName());
+
+  /**
+   * A policy that keeps every reading.
+   */
+  public static final SensorPolicy KEEP_ALL = new SensorPolicy(1, 0, -1.0, 0);
+
+  /**
+   * Outcomes of offering a reading to a gate.
+   */
+  public static final int DROP = 0;
+  public static final int KEEP = 1;
+  public static final int SUMMARY = 2;
+
+  public final int every;
+  public final long intervalMs;
+  public final double deadband;
+  public final long windowMs;
+
+  public SensorPolicy(int every, long intervalMs, double deadband, long windowMs) {
+    this.every = Math.max(1, every);
+    this.intervalMs = intervalMs;
+    this.deadband = deadband;
+    this.windowMs = windowMs;
+  }
+
+  /**
+   * Parses a policy, ignoring (with a warning) any setting it does not
+   * understand.
+   */
+  public static SensorPolicy parse(String spec) {
+    if (spec == null || spec.trim().isEmpty())
+      return KEEP_ALL;
+
+    int every = 1;
+    long interval = 0;
+    double deadband = -1.0;
+    long window = 0;
+    for (String setting : spec.split(",")) {
+      String[] pair = setting.split("=", 2);
+      String key = pair[0].trim().toLowerCase(Locale.US);
+      try {
+        if (pair.length != 2)
+          throw new IllegalArgumentException("missing value");
+        String value = pair[1].trim();
+        if (key.equals("every"))
+          every = Integer.parseInt(value);
+        else if (key.equals("interval"))
+          interval = Long.parseLong(value);
+        else if (key.equals("deadband"))
+          deadband = Double.parseDouble(value);
+        else if (key.equals("window"))
+          window = Long.parseLong(value);
+        else
+          throw new IllegalArgumentException("unknown setting");
+      } catch (IllegalArgumentException e) {
+        logger.log(Level.WARNING, "Ignoring sensor policy setting '" + setting + "' in '" + spec + "': " + e.getMessage());
+      }
+    }
+    return new SensorPolicy(every, interval, deadband, window);
+  }
+
+  /**
+   * Returns true if this policy keeps every reading.
+   */
+  public boolean keepsAll() {
+    return every == 1 && intervalMs <= 0 && deadband < 0 && windowMs <= 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("every=%d,interval=%d,deadband=%s,window=%d", every, intervalMs, deadband, windowMs);
+  }
+
+  /**
+   * The state of a policy for the readings of one channel.  Gates are not
+   * thread-safe.
+   */
+  public static class Gate {
+    private SensorPolicy _policy;
+    private long _count = 0;
+    private long _lastKept = Long.MIN_VALUE;
+    private double[] _lastValues = null;
+
+    // Summary of the current window.
+    private long _windowStart = Long.MIN_VALUE;
+    private int _summaryCount = 0;
+    private double[] _min = new double[0];
+    private double[] _max = new double[0];
+    private double[] _sum = new double[0];
+
+    // The summary of the last window that closed.
+    private int _closedCount = 0;
+    private double[] _closedMin = new double[0];
+    private double[] _closedMax = new double[0];
+    private double[] _closedMean = new double[0];
+
+    public Gate(SensorPolicy policy) {
+      _policy = policy;
+    }
+
+    public SensorPolicy getPolicy() {
+      return _policy;
+    }
+
+    /**
+     * Switches to a new policy, discarding any partial summary.
+     */
+    public void setPolicy(SensorPolicy policy) {
+      if (policy == _policy)
+        return;
+      _policy = policy;
+      _windowStart = Long.MIN_VALUE;
+      _summaryCount = 0;
+    }
+
+    /**
+     * Offers a reading to the policy.
+     *
+     * @return {@link #KEEP} if the reading should be used as is,
+     * {@link #SUMMARY} if it closed a window whose summary is now available
+     * from {@link #getMean()} and friends, or {@link #DROP}
+     */
+    public int offer(double[] data, long now) {
+      SensorPolicy policy = _policy;
+      if (policy.keepsAll())
+        return KEEP;
+
+      if (_count++ % policy.every != 0)
+        return DROP;
+      if (policy.intervalMs > 0 && _lastKept != Long.MIN_VALUE && now - _lastKept < policy.intervalMs)
+        return DROP;
+      if (policy.deadband >= 0 && _lastValues != null && _lastValues.length == data.length
+          && !changed(data, policy.deadband))
+        return DROP;
+
+      _lastKept = now;
+      if (_lastValues == null || _lastValues.length != data.length)
+        _lastValues = new double[data.length];
+      System.arraycopy(data, 0, _lastValues, 0, data.length);
+
+      if (policy.windowMs <= 0)
+        return KEEP;
+      return summarize(data, now, policy.windowMs);
+    }
+
+    public int getCount() {
+      return _closedCount;
+    }
+
+    public double[] getMin() {
+      return _closedMin;
+    }
+
+    public double[] getMax() {
+      return _closedMax;
+    }
+
+    public double[] getMean() {
+      return _closedMean;
+    }
+
+    private boolean changed(double[] data, double deadband) {
+      for (int i = 0; i < data.length; i++) {
+        if (Math.abs(data[i] - _lastValues[i]) > deadband)
+          return true;
+      }
+      return false;
+    }
+
+    // Accumulates a reading, closing the current window first if the
+    // reading falls after it.  A window closes only when a reading arrives.
+    private int summarize(double[] data, long now, long windowMs) {
+      int result = DROP;
+      if (_summaryCount > 0 && (now - _windowStart >= windowMs || _min.length != data.length)) {
+        _closedCount = _summaryCount;
+        _closedMin = Arrays.copyOf(_min, _min.length);
+        _closedMax = Arrays.copyOf(_max, _max.length);
+        _closedMean = new double[_sum.length];
+        for (int i = 0; i < _sum.length; i++)
+          _closedMean[i] = _sum[i] / _summaryCount;
+        _summaryCount = 0;
+        result = SUMMARY;
+      }
+
+      if (_summaryCount == 0) {
+        _windowStart = now;
+        if (_min.length != data.length) {
+          _min = new double[data.length];
+          _max = new double[data.length];
+          _sum = new double[data.length];
+        }
+        System.arraycopy(data, 0, _min, 0, data.length);
+        System.arraycopy(data, 0, _max, 0, data.length);
+        System.arraycopy(data, 0, _sum, 0, data.length);
+      } else {
+        for (int i = 0; i < data.length; i++) {
+          _min[i] = Math.min(_min[i], data[i]);
+          _max[i] = Math.max(_max[i], data[i]);
+          _sum[i] += data[i];
+        }
+      }
+      _summaryCount++;
+      return result;
+    }
+  }
+}
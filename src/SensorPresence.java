@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks whether each sensor port is receiving readings of the type it is
+ * expected to report, and at what rate.
+ * <p/>
+ * Receiving a reading only stores its time and bumps a counter, so it is
+ * cheap enough to do on every message.  A periodic {@link #check} compares
+ * each port's last reading with its deadline, and reports a port to the
+ * {@link Listener} when it falls silent and again when it recovers.
+ * <p/>
+ * Ports expecting a type that does not report, such as NONE, are not
+ * tracked.  A change of the expected type starts the port over.
+ */
+public class SensorPresence {
+
+  /**
+   * Preference holding how long a port may go without a reading before it
+   * is reported lost, in milliseconds.
+   */
+  public static final String TIMEOUT_PREF = "pref_sensor_presence_timeout_ms";
+
+  public static final long DEFAULT_TIMEOUT_MS = 3000;
+
+  /**
+   * Weight of each check interval in the averaged rate.
+   */
+  private static final double RATE_WEIGHT = 0.25;
+
+  /**
+   * Receives the changes in presence of the sensor ports.  Called from
+   * {@link #check}.
+   */
+  public interface Listener {
+    /**
+     * A port has received no reading of its type for longer than the
+     * timeout, or has not received one since it started.
+     *
+     * @param silentMs time since the last reading, or since the port started
+     *                 if it has not had one
+     */
+    void lost(int port, int type, long silentMs);
+
+    /**
+     * A port that was lost has received a reading of its type again.
+     *
+     * @param gapMs time between the last reading before the loss and now
+     */
+    void recovered(int port, int type, long gapMs);
+  }
+
+  /**
+   * A snapshot of one tracked port.
+   */
+  public static class Status {
+    public final int port;
+    public final int type;
+    public final boolean present;
+
+    /**
+     * Time of the last reading of the expected type, or -1 if none.
+     */
+    public final long lastSeen;
+
+    public final long readings;
+
+    /**
+     * Averaged rate of readings, per second.
+     */
+    public final double rateHz;
+
+    Status(int port, int type, boolean present, long lastSeen, long readings, double rateHz) {
+      this.port = port;
+      this.type = type;
+      this.present = present;
+      this.lastSeen = lastSeen;
+      this.readings = readings;
+      this.rateHz = rateHz;
+    }
+  }
+
+  private final SensorRegistry _registry;
+  private final Listener _listener;
+  private final long _timeout;
+
+  // Written on every reading, indexed by port.
+  private final AtomicLongArray _lastSeen;
+  private final AtomicLongArray _readings;
+
+  // Updated by check(), guarded by this.
+  private final int[] _types;
+  private final long[] _since;
+  private final boolean[] _lost;
+  private final long[] _counted;
+  private final double[] _rates;
+  private long _lastCheck = -1;
+
+  /**
+   * @param timeout longest silence of a port before it is lost, in ms
+   */
+  public SensorPresence(SensorRegistry registry, long timeout, Listener listener) {
+    _registry = registry;
+    _listener = listener;
+    _timeout = timeout;
+
+    int ports = registry.getNumPorts() + 1;
+    _lastSeen = new AtomicLongArray(ports);
+    _readings = new AtomicLongArray(ports);
+    _types = new int[ports];
+    _since = new long[ports];
+    _lost = new boolean[ports];
+    _counted = new long[ports];
+    _rates = new double[ports];
+    for (int port = 0; port < ports; port++) {
+      _lastSeen.set(port, -1);
+      _types[port] = SensorRegistry.UNKNOWN;
+    }
+  }
+
+  /**
+   * Notes a reading received on a port.  Readings of a type other than the
+   * expected one are ignored.
+   */
+  public void record(int port, int type, long time) {
+    if (port < 1 || port >= _lastSeen.length() || type != _registry.getExpectedType(port))
+      return;
+    _lastSeen.set(port, time);
+    _readings.incrementAndGet(port);
+  }
+
+  /**
+   * Updates the rate of every port, and reports the ports that have been
+   * lost or have recovered since the last check.
+   */
+  public synchronized void check(long now) {
+    double elapsed = (_lastCheck < 0) ? 0.0 : (now - _lastCheck) / 1000.0;
+    _lastCheck = now;
+
+    for (int port = 1; port < _types.length; port++) {
+      int type = _registry.getExpectedType(port);
+      long readings = _readings.get(port);
+      if (type != _types[port]) {
+        // Newly expected type: give it a full timeout to start reporting.
+        _types[port] = type;
+        _since[port] = now;
+        _lost[port] = false;
+        _counted[port] = readings;
+        _rates[port] = 0.0;
+        continue;
+      }
+
+      if (elapsed > 0.0) {
+        double rate = (readings - _counted[port]) / elapsed;
+        _rates[port] += RATE_WEIGHT * (rate - _rates[port]);
+      }
+      _counted[port] = readings;
+
+      if (!_registry.reports(type))
+        continue;
+      long lastSeen = _lastSeen.get(port);
+      long latest = (lastSeen < _since[port]) ? _since[port] : lastSeen;
+      boolean silent = (now - latest > _timeout);
+      if (silent && !_lost[port]) {
+        _lost[port] = true;
+        _listener.lost(port, type, now - latest);
+      } else if (!silent && _lost[port]) {
+        _lost[port] = false;
+        _listener.recovered(port, type, now - _since[port]);
+      }
+      if (silent)
+        _since[port] = latest;
+    }
+  }
+
+  /**
+   * Returns the state of every port expecting a type that reports.
+   */
+  public synchronized List<Status> getStatus() {
+    List<Status> status = new ArrayList<Status>();
+    for (int port = 1; port < _types.length; port++) {
+      int type = _types[port];
+      if (!_registry.reports(type))
+        continue;
+      status.add(new Status(port, type, !_lost[port], _lastSeen.get(port),
+                            _readings.get(port), _rates[port]));
+    }
+    return status;
+  }
+}
@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+/**
+ * The sensor types known to a vehicle, each with an interned integer id and
+ * an optional {@link SensorParser}, along with the type expected on each
+ * sensor port.
+ * <p/>
+ * Type names are matched case-insensitively.  The expected type of each port
+ * is read from the preferences once and then kept up to date by a preference
+ * listener, so dispatching a message only costs a map lookup of its type name,
+ * an array lookup and a virtual call, without touching the preferences store.
+ * <p/>
+ * The {@link StandardSensor} types are always registered first, so their ids
+ * are their ordinals.
+ */
+public class SensorRegistry {
+
+  /**
+   * Id returned for type names that have not been registered.
+   */
+  public static final int UNKNOWN = -1;
+
+  private static final String PREF_PREFIX = "pref_sensor_";
+  private static final String PREF_SUFFIX = "_type";
+
+  private static class Entry {
+    final String name;
+    final SensorParser parser;
+    final boolean reports;
+
+    Entry(String name, SensorParser parser, boolean reports) {
+      this.name = name;
+      this.parser = parser;
+      this.reports = reports;
+    }
+  }
+
+  // Ids by type name; spellings other than lower case are cached on first use.
+  private final Map<String, Integer> _ids = new ConcurrentHashMap<String, Integer>();
+  private volatile Entry[] _entries = new Entry[0];
+
+  // Expected type id of each sensor port, indexed from 1.
+  private final AtomicIntegerArray _expected;
+
+  /**
+   * Creates a registry of the standard sensor types for a number of sensor
+   * ports, numbered from 1.
+   */
+  public SensorRegistry(int ports) {
+    for (StandardSensor sensor : StandardSensor.values())
+      register(sensor.name(), sensor.parser, sensor.reports);
+    _expected = new AtomicIntegerArray(ports + 1);
+    for (int port = 0; port <= ports; port++)
+      _expected.set(port, StandardSensor.NONE.ordinal());
+  }
+
+  /**
+   * Registers a sensor type, or replaces the parser of an existing one.
+   *
+   * @param name    the type name, as it appears in messages and preferences
+   * @param parser  the parser for its messages, or null if it sends none
+   * @param reports true if a port expecting this type should warn when no
+   *                message of this type has been received
+   * @return the id of the type
+   */
+  public synchronized int register(String name, SensorParser parser, boolean reports) {
+    String key = name.toLowerCase(Locale.US);
+    Integer id = _ids.get(key);
+    List<Entry> entries = new ArrayList<Entry>(Arrays.asList(_entries));
+    if (id == null) {
+      id = entries.size();
+      entries.add(new Entry(key, parser, reports));
+    } else {
+      entries.set(id, new Entry(key, parser, reports));
+    }
+    _entries = entries.toArray(new Entry[entries.size()]);
+    _ids.put(key, id);
+    return id;
+  }
+
+  /**
+   * Returns the id of a type name, ignoring case, or {@link #UNKNOWN}.
+   */
+  public int lookup(String name) {
+    Integer id = _ids.get(name);
+    if (id != null)
+      return id;
+
+    id = _ids.get(name.toLowerCase(Locale.US));
+    if (id == null)
+      return UNKNOWN;
+    _ids.put(name, id);
+    return id;
+  }
+
+  /**
+   * Returns the parser of a type, or null if it has none.
+   */
+  public SensorParser getParser(int id) {
+    Entry[] entries = _entries;
+    return (id >= 0 && id < entries.length) ? entries[id].parser : null;
+  }
+
+  /**
+   * Returns the name of a type, in lower case.
+   */
+  public String getName(int id) {
+    Entry[] entries = _entries;
+    return (id >= 0 && id < entries.length) ? entries[id].name : "unknown";
+  }
+
+  /**
+   * Returns true if a port expecting this type should receive its messages.
+   */
+  public boolean reports(int id) {
+    Entry[] entries = _entries;
+    return id >= 0 && id < entries.length && entries[id].reports;
+  }
+
+  /**
+   * Returns the number of sensor ports.
+   */
+  public int getNumPorts() {
+    return _expected.length() - 1;
+  }
+
+  /**
+   * Returns the id of the type expected on a sensor port, or {@link #UNKNOWN}
+   * if the port does not exist.
+   */
+  public int getExpectedType(int port) {
+    return (port > 0 && port < _expected.length()) ? _expected.get(port) : UNKNOWN;
+  }
+
+  /**
+   * Reads the expected type of each port from the preferences, and keeps
+   * them up to date as the preferences change.
+   */
+  public void bind(final Preferences prefs) {
+    for (int port = 1; port < _expected.length(); port++)
+      _expected.set(port, resolve(prefs.get(prefName(port), StandardSensor.NONE.name())));
+
+    prefs.addPreferenceChangeListener(new PreferenceChangeListener() {
+        @Override
+        public void preferenceChange(PreferenceChangeEvent event) {
+          String key = event.getKey();
+          for (int port = 1; port < _expected.length(); port++) {
+            if (key.equals(prefName(port))) {
+              String value = event.getNewValue();
+              _expected.set(port, resolve(value == null ? StandardSensor.NONE.name() : value));
+            }
+          }
+        }
+      });
+  }
+
+  private int resolve(String name) {
+    int id = lookup(name);
+    return (id == UNKNOWN) ? register(name, null, true) : id;
+  }
+
+  static String prefName(int port) {
+    return PREF_PREFIX + port + PREF_SUFFIX;
+  }
+}
@@ -0,0 +1,218 @@
+import java.util.Arrays;
+
+/**
+ * A fixed-size ring of timestamped readings from one sensor, stored in
+ * primitive arrays.
+ * <p/>
+ * Appending is O(1) and allocation free.  The ring is divided into blocks of
+ * {@link #BLOCK_SIZE} readings, each with a running min, max and sum of
+ * every value, so min, max and mean over a window only scan the readings at
+ * its two ends and take the rest from the block summaries.  Percentiles are
+ * exact and scan the whole window.
+ * <p/>
+ * Timestamps are assumed to be non-decreasing; a reading older than the last
+ * one is recorded at the time of the last one.
+ */
+public class SensorSeries {
+
+  public static final int BLOCK_SIZE = 64;
+
+  /**
+   * Aggregates of one value of a series over a window.
+   */
+  public static class Summary {
+    public final int count;
+    public final double min;
+    public final double max;
+    public final double mean;
+    public final double last;
+    public final long start;
+    public final long end;
+
+    Summary(int count, double min, double max, double mean, double last, long start, long end) {
+      this.count = count;
+      this.min = min;
+      this.max = max;
+      this.mean = mean;
+      this.last = last;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("n=%d min=%f max=%f mean=%f last=%f", count, min, max, mean, last);
+    }
+  }
+
+  private final int _capacity;
+  private final int _width;
+  private final long[] _times;
+  private final double[] _values;
+  private final double[] _blockMin;
+  private final double[] _blockMax;
+  private final double[] _blockSum;
+
+  private int _head = 0;
+  private int _size = 0;
+
+  /**
+   * @param capacity number of readings kept, rounded up to a whole number of
+   *                 blocks
+   * @param width number of values in each reading
+   */
+  public SensorSeries(int capacity, int width) {
+    int blocks = Math.max(2, (capacity + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    _capacity = blocks * BLOCK_SIZE;
+    _width = width;
+    _times = new long[_capacity];
+    _values = new double[_capacity * width];
+    _blockMin = new double[blocks * width];
+    _blockMax = new double[blocks * width];
+    _blockSum = new double[blocks * width];
+  }
+
+  public int getCapacity() {
+    return _capacity;
+  }
+
+  public int getWidth() {
+    return _width;
+  }
+
+  public synchronized int size() {
+    return _size;
+  }
+
+  /**
+   * Appends a reading, overwriting the oldest one if the ring is full.
+   *
+   * @return false if the reading does not have the width of the series
+   */
+  public synchronized boolean append(long time, double[] data) {
+    if (data.length != _width)
+      return false;
+
+    if (_size > 0) {
+      long last = _times[(_head + _capacity - 1) % _capacity];
+      if (time < last)
+        time = last;
+    }
+
+    // Starting a block discards the summary of the readings it overwrites.
+    int block = _head / BLOCK_SIZE;
+    boolean fresh = (_head % BLOCK_SIZE == 0);
+
+    _times[_head] = time;
+    for (int v = 0; v < _width; v++) {
+      double value = data[v];
+      int b = block * _width + v;
+      _values[_head * _width + v] = value;
+      if (fresh) {
+        _blockMin[b] = value;
+        _blockMax[b] = value;
+        _blockSum[b] = value;
+      } else {
+        _blockMin[b] = Math.min(_blockMin[b], value);
+        _blockMax[b] = Math.max(_blockMax[b], value);
+        _blockSum[b] += value;
+      }
+    }
+
+    _head = (_head + 1) % _capacity;
+    if (_size < _capacity)
+      _size++;
+    return true;
+  }
+
+  /**
+   * Summarizes one value over the readings timestamped in [from, to].
+   *
+   * @return the summary, or null if there are no readings in the window
+   */
+  public synchronized Summary summarize(int index, long from, long to) {
+    int lo = lowerBound(from);
+    int hi = lowerBound(to + 1);
+    if (lo >= hi)
+      return null;
+
+    // The block being written holds both the newest and the oldest readings,
+    // so its summary does not describe a contiguous run and is not used.
+    int dirtyBlock = (_head % BLOCK_SIZE == 0) ? -1 : _head / BLOCK_SIZE;
+
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double sum = 0.0;
+    int i = lo;
+    while (i < hi) {
+      int p = physical(i);
+      int block = p / BLOCK_SIZE;
+      if (p % BLOCK_SIZE == 0 && i + BLOCK_SIZE <= hi && block != dirtyBlock) {
+        int b = block * _width + index;
+        min = Math.min(min, _blockMin[b]);
+        max = Math.max(max, _blockMax[b]);
+        sum += _blockSum[b];
+        i += BLOCK_SIZE;
+      } else {
+        double value = _values[p * _width + index];
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        i++;
+      }
+    }
+
+    int count = hi - lo;
+    return new Summary(count, min, max, sum / count,
+                       _values[physical(hi - 1) * _width + index],
+                       _times[physical(lo)], _times[physical(hi - 1)]);
+  }
+
+  /**
+   * Returns a percentile of one value over the readings timestamped in
+   * [from, to], using the nearest-rank method.
+   *
+   * @param percentile from 0 to 100
+   * @return the percentile, or NaN if there are no readings in the window
+   */
+  public synchronized double percentile(int index, double percentile, long from, long to) {
+    int lo = lowerBound(from);
+    int hi = lowerBound(to + 1);
+    if (lo >= hi)
+      return Double.NaN;
+
+    double[] window = new double[hi - lo];
+    for (int i = lo; i < hi; i++)
+      window[i - lo] = _values[physical(i) * _width + index];
+    Arrays.sort(window);
+
+    int rank = (int) Math.ceil(percentile / 100.0 * window.length);
+    return window[Math.min(Math.max(rank - 1, 0), window.length - 1)];
+  }
+
+  /**
+   * Returns the time of the latest reading, or 0 if there are none.
+   */
+  public synchronized long getLastTime() {
+    return (_size == 0) ? 0 : _times[physical(_size - 1)];
+  }
+
+  // Maps the i-th oldest reading to its position in the arrays.
+  private int physical(int i) {
+    return (_head - _size + i + _capacity) % _capacity;
+  }
+
+  // Returns the index of the oldest reading at or after the given time.
+  private int lowerBound(long time) {
+    int lo = 0;
+    int hi = _size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (_times[physical(mid)] < time)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+}
@@ -0,0 +1,114 @@
+import com.platypus.crw.VehicleServer.SensorType;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+/**
+ * A setting of each sensor type, read from preferences named after the type,
+ * along with the state that follows the setting on each channel.
+ * <p/>
+ * The preference for a type is the prefix followed by the type in lower
+ * case, e.g. "pref_sensor_filter_hds_depth", and the settings are kept up to
+ * date as the preferences change.  A type without a preference has the
+ * default setting.
+ *
+ * @param <C> the setting of a type
+ * @param <S> the state of a channel, following the setting of its type
+ */
+public abstract class SensorTypeConfig<C, S> {
+
+  private static final SensorType[] TYPES = SensorType.values();
+
+  private final String _prefPrefix;
+  private final Object[] _configs = new Object[TYPES.length];
+  private final ConcurrentMap<Integer, S> _states = new ConcurrentHashMap<Integer, S>();
+
+  /**
+   * @param prefPrefix the names of the preferences, without the type
+   * @param initial the setting of a type without a preference
+   */
+  protected SensorTypeConfig(String prefPrefix, C initial) {
+    _prefPrefix = prefPrefix;
+    Arrays.fill(_configs, initial);
+  }
+
+  /**
+   * Parses the setting from the value of a preference, which is empty if
+   * the preference is not set.
+   */
+  protected abstract C parse(String value);
+
+  /**
+   * Creates the state of a channel.
+   */
+  protected abstract S newState(C config);
+
+  /**
+   * Makes the state of a channel follow the current setting.
+   */
+  protected abstract void follow(S state, C config);
+
+  /**
+   * Returns the name of the preference holding the setting for a type.
+   */
+  public String prefName(SensorType type) {
+    return _prefPrefix + type.name().toLowerCase(Locale.US);
+  }
+
+  /**
+   * Reads the settings from the preferences, and keeps them up to date as
+   * the preferences change.
+   */
+  public void bind(Preferences prefs) {
+    for (SensorType type : TYPES)
+      set(type, parse(prefs.get(prefName(type), "")));
+
+    prefs.addPreferenceChangeListener(new PreferenceChangeListener() {
+        @Override
+        public void preferenceChange(PreferenceChangeEvent event) {
+          if (!event.getKey().startsWith(_prefPrefix))
+            return;
+          for (SensorType type : TYPES) {
+            if (event.getKey().equals(prefName(type)))
+              set(type, parse(event.getNewValue()));
+          }
+        }
+      });
+  }
+
+  public void set(SensorType type, C config) {
+    synchronized (_configs) {
+      _configs[type.ordinal()] = config;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public C get(SensorType type) {
+    synchronized (_configs) {
+      return (C) _configs[type.ordinal()];
+    }
+  }
+
+  /**
+   * Returns the state for the readings of a type from a channel, following
+   * the current setting.
+   */
+  public S state(int channel, SensorType type) {
+    C config = get(type);
+    Integer key = channel * TYPES.length + type.ordinal();
+    S state = _states.get(key);
+    if (state == null) {
+      S created = newState(config);
+      state = _states.putIfAbsent(key, created);
+      if (state == null)
+        state = created;
+    }
+    follow(state, config);
+    return state;
+  }
+}
@@ -1,5 +1,3 @@
-import com.platypus.crw.VehicleFilter;
-import com.platypus.crw.data.Twist;
 import com.platypus.crw.data.Utm;
 import com.platypus.crw.data.UtmPose;
 
@@ -13,7 +11,7 @@ import com.platypus.crw.data.Quaternion;
  * @author pkv
  *
  */
-public class SimpleFilter implements VehicleFilter {
+public class SimpleFilter implements WeightedVehicleFilter {
 	
 	// The largest allowed numerical integration timestep
 	// (larger intervals are integrated using multiple steps of this length)
@@ -24,17 +22,38 @@ public class SimpleFilter implements VehicleFilter {
 	public static final double ALPHA_COMPASS = 0.1;
 	public static final double ALPHA_GPS = 0.9;
 	
+	// Layout of the array filled by readPose(double[])
+	public static final int POSE_X = 0;
+	public static final int POSE_Y = 1;
+	public static final int POSE_Z = 2;
+	public static final int POSE_YAW = 3;
+	public static final int POSE_ZONE = 4;
+	public static final int POSE_NORTH = 5;
+	public static final int POSE_SIZE = 6;
+	
 	// Indicator variables used to mark whether absolute heading and position were measured
 	boolean _isInitializedGps = false;
 	boolean _isInitializedCompass = false;
 	
-	// State represented by 6D pose
-	UtmPose _pose = new UtmPose(new Pose3D(476608.34, 4671214.40, 172.35, 0, 0, 0), new Utm(17, true));
-	Twist _vels = new Twist();
+	// State represented by a planar pose in a UTM zone.  Updates are made
+	// under the lock on this filter, and make _seq odd while they write, so
+	// readers can copy the state without the lock: a copy is consistent if
+	// _seq was the same even number before and after it.  The fields are
+	// volatile so that the reads are ordered between the two checks.
+	private volatile int _seq = 0;
+	private volatile double _x = 476608.34;
+	private volatile double _y = 4671214.40;
+	private volatile double _z = 172.35;
+	private volatile double _yaw = 0.0;
+	private volatile int _zone = 17;
+	private volatile boolean _isNorth = true;
 	
 	// The current time in milliseconds, used to measure filter update intervals
 	long _time = System.currentTimeMillis();
 	
+	// Time of the last gyro update, from which the heading is integrated
+	long _gyroTime = -1;
+	
 	protected void predict(long time) {
 		/*while(_time < time) {
 			long step = Math.min(time - _time, MAX_STEP_MS);
@@ -52,73 +71,131 @@ public class SimpleFilter implements VehicleFilter {
 		*/
 	}
 	
+	/**
+	 * Corrects the heading toward a compass reading.  Between compass
+	 * readings the heading is carried forward by the gyro, so together they
+	 * form a complementary filter: the gyro tracks quick turns, and the
+	 * compass removes its drift.
+	 */
 	@Override
 	public synchronized void compassUpdate(double yaw, long time) {
 		// predict(time);
 		
-		_pose.pose = new Pose3D(_pose.pose.getX(), _pose.pose.getY(), _pose.pose.getZ(), 
-				Quaternion.fromEulerAngles(0, 0, yaw));
-		
-		/*// On the first compass update, simply take on the initial heading
+		_seq++;
+		// On the first compass update, simply take on the initial heading
 		if (_isInitializedCompass) {
-			double oldYaw = _pose.pose.getRotation().toYaw();
-			_pose.pose = new Pose3D(_pose.pose.getX(), _pose.pose.getY(), _pose.pose.getZ(), 
-					Quaternion.fromEulerAngles(0, 0, angleAverage(ALPHA_COMPASS, oldYaw, yaw)));
+			_yaw = normalizeAngle(angleAverage(ALPHA_COMPASS, _yaw, yaw));
 		} else {
-			_pose.pose = new Pose3D(_pose.pose.getX(), _pose.pose.getY(), _pose.pose.getZ(), 
-					Quaternion.fromEulerAngles(0, 0, yaw));
+			_yaw = normalizeAngle(yaw);
 			_isInitializedCompass = true;
 		}
-		*/
+		_seq++;
 	}
 
 	@Override
 	public synchronized void gpsUpdate(UtmPose utm, long time) {
+		gpsUpdate(utm, ALPHA_GPS, time);
+	}
+
+	@Override
+	public synchronized void gpsUpdate(UtmPose utm, double weight, long time) {
+		if (weight <= 0.0)
+			return;
 		predict(time);
 		
+		_seq++;
 		// If we are in the wrong zone or are uninitialized, use the GPS position
-		if (!_pose.origin.equals(utm.origin) || !_isInitializedGps) {
-			_pose.origin = utm.origin.clone();
-			_pose.pose = utm.pose.clone();
+		if (utm.origin.zone != _zone || utm.origin.isNorth != _isNorth || !_isInitializedGps) {
+			_zone = utm.origin.zone;
+			_isNorth = utm.origin.isNorth;
+			_x = utm.pose.getX();
+			_y = utm.pose.getY();
+			_z = utm.pose.getZ();
+			_yaw = utm.pose.getRotation().toYaw();
 			_isInitializedGps = true;
 		} else {
 			// On other update, average together the readings
-			double x = ALPHA_GPS * utm.pose.getX() + (1 - ALPHA_GPS) * _pose.pose.getX();
-			double y = ALPHA_GPS * utm.pose.getY() + (1 - ALPHA_GPS) * _pose.pose.getY();
-			double z = (utm.pose.getZ() == 0.0) ? _pose.pose.getZ() : utm.pose.getZ();
+			double alpha = Math.min(weight, 1.0);
+			_x = alpha * utm.pose.getX() + (1 - alpha) * _x;
+			_y = alpha * utm.pose.getY() + (1 - alpha) * _y;
+			if (utm.pose.getZ() != 0.0)
+				_z = utm.pose.getZ();
 			
-			// If we have a bearing, use it as well (yaw != exactly 0 in valid quaternions)
-			/*Quaternion orientation;
-			if (utm.pose.getRotation().toYaw() != 0.0) {
-				double oldYaw = _pose.pose.getRotation().toYaw();
-				double yaw = utm.pose.getRotation().toYaw();
-				orientation = Quaternion.fromEulerAngles(0, 0, angleAverage(ALPHA_GPS, oldYaw, yaw));
-			} else {
-				orientation = _pose.pose.getRotation();
-			}
-			*/
-			Quaternion orientation = _pose.pose.getRotation();
-			// Create new pose from update
-			 _pose.pose = new Pose3D(x,y,z,orientation);
+			// The bearing of a fix is not used; the heading is left to the
+			// compass and gyro.
 		}
+		_seq++;
 	}
 
+	/**
+	 * Records the yaw rate, and turns the heading by it over the time since
+	 * the previous gyro update.
+	 */
 	@Override
 	public synchronized void gyroUpdate(double yawVel, long time) {
-		/*predict(time);
-		_vels.drz(yawVel);
-		*/
+		if (_gyroTime >= 0 && time > _gyroTime) {
+			double dt = Math.min(time - _gyroTime, MAX_STEP_MS) / 1000.0;
+			_seq++;
+			_yaw = normalizeAngle(_yaw + dt * yawVel);
+			_seq++;
+		}
+		_gyroTime = Math.max(_gyroTime, time);
 	}
 
+	/**
+	 * Returns a new pose built from the current state.  Does not block on
+	 * updates.
+	 */
 	@Override
-	public synchronized UtmPose pose(long time) {
-		return _pose.clone();
+	public UtmPose pose(long time) {
+		double x, y, z, yaw;
+		int zone;
+		boolean isNorth;
+		int seq;
+		do {
+			seq = _seq;
+			x = _x;
+			y = _y;
+			z = _z;
+			yaw = _yaw;
+			zone = _zone;
+			isNorth = _isNorth;
+		} while ((seq & 1) != 0 || seq != _seq);
+		return new UtmPose(new Pose3D(x, y, z, Quaternion.fromEulerAngles(0, 0, yaw)), new Utm(zone, isNorth));
+	}
+
+	/**
+	 * Copies the current state into an array, laid out as given by the
+	 * POSE_ constants, without allocating or blocking on updates.
+	 * 
+	 * @param pose array of at least {@link #POSE_SIZE} elements; the zone is
+	 *             stored as a number, and the hemisphere as 1 for north and
+	 *             0 for south
+	 */
+	public void readPose(double[] pose) {
+		int seq;
+		do {
+			seq = _seq;
+			pose[POSE_X] = _x;
+			pose[POSE_Y] = _y;
+			pose[POSE_Z] = _z;
+			pose[POSE_YAW] = _yaw;
+			pose[POSE_ZONE] = _zone;
+			pose[POSE_NORTH] = _isNorth ? 1.0 : 0.0;
+		} while ((seq & 1) != 0 || seq != _seq);
 	}
 
 	@Override
 	public synchronized void reset(UtmPose pose, long time) {
 		_time = time;
-		_pose = pose.clone();
+		_seq++;
+		_x = pose.pose.getX();
+		_y = pose.pose.getY();
+		_z = pose.pose.getZ();
+		_yaw = pose.pose.getRotation().toYaw();
+		_zone = pose.origin.zone;
+		_isNorth = pose.origin.isNorth;
+		_seq++;
 		
 		_isInitializedGps = true;
 		_isInitializedCompass = true;
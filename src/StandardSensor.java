@@ -0,0 +1,289 @@
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The instrument types supported out of the box, each with the parser for
+ * the messages it sends, if any.  The names match the values of the
+ * "pref_sensor_N_type" preferences.
+ */
+public enum StandardSensor {
+
+	/**
+	 * No instrument on this port.
+	 */
+	NONE(null, false),
+
+	/**
+	 * An RC receiver, which is handled by the eboard and sends no messages.
+	 */
+	RC_SBUS(null, false),
+
+	/**
+	 * A water sampler, which is commanded but sends no messages.
+	 */
+	SAMPLER(null, false),
+
+	/**
+	 * Decagon ES2 conductivity and temperature probe: "data" is "ec temp".
+	 */
+	ES2(new SensorParser() {
+		@Override
+		public SensorData parse(VehicleServerImpl server, int channel, JSONObject value, long time) throws JSONException {
+			try {
+				// Parse out temperature and ec values
+				String[] data = value.getString("data").trim().split(" ");
+				double ecData = Double.parseDouble(data[0]);
+				double tempData = Double.parseDouble(data[1]);
+
+				// Todo: update stored temp and ec values then push to DO/pH probes
+				return reading(channel, SensorType.ES2, ecData, tempData);
+			} catch (NumberFormatException e) {
+				logger.log(Level.WARNING, "Received malformed ES2 Sensor Data: " + value);
+				return null;
+			}
+		}
+	}, true),
+
+	/**
+	 * Atlas Scientific dissolved oxygen probe.
+	 */
+	ATLAS_DO(new SensorParser() {
+		@Override
+		public SensorData parse(VehicleServerImpl server, int channel, JSONObject value, long time) throws JSONException {
+			return reading(channel, SensorType.ATLAS_DO, value.getDouble("data"));
+		}
+	}, true),
+
+	/**
+	 * Atlas Scientific pH probe.
+	 */
+	ATLAS_PH(new SensorParser() {
+		@Override
+		public SensorData parse(VehicleServerImpl server, int channel, JSONObject value, long time) throws JSONException {
+			return reading(channel, SensorType.ATLAS_PH, value.getDouble("data"));
+		}
+	}, true),
+
+	/**
+	 * Lowrance HDS sonar, forwarding NMEA depth, water temperature and the
+	 * position from its GPS receiver.  It only reports while the sonar is
+	 * running, so it is not expected to.
+	 */
+	HDS(new SensorParser() {
+		@Override
+		public SensorData parse(VehicleServerImpl server, int channel, JSONObject value, long time) throws JSONException {
+			NmeaParser nmea = nmea(value);
+			if (nmea == null)
+				return null;
+			switch (nmea.getType()) {
+				case DBT: //Depth Below Transducer
+					return measurement(channel, SensorType.HDS_DEPTH, nmea.getDepth(), nmea);
+				case MTW: //Water Temperature
+					return measurement(channel, SensorType.HDS_TEMP, nmea.getWaterTemperature(), nmea);
+				case RMC: //GPS
+				case GGA:
+					return positionFix(server, nmea, time);
+				default:
+					logger.log(Level.WARNING, "Unknown NMEA String: " + nmea.getSentence());
+					return null;
+			}
+		}
+	}, false),
+
+	/**
+	 * Eboard battery monitor: "data" is "voltage m0 m1".
+	 */
+	BATTERY(new SensorParser() {
+		@Override
+		public SensorData parse(VehicleServerImpl server, int channel, JSONObject value, long time) throws JSONException {
+			try {
+				// Parse out voltage and motor velocity values
+				String[] data = value.getString("data").trim().split(" ");
+				double voltage = Double.parseDouble(data[0]);
+				server.battery_voltage = voltage;
+				double motor0Velocity = Double.parseDouble(data[1]);
+				double motor1Velocity = Double.parseDouble(data[2]);
+				return reading(channel, SensorType.BATTERY, voltage, motor0Velocity, motor1Velocity);
+			} catch (NumberFormatException e) {
+				logger.log(Level.WARNING, "Received malformed Battery Sensor Data: " + value);
+				return null;
+			}
+		}
+	}, true),
+
+	/**
+	 * Depth winch, reporting the cable length paid out.
+	 */
+	WINCH(new SensorParser() {
+		@Override
+		public SensorData parse(VehicleServerImpl server, int channel, JSONObject value, long time) throws JSONException {
+			SensorData reading = reading(channel, SensorType.UNKNOWN, value.getDouble("depth"));
+
+			// TODO: Remove this hack to store winch depth
+			server.setWinchDepth(reading.data[0]);
+			return reading;
+		}
+	}, true),
+
+	/**
+	 * Go Systemes BlueBox, forwarding NMEA from its probes and GPS receiver.  Every message is
+	 * logged as-is, since only some of its sensors appear in the core library.
+	 */
+	BLUEBOX(new SensorParser() {
+		@Override
+		public SensorData parse(VehicleServerImpl server, int channel, JSONObject value, long time) throws JSONException {
+			// need to log sensor types that don't appear in the core library enum
+			// TODO: add new sensor types to Platypus core lib
+			server.mLogger.info(value);
+			NmeaParser nmea = nmea(value);
+			if (nmea == null)
+				return null;
+			if (nmea.getType() == NmeaParser.Type.GGA || nmea.getType() == NmeaParser.Type.RMC) {
+				return positionFix(server, nmea, time);
+			} else if (nmea.getType() == NmeaParser.Type.PGO && nmea.fieldEquals(0, "PGO00")) {
+				double sensor_value = nmea.getProbeValue();
+				if (Double.isNaN(sensor_value)) {
+					logger.log(Level.WARNING, "Received malformed Bluebox reading: " + nmea.getSentence());
+					return null;
+				}
+				if (nmea.isProbe("conductivity")) {
+					return reading(channel, SensorType.ES2, sensor_value, 0.0);
+				} else if (nmea.isProbe("Oxygen")) {
+					if (sensor_value < 0) {
+						logger.log(Level.WARNING, "BlueBox DO sensor returned negative value.");
+						return null;
+					}
+					return reading(channel, SensorType.ATLAS_DO, sensor_value);
+				} else if (nmea.isProbe("Turbidity")) {
+					return null; // TODO
+				} else if (nmea.isProbe("Redox")) {
+					return null; // TODO
+				} else if (nmea.isProbe("temperature")) {
+					return reading(channel, SensorType.ES2, 0.0, sensor_value);
+				} else {
+					logger.log(Level.WARNING, String.format("Unknown Bluebox $PGO00 sensor type: %s", nmea.getString(4)));
+					return null;
+				}
+			} else {
+				logger.log(Level.WARNING, String.format("Unknown Bluebox message of type: %s", nmea.getString(0)));
+				return null;
+			}
+		}
+	}, true);
+
+	private static final Logger logger = Logger.getLogger(StandardSensor.class.getName());
+
+	/**
+	 * NMEA parsers are reused for every sentence, one per receiving thread.
+	 * Checksums are verified whenever the instrument sends them.
+	 */
+	private static final ThreadLocal<NmeaParser> nmeaParsers = new ThreadLocal<NmeaParser>() {
+		@Override
+		protected NmeaParser initialValue() {
+			return new NmeaParser(false);
+		}
+	};
+
+	/**
+	 * The parser for messages from this instrument, or null if it sends none.
+	 */
+	public final SensorParser parser;
+
+	/**
+	 * True if a port with this instrument should warn when it is silent.
+	 */
+	public final boolean reports;
+
+	StandardSensor(SensorParser parser, boolean reports) {
+		this.parser = parser;
+		this.reports = reports;
+	}
+
+	/**
+	 * Parses the NMEA sentence in the "data" field of a message with this
+	 * thread's parser.
+	 *
+	 * @return the parser, or null if the sentence is malformed
+	 */
+	static NmeaParser nmea(JSONObject value) throws JSONException {
+		NmeaParser nmea = nmeaParsers.get();
+		if (nmea.parse(value.getString("data")) == null) {
+			logger.log(Level.WARNING, "Received malformed or corrupt NMEA sentence: " + value);
+			return null;
+		}
+		return nmea;
+	}
+
+	/**
+	 * Confidence in a GPS fix, by GGA fix quality: RTK fixed, RTK float,
+	 * differential and autonomous.  RMC does not report a quality, so it is
+	 * trusted as much as the eboard's receiver.
+	 */
+	static final double GPS_WEIGHT_RTK_FIXED = 0.98;
+	static final double GPS_WEIGHT_RTK_FLOAT = 0.95;
+	static final double GPS_WEIGHT_DGPS = 0.95;
+	static final double GPS_WEIGHT_AUTONOMOUS = SimpleFilter.ALPHA_GPS;
+
+	/**
+	 * Returns the confidence in the fix of a GGA or RMC sentence, reduced
+	 * when the horizontal dilution of precision is poor, or 0 if there is no
+	 * fix.
+	 */
+	static double gpsWeight(NmeaParser nmea) {
+		if (!nmea.hasFix())
+			return 0.0;
+		if (nmea.getType() == NmeaParser.Type.RMC)
+			return GPS_WEIGHT_AUTONOMOUS;
+
+		double weight;
+		switch (nmea.getFixQuality()) {
+			case 4: weight = GPS_WEIGHT_RTK_FIXED; break;
+			case 5: weight = GPS_WEIGHT_RTK_FLOAT; break;
+			case 2: weight = GPS_WEIGHT_DGPS; break;
+			default: weight = GPS_WEIGHT_AUTONOMOUS; break;
+		}
+		double hdop = nmea.getHdop();
+		return (hdop > 1.0) ? weight / hdop : weight;
+	}
+
+	/**
+	 * Feeds the position in a GGA or RMC sentence, taken at the given time,
+	 * into the vehicle's pose filter.  Positions are not sensor readings, so
+	 * this always returns null.
+	 */
+	static SensorData positionFix(VehicleServerImpl server, NmeaParser nmea, long time) {
+		double weight = gpsWeight(nmea);
+		if (weight > 0.0)
+			server.onGpsFix(nmea.getLatitude(), nmea.getLongitude(), weight, time);
+		return null;
+	}
+
+	/**
+	 * Creates a reading from a single NMEA field, or returns null if the
+	 * field is empty or malformed.
+	 */
+	static SensorData measurement(int channel, SensorType type, double value, NmeaParser nmea) {
+		if (Double.isNaN(value)) {
+			logger.log(Level.WARNING, "Failed to parse " + type + " reading: " + nmea.getSentence());
+			return null;
+		}
+		return reading(channel, type, value);
+	}
+
+	/**
+	 * Creates a sensor reading.
+	 */
+	static SensorData reading(int channel, SensorType type, double... data) {
+		SensorData reading = new SensorData();
+		reading.channel = channel;
+		reading.type = type;
+		reading.data = data;
+		return reading;
+	}
+}
@@ -0,0 +1,37 @@
+import com.platypus.crw.data.Twist;
+
+/**
+ * Converts a commanded vehicle velocity into the individual actuator signals
+ * of a particular hull.
+ * <p/>
+ * Mixers are called from the update loop on every tick, so {@link #mix} must
+ * write into the array it is given and must not allocate.
+ */
+public interface ThrustMixer {
+
+  /**
+   * Returns the number of actuator signals produced by this mixer.
+   */
+  int getNumOutputs();
+
+  /**
+   * Returns the eboard channel that an output is sent to, e.g. "m0" or "s0".
+   */
+  String getChannel(int output);
+
+  /**
+   * Returns the JSON field used to send an output, "v" for motor velocity or
+   * "p" for servo position.
+   */
+  String getField(int output);
+
+  /**
+   * Computes actuator signals for the commanded velocity.
+   *
+   * @param velocity    the commanded velocity, [dx, dy, dz, drx, dry, drz]
+   * @param thrustGains the current thrust PID gains, which must not be modified
+   * @param outputs     array of at least {@link #getNumOutputs()} elements that
+   *                    receives the actuator signals
+   */
+  void mix(Twist velocity, double[] thrustGains, double[] outputs);
+}
@@ -0,0 +1,239 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+
+/**
+ * Everything that belongs to a single vehicle: its name, eboard connection,
+ * log file, preferences, breadcrumbs and mission journal, along with the
+ * thread pools that run its periodic loops.
+ * <p/>
+ * Nothing in a context is static, so any number of vehicles can run in the
+ * same process.  The pools may be shared by many contexts, in which case
+ * they are owned (and shut down) by whoever created them rather than by the
+ * vehicles.
+ */
+public class VehicleContext {
+
+  /**
+   * Number of scheduler threads used by a vehicle that is not given a
+   * shared scheduler.
+   */
+  public static final int DEFAULT_SCHEDULER_THREADS = 2;
+
+  /**
+   * Number of scheduler threads that may be added to replace hung ones.
+   */
+  public static final int MAX_EXTRA_THREADS = 4;
+
+  /**
+   * Directory under which each vehicle keeps its mission journal.
+   */
+  public static final File JOURNAL_DIRECTORY = new File("platypus", "journal");
+
+  private static final Logger logger = Logger.getLogger(VehicleContext.class.getName());
+
+  /**
+   * The thread pools of one or more vehicles.
+   */
+  public static class Pools {
+    /**
+     * Runs the periodic loops and timeouts.
+     */
+    public final ScheduledExecutorService scheduler;
+
+    /**
+     * A single thread that checks the loops, apart from the scheduler, so
+     * that loops hung on every scheduler thread are still caught.
+     */
+    public final ScheduledExecutorService watchdog;
+
+    /**
+     * A single thread that writes the sensor archives.
+     */
+    public final ScheduledExecutorService archive;
+
+    /**
+     * Handle the messages of the sensor pipelines, apart from the priority
+     * sources, which have a thread of their own.
+     */
+    public final ExecutorService sensors;
+    public final ExecutorService prioritySensors;
+
+    /**
+     * A single thread that delivers batches of readings to the sensor
+     * listeners, off the update loop.
+     */
+    public final ExecutorService listeners;
+
+    private final int _threads;
+
+    /**
+     * Creates pools with the number of sensor threads given by the default
+     * preferences.
+     *
+     * @param name    prefix of the thread names
+     * @param threads number of scheduler threads
+     */
+    public Pools(String name, int threads) {
+      this(name, threads, rootPrefs().getInt(SensorPipelines.THREADS_PREF, SensorPipelines.DEFAULT_THREADS));
+    }
+
+    /**
+     * @param name          prefix of the thread names
+     * @param threads       number of scheduler threads
+     * @param sensorThreads number of threads for the sensor pipelines
+     *                      without priority
+     */
+    public Pools(String name, int threads, int sensorThreads) {
+      _threads = threads;
+      scheduler = newScheduler(name, threads);
+      watchdog = newScheduler(name + "-watchdog", 1);
+      archive = newScheduler(name + "-archive", 1);
+      sensors = newScheduler(name + "-sensors", Math.max(1, sensorThreads));
+      prioritySensors = newScheduler(name + "-sensors-priority", 1);
+      listeners = newScheduler(name + "-listeners", 1);
+    }
+
+    /**
+     * Adds a scheduler thread if every one is busy, e.g. with a hung tick,
+     * so that restarted loops can run.  At most {@link #MAX_EXTRA_THREADS}
+     * are added.
+     */
+    public void compensate() {
+      if (!(scheduler instanceof ScheduledThreadPoolExecutor))
+        return;
+      ScheduledThreadPoolExecutor executor = (ScheduledThreadPoolExecutor) scheduler;
+      synchronized (this) {
+        int size = executor.getCorePoolSize();
+        if (executor.getActiveCount() < size || size >= _threads + MAX_EXTRA_THREADS)
+          return;
+        executor.setCorePoolSize(size + 1);
+      }
+      logger.log(Level.WARNING, "Every scheduler thread is busy, adding one");
+    }
+
+    public void shutdown() {
+      watchdog.shutdownNow();
+      scheduler.shutdownNow();
+      sensors.shutdownNow();
+      prioritySensors.shutdownNow();
+      listeners.shutdownNow();
+      archive.shutdown();
+    }
+  }
+
+  /**
+   * Name of the vehicle, used for its log file and preferences node.  The
+   * default vehicle has an empty name.
+   */
+  public final String name;
+
+  public final Pools pools;
+  public final ScheduledExecutorService scheduler;
+  public final Controller controller;
+  public final VehicleLogger vehicleLogger;
+  public final Preferences prefs;
+  public final CrumbGraph crumbs = new CrumbGraph();
+
+  /**
+   * Journal from which the mission is recovered after a restart, or null if
+   * the mission is not journaled.
+   */
+  public final MissionJournal journal;
+
+  private final boolean _ownsPools;
+
+  /**
+   * Creates the context of a named vehicle that runs its loops on shared
+   * pools.  Its preferences are stored in a child node of the default
+   * preferences, named after the vehicle.
+   */
+  public VehicleContext(String name, Pools pools,
+                        Controller controller, VehicleLogger vehicleLogger, MissionJournal journal) {
+    this(name, pools, false, controller, vehicleLogger, journal);
+  }
+
+  private VehicleContext(String name, Pools pools, boolean ownsPools,
+                         Controller controller, VehicleLogger vehicleLogger, MissionJournal journal) {
+    this.name = name;
+    this.pools = pools;
+    this.scheduler = pools.scheduler;
+    this.controller = controller;
+    this.vehicleLogger = vehicleLogger;
+    this.journal = journal;
+    Preferences root = rootPrefs();
+    this.prefs = name.isEmpty() ? root : root.node(name);
+    _ownsPools = ownsPools;
+  }
+
+  /**
+   * Creates the context of the default vehicle, with pools and a mission
+   * journal of its own.
+   */
+  public static VehicleContext standalone(Controller controller, VehicleLogger vehicleLogger) {
+    return new VehicleContext("", new Pools("vehicle", DEFAULT_SCHEDULER_THREADS),
+                              true, controller, vehicleLogger, openJournal("default", null));
+  }
+
+  /**
+   * Returns the default preferences, those of the default vehicle, of which
+   * the preferences of named vehicles are children.
+   */
+  public static Preferences rootPrefs() {
+    return Preferences.userNodeForPackage(VehicleServerImpl.class);
+  }
+
+  /**
+   * Opens the mission journal of a named vehicle, or returns null (so the
+   * vehicle runs without one) if it cannot be opened.
+   *
+   * @param io single-threaded executor for journal I/O, or null to create one
+   */
+  public static MissionJournal openJournal(String name, ScheduledExecutorService io) {
+    File directory = new File(JOURNAL_DIRECTORY, name);
+    try {
+      return new MissionJournal(directory, io);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to open mission journal in " + directory, e);
+      return null;
+    }
+  }
+
+  /**
+   * Creates a scheduler with named daemon threads, suitable for sharing
+   * between vehicles.
+   */
+  public static ScheduledExecutorService newScheduler(final String name, int threads) {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+        private final AtomicInteger _count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, name + "-" + _count.getAndIncrement());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    // Cancelled loops are rescheduled often, so do not let them pile up.
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  /**
+   * Releases the resources owned by this vehicle.  Shared pools are left
+   * running.
+   */
+  public void shutdown() {
+    if (journal != null)
+      journal.close();
+    if (_ownsPools)
+      pools.shutdown();
+  }
+}
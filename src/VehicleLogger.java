@@ -64,12 +64,23 @@ public class VehicleLogger {
      * Create a new vehicle log file.
      */
     public VehicleLogger() {
+        this("");
+    }
+
+    /**
+     * Create a new vehicle log file for a named vehicle, so that vehicles
+     * started in the same process at the same time get separate files.
+     *
+     * @param name the vehicle name, or an empty string for the default name
+     */
+    public VehicleLogger(String name) {
         // Construct the path to the new log file.
         File logDirectory = new File("platypus");
         //File logDirectory = new File(Environment.getExternalStoragePublicDirectory(
         //Environment.DIRECTORY_DOCUMENTS), "platypus");
-        mLogFileFinal = new File(logDirectory, defaultFilename());
-        mLogFile = new File(logDirectory, defaultFilename()+".incomplete");
+        String filename = defaultFilename(name);
+        mLogFileFinal = new File(logDirectory, filename);
+        mLogFile = new File(logDirectory, filename+".incomplete");
 
         // Set up a writer for the vehicle log file.
         try {
@@ -97,12 +108,14 @@ public class VehicleLogger {
     /**
      * Constructs a default filename from the current date and time.
      *
+     * @param name the vehicle name, or an empty string for the default name
      * @return the default filename for the current time.
      */
-    private static String defaultFilename() {
+    private static String defaultFilename(String name) {
         Date d = new Date();
         SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
-        return DEFAULT_LOG_PREFIX + sdf.format(d) + ".txt";
+        String prefix = name.isEmpty() ? DEFAULT_LOG_PREFIX : DEFAULT_LOG_PREFIX + name + "_";
+        return prefix + sdf.format(d) + ".txt";
     }
 
     public synchronized void close() {
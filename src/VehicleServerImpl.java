@@ -17,6 +17,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.platypus.crw.AbstractVehicleServer;
+import com.platypus.crw.SensorListener;
 import com.platypus.crw.VehicleController;
 import com.platypus.crw.VehicleFilter;
 import com.platypus.crw.VehicleServer;
@@ -33,11 +34,12 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.measure.unit.NonSI;
 import javax.measure.unit.SI;
@@ -56,9 +58,9 @@ import sun.rmi.runtime.Log;
 public class VehicleServerImpl extends AbstractVehicleServer {
 
 
-  Preferences mPrefs = Preferences.userNodeForPackage(this.getClass());
+  final Preferences mPrefs;
   /*pref variables */
-  private String _vehicleType="DIFFERENTIAL"; //need to set this somewhere
+  private volatile String _vehicleType = VehicleType.DIFFERENTIAL.name();
   //private String[] _expected_type = new String[3];
 
   private float gain_tP = 0.7f;
@@ -72,6 +74,7 @@ public class VehicleServerImpl extends AbstractVehicleServer {
 
 
   public static final int UPDATE_INTERVAL_MS = 100;
+  public static final int RECEIVE_INTERVAL_MS = 10;
   public static final int NUM_SENSORS = 5;
 
   /**
@@ -87,73 +90,139 @@ public class VehicleServerImpl extends AbstractVehicleServer {
   //protected final SharedPreferences mPrefs;
   protected final SensorType[] _sensorTypes = new SensorType[NUM_SENSORS];
   protected final Object _captureLock = new Object();
-  protected final Object _navigationLock = new Object();
-  protected final Object _waypointLock = new Object();
   // Status information
   final AtomicBoolean _isConnected = new AtomicBoolean(false);
   final AtomicBoolean _isAutonomous = new AtomicBoolean(false);
   final AtomicBoolean _isRunning = new AtomicBoolean(true);
   // Internal references.
   //final Context _context;
+  final VehicleContext mContext;
   final VehicleLogger mLogger;
   final Controller mController;
-  // Velocity shutdown timer.
-  final ScheduledThreadPoolExecutor mVelocityExecutor = new ScheduledThreadPoolExecutor(1);
+  // Scheduler for all periodic loops and timeouts, possibly shared with other vehicles.
+  final ScheduledExecutorService mScheduler;
   /**
-   * Raw gyroscopic readings from the phone gyro.
+   * The timeline on which readings, fixes and poses are stamped, and the
+   * estimated offsets of the eboard and GPS clocks from it.
    */
-  final Object gyro_lock = new Object();
-  final double[] _gyroPhone = new double[3];
-  private final Timer _updateTimer = new Timer();
-  private final Timer _navigationTimer = new Timer();
-  private final Timer _captureTimer = new Timer();
-  protected UtmPose[] _waypoints = new UtmPose[0];
-  int current_waypoint_index = -1;
+  final ClockSync _clock = new ClockSync();
+  /**
+   * Number of IMU samples kept, about ten seconds at the eboard rate.
+   */
+  public static final int IMU_HISTORY_SIZE = 1024;
+
+  /**
+   * Age after which the last IMU sample no longer counts as the current
+   * yaw rate.
+   */
+  public static final long IMU_TIMEOUT_MS = 500;
+
+  public static final String IMU_LOG_INTERVAL_PREF = "pref_imu_log_interval_ms";
+  public static final long DEFAULT_IMU_LOG_INTERVAL_MS = 1000;
+
+  /**
+   * Samples from the eboard IMU, read by the update loop into the filter.
+   */
+  final ImuHistory _imu = new ImuHistory(IMU_HISTORY_SIZE);
+
+  /**
+   * Fuses the fixes of the eboard GPS receivers, read by the update loop
+   * into the filter.
+   */
+  final GpsFusion _gps;
+  private long _imuApplied = 0;
+  private long _lastImuLogTime = 0;
+  private final long _imuLogInterval;
+  private final double[] _imuSample = new double[ImuHistory.WIDTH];
+
+  // Filled by getGyro(), on the update thread.
+  private final double[] _gyroSample = new double[ImuHistory.WIDTH];
+  private final double[] _gyro = new double[3];
+  private volatile UpdateTask _updateTask = null;
+
+  /**
+   * All mutations of the vehicle state are submitted to this queue and
+   * applied in order on the update thread, so the fields below are only ever
+   * written by that thread.  They are volatile so that other threads can read
+   * them, and arrays are replaced rather than modified.
+   */
+  final CommandQueue _commands = new CommandQueue();
+  public static final int MAX_COMMANDS_PER_TICK = 256;
+
+  /**
+   * Interval at which a snapshot of the mission, including the pose, is
+   * written to the journal while the vehicle is autonomous.
+   */
+  public static final long SNAPSHOT_INTERVAL_MS = 5000;
+  private long _lastSnapshotTime = 0;
+
+
+  /**
+   * Interval at which the metrics of the sensor pipelines are logged.
+   */
+  public static final long PIPELINE_LOG_INTERVAL_MS = 10000;
+  private long _lastPipelineLogTime = 0;
+
+  /**
+   * Interval between checks for sensor ports that have gone silent.
+   */
+  public static final long PRESENCE_CHECK_INTERVAL_MS = 1000;
+  private long _lastPresenceCheckTime = 0;
+
+  protected volatile UtmPose[] _waypoints = new UtmPose[0];
+
+  /**
+   * Chooses the waypoints of an adaptive sampling mission, or null if the
+   * mission follows fixed waypoints.
+   */
+  volatile AdaptiveSampler _adaptive = null;
+  volatile int current_waypoint_index = -1;
 
   private static final Logger logger = Logger.getLogger(VehicleServerImpl.class.getName());
 
   public int getCurrentWaypointIndex()
   {
-    synchronized (_waypointLock)
-      {
-        return current_waypoint_index;
-      }
+    return current_waypoint_index;
   }
   public void incrementWaypointIndex()
   {
-    synchronized (_waypointLock)
-      {
-        current_waypoint_index++;
-        //Log.i(TAG, String.format("New waypoint index = %d", current_waypoint_index));
-        logger.log(Level.INFO,String.format("New waypoint index = %d", current_waypoint_index));
-      }
+    _commands.submit(new CommandQueue.Command("incrementWaypointIndex") {
+        @Override
+        protected void apply() {
+          current_waypoint_index++;
+          //Log.i(TAG, String.format("New waypoint index = %d", current_waypoint_index));
+          logger.log(Level.INFO,String.format("New waypoint index = %d", current_waypoint_index));
+        }
+
+        @Override
+        protected JSONObject encode() throws JSONException {
+          return new JSONObject().put("index", current_waypoint_index);
+        }
+      });
   }
   public UtmPose getCurrentWaypoint()
   {
-    synchronized (_waypointLock)
+    UtmPose[] waypoints = _waypoints;
+    int wp_index = current_waypoint_index;
+    if (wp_index >= 0 && wp_index < waypoints.length)
       {
-        if (current_waypoint_index >= 0)
-          {
-            return _waypoints[current_waypoint_index];
-          }
-        else
-          {
-            return null;
-          }
+        return waypoints[wp_index];
+      }
+    else
+      {
+        return null;
       }
   }
   public UtmPose getSpecificWaypoint(int i)
   {
-    synchronized (_waypointLock)
+    UtmPose[] waypoints = _waypoints;
+    if (i < waypoints.length)
       {
-        if (i < _waypoints.length)
-          {
-            return _waypoints[i];
-          }
-        else
-          {
-            return null;
-          }
+        return waypoints[i];
+      }
+    else
+      {
+        return null;
       }
   }
 
@@ -162,42 +231,171 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     return _vehicleType;
   }
 
-  protected TimerTask _captureTask = null;
-  protected TimerTask _navigationTask = null;
+  /**
+   * Mixer used to convert the commanded velocity into actuator signals, and
+   * the preallocated array it writes into (only touched by the update loop).
+   */
+  private volatile ThrustMixer _thrustMixer = VehicleType.DIFFERENTIAL.mixer;
+  private double[] _thrustOutputs = new double[2];
+
+  /**
+   * Switches the hull type, taking effect on the next update tick.
+   *
+   * @param vehicleType the name of a {@link VehicleType}
+   */
+  public void setVehicleType(String vehicleType)
+  {
+    if (AllocationMixer.VEHICLE_TYPE.equalsIgnoreCase(vehicleType))
+      {
+        setThrusterGeometry(mPrefs.get(AllocationMixer.GEOMETRY_PREF, ""));
+        return;
+      }
+    VehicleType type = VehicleType.fromString(vehicleType);
+    if (type == null)
+      {
+        //Log.w(TAG, "Unknown vehicle type: " + vehicleType);
+        logger.log(Level.WARNING,"Unknown vehicle type: " + vehicleType);
+        return;
+      }
+    _vehicleType = type.name();
+    _thrustMixer = type.mixer;
+  }
+
+  /**
+   * Switches to a CUSTOM hull with the given thruster geometry, taking effect
+   * on the next update tick.
+   *
+   * @param geometry thruster geometry in the format of {@link AllocationMixer}
+   */
+  public void setThrusterGeometry(String geometry)
+  {
+    try
+      {
+        setThrustMixer(AllocationMixer.VEHICLE_TYPE, new AllocationMixer(geometry));
+      }
+    catch (IllegalArgumentException e)
+      {
+        logger.log(Level.WARNING,"Invalid thruster geometry: " + e.getMessage());
+      }
+  }
+
+  /**
+   * Replaces the thrust mixer with a custom one, taking effect on the next
+   * update tick.
+   */
+  public void setThrustMixer(String vehicleType, ThrustMixer mixer)
+  {
+    _vehicleType = vehicleType;
+    _thrustMixer = mixer;
+  }
+
+  /**
+   * Sends the actuator signals computed by a mixer to the eboard as a single
+   * JSON command, and logs the command.
+   */
+  void sendThrustCommand(ThrustMixer mixer, double[] outputs)
+  {
+    JSONObject command = new JSONObject();
+    try
+      {
+        for (int i = 0; i < mixer.getNumOutputs(); i++)
+          {
+            command.put(mixer.getChannel(i),
+                        new JSONObject().put(mixer.getField(i), (float) outputs[i]));
+          }
+
+        // Send and log the transmitted command.
+        if (mController != null && mController.isConnected())
+          mController.send(command);
+        mLogger.info(new JSONObject().put("cmd", command));
+      }
+    catch (JSONException e)
+      {
+        //Log.w(TAG, "Failed to serialize command.", e);
+        logger.log(Level.WARNING,"Failed to serialize command", e);
+      }
+    catch (IOException | Controller.ControllerException e)
+      {
+        //Log.w(TAG, "Failed to send command." + e);
+        logger.log(Level.WARNING,"Failed to send command", e);
+      }
+  }
+
+  protected ScheduledFuture<?> _captureTask = null;
+  protected NavigationTask _navigationTask = null;
   ScheduledFuture mVelocityFuture = null;
   /**
-   * Inertial state vector, currently containing a 6D pose estimate:
-   * [x,y,z,roll,pitch,yaw]
+   * Pose used until the first GPS fix is received.
+   */
+  static final UtmPose INITIAL_POSE = new UtmPose(new Pose3D(476608.34, 4671214.40, 172.35, 0, 0, 0), new Utm(17, true));
+
+  /**
+   * Preference selecting the pose filter, "simple" or "ekf".
    */
-  UtmPose _utmPose = new UtmPose(new Pose3D(476608.34, 4671214.40, 172.35, 0, 0, 0), new Utm(17, true));
+  public static final String FILTER_PREF = "pref_vehicle_filter";
 
   /**
    * Filter used internally to update the current pose estimate
    */
-  VehicleFilter filter = new SimpleFilter();
+  VehicleFilter filter;
 
   /**
    * Inertial velocity vector, containing a 6D angular velocity estimate: [rx,
    * ry, rz, rPhi, rPsi, rOmega]
    */
-  Twist _velocities = new Twist(DEFAULT_TWIST);
+  volatile Twist _velocities = new Twist(DEFAULT_TWIST);
   /**
    * Hard-coded PID gains and thrust limits per vehicle type.
    * These values are loaded from the application SharedPreferences in the class constructor.
+   * The arrays are replaced rather than modified once the server is running.
    */
-  double[] r_PID = new double[3];
-  double[] t_PID = new double[3];
+  volatile double[] r_PID = new double[3];
+  volatile double[] t_PID = new double[3];
+
+  /**
+   * The most recent snapshot of the vehicle state, which is the only way
+   * that other threads should read the pose, velocity, gains and battery.
+   */
+  private volatile VehicleState _state = new VehicleState(
+      _clock.now(), INITIAL_POSE.clone(), _velocities, r_PID, t_PID,
+      16.0, -1, false, false);
+
+  /**
+   * Returns the most recently published snapshot of the vehicle state.
+   */
+  public VehicleState getState()
+  {
+    return _state;
+  }
+
+  /**
+   * Rebuilds the state snapshot around a new pose estimate and publishes it.
+   */
+  private VehicleState publishState(UtmPose pose)
+  {
+    VehicleState state = new VehicleState(_clock.now(), pose,
+                                          _velocities, r_PID, t_PID,
+                                          battery_voltage, current_waypoint_index,
+                                          _isAutonomous.get(),
+                                          is_executing_failsafe.get());
+    _state = state;
+    return state;
+  }
 
   // TODO: Remove this variable, it is totally arbitrary
-  private double winch_depth_ = Double.NaN;
+  private volatile double winch_depth_ = Double.NaN;
+
+  void setWinchDepth(double depth)
+  {
+    winch_depth_ = depth;
+  }
 
   //Define Notification Manager
   // NotificationManager notificationManager;
   // //Define sound URI
   // Uri soundUri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
 
-  private UTM home_UTM = UtmPose_to_UTM(_utmPose); // cannot be null or core lib will crash
-  private Object home_lock = new Object();
+  private volatile UTM home_UTM = UtmPose_to_UTM(INITIAL_POSE); // cannot be null or core lib will crash
   AtomicBoolean first_autonomy = new AtomicBoolean(true); // used to generate a home_UTM automatically once
   public UTM UtmPose_to_UTM(UtmPose utmPose)
   {
@@ -230,22 +428,24 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     UTM utm = UTM.latLongToUtm(latlong, ReferenceEllipsoid.WGS84);
     return UTM_to_UtmPose(utm);
   }
-  private final Object _failsafe_check_lock = new Object();
-  double battery_voltage = 16.0;
+  volatile double battery_voltage = 16.0;
   final private long HEARTBEAT_MAX_WAIT_MS = 60000;
   final private double FAILSAFE_TRIGGER_VOLTAGE = 14.0;
+  static final long FAILSAFE_INTERVAL_MS = 10000;
   private AtomicLong last_heartbeat = new AtomicLong(System.currentTimeMillis());
   private AtomicBoolean is_executing_failsafe = new AtomicBoolean(false);
-  private final Timer _failsafe_timer = new Timer();
-  private TimerTask failsafe_check = new TimerTask() {
-      double local_battery_voltage = 0;
+  private volatile FailsafeTask _failsafeTask = null;
+  private class FailsafeTask extends Watchdog.GuardedTask {
       long ms_since_last_heartbeat;
+
+      FailsafeTask() { super(_failsafeLoop, _failsafeLock); }
+
       @Override
-      public void run()
+      protected void tick()
       {
         if (first_autonomy.get()) return; // don't even bother with these checks until the boat is autonomous once
         ms_since_last_heartbeat = System.currentTimeMillis() - last_heartbeat.get();
-        synchronized (_failsafe_check_lock) { local_battery_voltage = battery_voltage; }
+        double local_battery_voltage = _state.batteryVoltage;
         if (!is_executing_failsafe.get()) //
           {
             if (local_battery_voltage < FAILSAFE_TRIGGER_VOLTAGE)
@@ -285,297 +485,440 @@ public class VehicleServerImpl extends AbstractVehicleServer {
             */
           }
       }
-    };
+    }
 
-  boolean[] received_expected_sensor_type = {false, false, false};
-  public void reset_expected_sensors()
-  {
-    for (int i = 0; i < 3; i++)
-      {
-        received_expected_sensor_type[i] = false;
+  /**
+   * Parsers for sensor messages, and the sensor type expected on each port.
+   */
+  final SensorRegistry _sensors = new SensorRegistry(3);
+
+  /**
+   * Number of filter poses kept for geotagging, one per update.
+   */
+  public static final int POSE_HISTORY_SIZE = 600;
+
+  /**
+   * Recent poses from the filter, for placing readings where they were taken.
+   */
+  final PoseHistory _poseHistory = new PoseHistory(POSE_HISTORY_SIZE);
+
+  /**
+   * Running statistics of the mapped sensors over the surveyed area.
+   */
+  final SensorGrid _grid;
+
+  /**
+   * Every sensor reading, kept on disk for later queries, or null if
+   * archiving is disabled.
+   */
+  final SensorArchive _archive;
+
+  /**
+   * Recent readings from every sensor, for summary queries.
+   */
+  final SensorHistory _history;
+
+  /**
+   * Outlier rejection and smoothing for each sensor type.
+   */
+  final SensorFilters _sensorFilters = new SensorFilters();
+
+  /**
+   * Which readings of each sensor type are logged and which are broadcast.
+   */
+  final SensorPolicies _sensorPolicies = new SensorPolicies();
+
+  /**
+   * Batches readings on their way to the sensor listeners.
+   */
+  final SensorBatcher _sensorBatcher;
+
+  /**
+   * Handles the messages of each sensor channel and GPS receiver apart from
+   * the receive loop and from each other.
+   */
+  final SensorPipelines _pipelines;
+
+  private final SensorPipelines.Handler _messageHandler = new SensorPipelines.Handler() {
+      @Override
+      public void handle(String source, JSONObject message, long arrival) throws JSONException {
+        onMessage(source, message, arrival);
       }
-  }
+    };
+
+  /**
+   * Delivers a batch of readings to the sensor listeners of each channel,
+   * taking the listener lock once per batch.  A {@link SensorBatchListener}
+   * gets the readings of its channel in one call, others one reading at a
+   * time.  Called one batch at a time, on the listener thread of the pools
+   * except for the last flush at shutdown.
+   */
+  private final SensorBatcher.Sink _sensorSink = new SensorBatcher.Sink() {
+      // The readings of one channel, and whether a channel is done.
+      private SensorData[] _group = new SensorData[0];
+      private boolean[] _sent = new boolean[0];
 
-  private final Timer _sensorTypeTimer = new Timer();
-  private TimerTask expect_sensor_type_task = new TimerTask() {
       @Override
-      public void run() {
-        for (int i = 0; i < 3; i++)
-          {
-            try {
-              Thread.sleep(1000); // sleep for all sensor slots, even if empty
-            } catch(InterruptedException ex) {
-              Thread.currentThread().interrupt();
+      public void send(int[] channels, SensorData[] readings, int count) {
+        if (_sent.length < count) {
+          _group = new SensorData[count];
+          _sent = new boolean[count];
+        }
+        Arrays.fill(_sent, 0, count, false);
+
+        synchronized (_sensorListeners) {
+          for (int i = 0; i < count; i++) {
+            if (_sent[i])
+              continue;
+            int size = 0;
+            for (int j = i; j < count; j++) {
+              if (channels[j] == channels[i]) {
+                _group[size++] = readings[j];
+                _sent[j] = true;
+              }
             }
-            if (!received_expected_sensor_type[i])
-              {
-                String sensor_array_name = "pref_sensor_" + Integer.toString(i+1) + "_type";
-                String _expected_type = mPrefs.get(sensor_array_name, "NONE");
-                if (_expected_type.equals("NONE")
-                    || _expected_type.equals("RC_SBUS")
-                    || _expected_type.equals("HDS")
-                    || _expected_type.equals("SAMPLER"))
-                  {
-                    continue; // these types do not expect JSON
-                  }
-                String message = "s" + (i+1) + " expects " + _expected_type + " not received yet";
-                //Log.w(TAG, message);
-                logger.log(Level.WARNING,message);
-                //     NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(_context)
-                //             .setSmallIcon(R.drawable.camera_icon) //just some random icon placeholder
-                //             .setContentTitle("Sensor Warning")
-                //             .setContentText(message)
-                //             .setSound(soundUri); //This sets the sound to play
-                //     notificationManager.notify(0, mBuilder.build());
+            List<SensorListener> listeners = _sensorListeners.get(channels[i]);
+            if (listeners != null) {
+              for (SensorListener listener : listeners) {
+                if (listener instanceof SensorBatchListener) {
+                  ((SensorBatchListener) listener).receivedSensors(_group, size);
+                } else {
+                  for (int k = 0; k < size; k++)
+                    listener.receivedSensor(_group[k]);
+                }
               }
+            }
+            Arrays.fill(_group, 0, size, null);
           }
+        }
       }
     };
 
-  double[] scaleDown(double[] raw_signals)
-  {
-    /*ASDF*/
-    double[] scaled_signals = raw_signals.clone();
-    boolean needs_scaling = false;
-    double max_signal = 0.0;
-    for (double signal : raw_signals)
-      {
-        if (Math.abs(signal) > 1.0)
-          {
-            needs_scaling = true;
-          }
-        if (Math.abs(signal) > max_signal)
-          {
-            max_signal = Math.abs(signal);
-          }
+  /**
+   * Whether each sensor port is receiving the type it expects, and how often.
+   */
+  final SensorPresence _presence;
+
+  private final SensorPresence.Listener _presenceListener = new SensorPresence.Listener() {
+      @Override
+      public void lost(int port, int type, long silentMs) {
+        logger.log(Level.WARNING, "s" + port + " expects " + _sensors.getName(type)
+                   + ", none received for " + silentMs + " ms");
+        logPresence(port, type, "lost", silentMs);
       }
-    if (needs_scaling)
-      {
-        for (int i = 0; i < raw_signals.length; i++)
-          {
-            scaled_signals[i] = raw_signals[i]/max_signal;
-          }
+
+      @Override
+      public void recovered(int port, int type, long gapMs) {
+        logger.log(Level.INFO, "s" + port + " is receiving " + _sensors.getName(type)
+                   + " again after " + gapMs + " ms");
+        logPresence(port, type, "recovered", gapMs);
       }
-    return scaled_signals;
-  }
+    };
 
   /**
    * Internal update function called at regular intervals to process command
    * and control events.
    */
-    private TimerTask _updateTask = new TimerTask() {
+    private class UpdateTask extends Watchdog.GuardedTask {
+
+        UpdateTask() { super(_updateLoop, _tickLock); }
 
         @Override
-        public void run() {
+        protected void tick() {
+          try {
+            update();
+          } finally {
+            // The next tick may run on a different scheduler thread.
+            _commands.release();
+          }
+        }
+
+        private void update() {
+          // Apply pending state mutations, in order, on this thread.
+          _commands.drain(MAX_COMMANDS_PER_TICK);
+
+          // Bring the pose up to date with the eboard GPS and IMU
+          applyGpsFixes(_clock.now());
+          applyImuSamples();
+
           // Do an intelligent state prediction update here
-          _utmPose = filter.pose(System.currentTimeMillis()); // TODO: what the hell is this?
+          VehicleState state = publishState(filter.pose(_clock.now()));
+          _poseHistory.record(state.time, state.pose);
           try {
             mLogger.info(new JSONObject()
                          .put("pose", new JSONObject()
-                              .put("p", new JSONArray(_utmPose.pose.getPosition()))
-                              .put("q", new JSONArray(_utmPose.pose.getRotation().getArray()))
-                              .put("zone", _utmPose.origin.toString())));
+                              .put("p", new JSONArray(state.pose.pose.getPosition()))
+                              .put("q", new JSONArray(state.pose.pose.getRotation().getArray()))
+                              .put("zone", state.pose.origin.toString())));
           } catch (JSONException e) {
             //Log.w(TAG, "Unable to serialize pose.");
             logger.log(Level.WARNING,"Unable to serialize pose");
           }
-          sendState(_utmPose.clone());
+          sendState(state.pose);
+          _sensorBatcher.flushIfDue(state.time);
+          logImu(state.time);
+
+          // Compact the mission journal once enough has been recorded since
+          // the last snapshot, and keep the pose in it current while
+          // autonomous; the snapshot is written in the background.
+          MissionJournal journal = mContext.journal;
+          if (journal != null
+              && (journal.needsSnapshot()
+                  || (_isAutonomous.get() && state.time - _lastSnapshotTime >= SNAPSHOT_INTERVAL_MS))) {
+            _lastSnapshotTime = state.time;
+            try {
+              journal.snapshot(captureMission());
+            } catch (JSONException e) {
+              logger.log(Level.WARNING,"Unable to serialize mission snapshot");
+            }
+          }
+
+          if (state.time - _lastPipelineLogTime >= PIPELINE_LOG_INTERVAL_MS) {
+            _lastPipelineLogTime = state.time;
+            logPipelines();
+            logClocks();
+          }
+
+          if (state.time - _lastPresenceCheckTime >= PRESENCE_CHECK_INTERVAL_MS) {
+            _lastPresenceCheckTime = state.time;
+            _presence.check(state.time);
+          }
+
+          // Run the waypoint controller, whose velocity is applied immediately.
+          NavigationTask navigation = _navigationTask;
+          if (navigation != null && !navigation.isCancelled())
+            navigation.run();
 
           // Send vehicle command by converting raw command to appropriate vehicle model.
-          JSONObject command = new JSONObject();
-          //TODO
-          // String vehicleType = mPrefs.getString("pref_vehicle_type",
-          //                                       _context.getResources().getString(R.string.pref_vehicle_type_default));
-          switch (_vehicleType) {
-          case "DIFFERENTIAL":
-            {
-              // Construct objects to hold velocities
-              JSONObject velocity0 = new JSONObject();
-              JSONObject velocity1 = new JSONObject();
-
-              // Send velocities as a JSON command
-              try
-                {
-                  double constrainedV0 = clip(_velocities.dx() - _velocities.drz(), -1.0, 1.0);
-                  double constrainedV1 = clip(_velocities.dx() + _velocities.drz(), -1.0, 1.0);
-
-                  // Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
-                  constrainedV0 = map(constrainedV0,
-                                      -1.0, 1.0, // Original range.
-                                      -VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
-                  constrainedV1 = map(constrainedV1,
-                                      -1.0, 1.0, // Original range.
-                                      -VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
-
-                  velocity0.put("v", (float) constrainedV0);
-                  velocity1.put("v", (float) constrainedV1);
-
-                  command.put("m0", velocity0);
-                  command.put("m1", velocity1);
-
-                  // Send and log the transmitted command.
-                  if (mController.isConnected())
-                    mController.send(command);
-                  mLogger.info(new JSONObject().put("cmd", command));
-                }
-              catch (JSONException e)
-                {
-                  //Log.w(TAG, "Failed to serialize command.", e);
-                  logger.log(Level.WARNING,"Failed to serialize command", e);
-                }
-              catch (IOException e)
-                {
-                  //Log.w(TAG, "Failed to send command." + e);
-                  logger.log(Level.WARNING,"Failed to send command",e);
-                }
-              catch (Controller.ControllerException e)
-              {
-                logger.log(Level.WARNING,"Failed to send command",e);
-              }
-            }
-            break;
+          ThrustMixer mixer = _thrustMixer;
+          if (_thrustOutputs.length < mixer.getNumOutputs())
+            _thrustOutputs = new double[mixer.getNumOutputs()];
+          Twist velocity = _velocities;
+          _actuatorLock.lock();
+          try {
+            mixer.mix(velocity, t_PID, _thrustOutputs);
+            sendThrustCommand(mixer, _thrustOutputs);
+          } finally {
+            _actuatorLock.unlock();
+          }
+          if (filter instanceof CommandedVehicleFilter)
+            ((CommandedVehicleFilter) filter).commandUpdate(velocity, state.time);
+        }
+      }
 
-          case "VECTORED":
-            {
-              // Construct objects to hold velocities
-              JSONObject thrust = new JSONObject();
-              JSONObject rudder = new JSONObject();
+  /**
+   * Creates the pose filter selected by the preferences.
+   */
+  static VehicleFilter newFilter(Preferences prefs) {
+    String name = prefs.get(FILTER_PREF, "simple").trim();
+    if (name.equalsIgnoreCase("ekf"))
+      return EkfFilter.fromPrefs(prefs);
+    if (!name.equalsIgnoreCase("simple"))
+      logger.log(Level.WARNING, "Unknown " + FILTER_PREF + " '" + name + "', using the simple filter");
+    return new SimpleFilter();
+  }
 
-              // Send velocities as a JSON command
-              try
-                {
-                  double constrainedV = clip(_velocities.dx(), -1.0, 1.0);
+  /**
+   * Logs the queue depth, drops and latency of each sensor pipeline.
+   */
+  private void logPipelines() {
+    List<SensorPipelines.Metrics> metrics = _pipelines.getMetrics();
+    if (metrics.isEmpty())
+      return;
+    try {
+      JSONArray entries = new JSONArray();
+      for (SensorPipelines.Metrics m : metrics)
+        entries.put(m.toJSON());
+      mLogger.info(new JSONObject().put("pipelines", entries));
+    } catch (JSONException e) {
+      logger.log(Level.WARNING,"Unable to serialize pipeline metrics");
+    }
+  }
 
-                  // Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
-                  constrainedV = map(constrainedV,
-                                     0.0, 1.0, // Original range.
-                                     0.0, VehicleServerImpl.SAFE_VECTORED_THRUST); // New range.
+  /**
+   * Logs a sensor port being lost or recovering.
+   */
+  private void logPresence(int port, int type, String event, long ms) {
+    try {
+      mLogger.info(new JSONObject().put("presence", new JSONObject()
+                                        .put("port", port)
+                                        .put("type", _sensors.getName(type))
+                                        .put("event", event)
+                                        .put("ms", ms)));
+    } catch (JSONException e) {
+      logger.log(Level.WARNING,"Unable to serialize sensor presence");
+    }
+  }
 
-                  // Rudder is constrained to +/-1.0
-                  double constrainedP = clip(_velocities.drz(), -1.0, 1.0);
+  /**
+   * Returns whether each sensor port is receiving its expected type, and
+   * the rate of its readings.
+   */
+  public List<SensorPresence.Status> getSensorPresence() {
+    return _presence.getStatus();
+  }
 
-                  // Fix for rudder being reversed.
-                  constrainedP *= -1.0;
+  /**
+   * Logs the estimated offset and drift of each remote clock.
+   */
+  private void logClocks() {
+    List<ClockSync.Estimate> estimates = _clock.getEstimates();
+    if (estimates.isEmpty())
+      return;
+    try {
+      JSONObject clocks = new JSONObject();
+      for (ClockSync.Estimate e : estimates)
+        clocks.put(e.clock, new JSONObject()
+                   .put("offset", e.offsetMs)
+                   .put("drift", e.driftPpm)
+                   .put("n", e.observations));
+      mLogger.info(new JSONObject().put("clocks", clocks));
+    } catch (JSONException e) {
+      logger.log(Level.WARNING,"Unable to serialize clock estimates");
+    }
+  }
 
-                  thrust.put("v", (float) constrainedV);
-                  rudder.put("p", (float) constrainedP);
+  /**
+   * Returns the estimated offset and drift of the eboard and GPS clocks.
+   */
+  public List<ClockSync.Estimate> getClockEstimates() {
+    return _clock.getEstimates();
+  }
 
-                  command.put("m0", thrust);
-                  command.put("s0", rudder);
+  /**
+   * Returns the queue depth, drops and latency of each sensor pipeline.
+   */
+  public List<SensorPipelines.Metrics> getPipelineMetrics() {
+    return _pipelines.getMetrics();
+  }
 
-                  // Send and log the transmitted command.
-                  if (mController.isConnected())
-                    mController.send(command);
-                  mLogger.info(new JSONObject().put("cmd", command));
-                }
-              catch (JSONException e)
-                {
-                  //Log.w(TAG, "Failed to serialize command.", e);
-                  logger.log(Level.WARNING,"Failed to serialize command", e);
+  /**
+   * Watchdog that restarts the update, navigation, receive, serial reader and
+   * failsafe loops if any of them dies or stops making progress.
+   */
+  private final Watchdog.Listener _stallListener = new Watchdog.Listener() {
+      @Override
+      public void onStall(Watchdog.Loop loop, Throwable cause) {
+        zeroActuators();
+        if (cause == null)
+          mContext.pools.compensate();
+        String reason = (cause != null) ? cause.toString()
+          : String.format("no progress for %d ms", loop.getMillisSinceProgress());
+        logger.log(Level.SEVERE, "Restarting stalled " + loop.getName() + " loop: " + reason, cause);
+        try {
+          mLogger.error(new JSONObject()
+                        .put("watchdog", new JSONObject()
+                             .put("loop", loop.getName())
+                             .put("reason", reason)
+                             .put("restarts", loop.getRestarts() + 1)));
+        } catch (JSONException e) {
+          logger.log(Level.WARNING,"Unable to serialize watchdog alert");
+        }
+      }
+    };
 
-                }
-              catch (IOException e)
-                {
-                  //Log.w(TAG, "Failed to send command.", e);
-                  logger.log(Level.WARNING,"Failed to send command", e);
-                }
-              catch (Controller.ControllerException e)
-              {
-                logger.log(Level.WARNING,"Failed to send command",e);
-              }
-            }
-            break;
+  final Watchdog _watchdog;
+  final Watchdog.Loop _updateLoop;
+  final Watchdog.Loop _failsafeLoop;
+  final Watchdog.Loop _receiveLoop;
+  final Watchdog.Loop _serialLoop;
 
-          case "PROPGUARD":
-            {
-              // Construct objects to hold velocities
-              JSONObject velocity0 = new JSONObject();
-
-              JSONObject velocity1 = new JSONObject();
-
-              // Send velocities as a JSON command
-              try
-                {
-                  /*ASDF*/
-                  // to start out, I will *not* include the negative thrust bias
-                  // instead, i'll just have it just set thrust to zero while error is > 45 degrees
-
-                  // _velocities.dx() --> thrust effort fraction
-                  // _velocities.drz() --> heading effort fraction
-
-                  // try using the integral gain for thrust as the scale between positive and negative thrust
-                  double[] thrust_pids = getGains(0);
-                  if (thrust_pids[1] == 0)
-                    {
-                      thrust_pids[1] = 5.;
-                    }
-                  double T = _velocities.dx();
-                  double H = _velocities.drz();
-                  // bias thrust backwards according to heading
-                  // T -= 0.5*H;
-
-                  //double[] rawV = {_velocities.dx() - _velocities.drz(),
-                  //        _velocities.dx() + _velocities.drz()};
-                  double[] rawV = {T - H, T + H};
-
-                  double[] constrainedV = scaleDown(rawV);
-                  double constrainedV0 = constrainedV[0];
-                  double constrainedV1 = constrainedV[1];
-
-                  // need to account for prop guard, reduce positive motor signals if turning in place
-                  if (Math.signum(constrainedV0) > 0 && Math.signum(constrainedV1) < 0)
-                    {
-                      constrainedV0 = constrainedV0/(thrust_pids[1]);
-                    }
-                  if (Math.signum(constrainedV0) < 0 && Math.signum(constrainedV1) > 0)
-                    {
-                      constrainedV1 = constrainedV1/(thrust_pids[1]);
-                    }
-
-                  // Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
-                  /*
-                    constrainedV0 = map(constrainedV0,
-                    -1.0, 1.0, // Original range.
-                    -VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
-                    constrainedV1 = map(constrainedV1,
-                    -1.0, 1.0, // Original range.
-                    -VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
-                  */
-
-                  velocity0.put("v", (float) constrainedV0);
-                  velocity1.put("v", (float) constrainedV1);
-
-                  command.put("m0", velocity0);
-                  command.put("m1", velocity1);
-
-                  // Send and log the transmitted command.
-                  if (mController.isConnected())
-                    mController.send(command);
-                  mLogger.info(new JSONObject().put("cmd", command));
-                }
-              catch (JSONException e)
-                {
-                  //Log.w(TAG, "Failed to serialize command.", e);
-                  logger.log(Level.WARNING,"Failed to serialize command",e);
-                }
-              catch (IOException e)
-                {
-                  //Log.w(TAG, "Failed to send command.", e);
-                  logger.log(Level.WARNING,"Failed to send command",e);
-                }
-                catch (Controller.ControllerException e)
-                {
-                  logger.log(Level.WARNING,"Failed to send command",e);
-                }
-            }
-            break;
+  /**
+   * Loops are started from the constructor and restarted from the watchdog
+   * thread; this lock keeps a restart from racing another, or shutdown.
+   */
+  private final Object _loopLock = new Object();
+  private boolean _loopsStopped = false;
 
-          default:
-            //Log.w(TAG, "Unknown vehicle type: " + _vehicleType);
-            logger.log(Level.WARNING,"Unknown vehicle type: " + _vehicleType);
-          }
+  /**
+   * Held for each tick of a loop, so a restarted loop never runs alongside a
+   * hung tick of the loop it replaced.
+   */
+  private final ReentrantLock _tickLock = new ReentrantLock();
+  private final ReentrantLock _receiveLock = new ReentrantLock();
+  private final ReentrantLock _failsafeLock = new ReentrantLock();
+
+  /**
+   * Held while a mixer runs and its outputs are sent, since mixers keep
+   * scratch state and the watchdog may zero the actuators from its thread.
+   */
+  private final ReentrantLock _actuatorLock = new ReentrantLock();
+
+  /**
+   * Longest wait for the actuators when zeroing them after a stall.
+   */
+  public static final long ACTUATOR_LOCK_TIMEOUT_MS = 100;
+
+  /**
+   * Longest wait at shutdown for an update tick in flight.
+   */
+  public static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+  private void startUpdateLoop() {
+    synchronized (_loopLock) {
+      if (_loopsStopped) return;
+      if (_updateTask != null) _updateTask.cancel();
+      _updateTask = new UpdateTask();
+      _updateTask.scheduleAtFixedRate(mScheduler, 0, UPDATE_INTERVAL_MS);
+    }
+  }
+
+  private void startFailsafeLoop() {
+    synchronized (_loopLock) {
+      if (_loopsStopped) return;
+      if (_failsafeTask != null) _failsafeTask.cancel();
+      _failsafeTask = new FailsafeTask();
+      _failsafeTask.scheduleAtFixedRate(mScheduler, 0, FAILSAFE_INTERVAL_MS);
+    }
+  }
+
+  /**
+   * Cancels the loops for good; the watchdog no longer restarts them.
+   */
+  private void stopLoops() {
+    synchronized (_loopLock) {
+      _loopsStopped = true;
+      if (_updateTask != null) _updateTask.cancel();
+      if (_receiveTask != null) _receiveTask.cancel();
+      if (_failsafeTask != null) _failsafeTask.cancel();
+    }
+  }
+
+  Watchdog.Loop _navigationLoop = null;
+
+  /**
+   * Immediately commands all thrusters and servos to zero, bypassing the
+   * update loop (which may be the loop that died), and queues a command that
+   * clears the commanded velocity once the update loop runs again.
+   */
+  void zeroActuators() {
+    _commands.submit(new CommandQueue.Command("stopOnStall") {
+        @Override
+        protected void apply() {
+          _velocities = new Twist(DEFAULT_TWIST);
         }
-      };
+      });
+    if (mController == null)
+      return;
+
+    try {
+      if (!_actuatorLock.tryLock(ACTUATOR_LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        logger.log(Level.SEVERE, "Unable to zero actuators: a hung tick holds them");
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    try {
+      ThrustMixer mixer = _thrustMixer;
+      double[] outputs = new double[mixer.getNumOutputs()];
+      mixer.mix(new Twist(DEFAULT_TWIST), t_PID, outputs);
+      sendThrustCommand(mixer, outputs);
+    } finally {
+      _actuatorLock.unlock();
+    }
+  }
 
   /**
    * Creates a new instance of the vehicle implementation. This function
@@ -586,16 +929,76 @@ public class VehicleServerImpl extends AbstractVehicleServer {
    */
 
   protected VehicleServerImpl(VehicleLogger vLogger, Controller controller) {
+    this(VehicleContext.standalone(controller, vLogger));
+  }
 
-    mLogger = vLogger;
-    mController = controller;
+  /**
+   * Creates a new vehicle from its context.  Any number of vehicles may be
+   * created in the same process, sharing a scheduler.
+   *
+   * @param context the per-vehicle connection, logger and preferences
+   */
+  protected VehicleServerImpl(VehicleContext context) {
 
-    // Connect to the Shared Preferences for this process.
+    mContext = context;
+    mLogger = context.vehicleLogger;
+    mController = context.controller;
+    mScheduler = context.scheduler;
+
+    // Connect to the Shared Preferences for this vehicle.
     //mPrefs = PreferenceManager.getDefaultSharedPreferences(_context);
+    mPrefs = context.prefs;
+    _imuLogInterval = mPrefs.getLong(IMU_LOG_INTERVAL_PREF, DEFAULT_IMU_LOG_INTERVAL_MS);
+    _sensors.bind(mPrefs);
+    _sensorFilters.bind(mPrefs);
+    _sensorPolicies.bind(mPrefs);
+    _history = new SensorHistory(mPrefs.getInt(SensorHistory.CAPACITY_PREF, SensorHistory.DEFAULT_CAPACITY), _clock);
+    _grid = new SensorGrid(mPrefs.getDouble(SensorGrid.CELL_SIZE_PREF, SensorGrid.DEFAULT_CELL_SIZE),
+                           SensorGrid.parseTypes(mPrefs.get(SensorGrid.TYPES_PREF, SensorGrid.DEFAULT_TYPES)));
+    _archive = SensorArchive.fromPrefs(mPrefs, context.name, context.pools.archive, _clock);
+    _gps = GpsFusion.fromPrefs(mPrefs);
+    filter = newFilter(mPrefs);
+    _sensorBatcher = new SensorBatcher(_sensorSink,
+                                       mPrefs.getInt(SensorBatcher.SIZE_PREF, SensorBatcher.DEFAULT_SIZE),
+                                       mPrefs.getLong(SensorBatcher.DELAY_PREF, SensorBatcher.DEFAULT_DELAY_MS),
+                                       mPrefs.getBoolean(SensorBatcher.COALESCE_PREF, SensorBatcher.DEFAULT_COALESCE),
+                                       context.pools.listeners);
+    _pipelines = new SensorPipelines(_messageHandler,
+                                     mPrefs.getInt(SensorPipelines.CAPACITY_PREF, SensorPipelines.DEFAULT_CAPACITY),
+                                     context.pools.sensors, context.pools.prioritySensors);
+    _presence = new SensorPresence(_sensors,
+                                   mPrefs.getLong(SensorPresence.TIMEOUT_PREF, SensorPresence.DEFAULT_TIMEOUT_MS),
+                                   _presenceListener);
+
+    _watchdog = new Watchdog(_stallListener, context.pools.watchdog);
+    _updateLoop = _watchdog.register("update", 3 * UPDATE_INTERVAL_MS, new Runnable() {
+        @Override
+        public void run() {
+          startUpdateLoop();
+        }
+      });
+    _failsafeLoop = _watchdog.register("failsafe", FAILSAFE_INTERVAL_MS + 1000, new Runnable() {
+        @Override
+        public void run() {
+          startFailsafeLoop();
+        }
+      });
+    _receiveLoop = _watchdog.register("receive", 500, new Runnable() {
+        @Override
+        public void run() {
+          startReceiveLoop();
+        }
+      });
+    _serialLoop = _watchdog.register("serial reader", 0, new Runnable() {
+        @Override
+        public void run() {
+          if (mController.reconnect())
+            _serialLoop.attach(mController.getReaderThread());
+        }
+      });
 
     // notificationManager = (NotificationManager) _context.getSystemService(Context.NOTIFICATION_SERVICE);
-    _sensorTypeTimer.scheduleAtFixedRate(expect_sensor_type_task, 0, 100);
-    _failsafe_timer.scheduleAtFixedRate(failsafe_check, 0, 10000);
+    startFailsafeLoop();
 
     // Load PID values from SharedPreferences.
     // Use hard-coded defaults if not specified.
@@ -608,6 +1011,16 @@ public class VehicleServerImpl extends AbstractVehicleServer {
      t_PID[1] = mPrefs.getFloat("gain_tI", 0.0f);
      t_PID[2] = mPrefs.getFloat("gain_tD", 0.0f);
 
+    setVehicleType(mPrefs.get("pref_vehicle_type", VehicleType.DIFFERENTIAL.name()));
+
+    // Resume the mission left by a previous run, and journal it from now on.
+    if (context.journal != null) {
+      JSONObject mission = context.journal.getRecoveredState();
+      if (mission != null)
+        restoreMission(mission, context.journal.getRecoveredRecords());
+      _commands.setRecorder(context.journal);
+    }
+
 //    r_PID[0] = gain_rP;
 //    r_PID[1] = gain_rI;
 //    r_PID[2] = gain_rD;
@@ -619,33 +1032,129 @@ public class VehicleServerImpl extends AbstractVehicleServer {
 
 
     // Start a regular update function
-    _updateTimer.scheduleAtFixedRate(_updateTask, 0, UPDATE_INTERVAL_MS);
+    startUpdateLoop();
 
-    // Create a thread to read data from the controller board.
-    Thread receiveThread = new Thread(new Runnable() {
-        @Override
-        public void run() {
-          // Start a loop to receive data from accessory.
-          while (_isRunning.get()) {
-            try {
-              onCommand(mController.receive());
-            } catch (Controller.ConnectionException e) {
-              // Do nothing, we don't need to detect this here.
-            } catch (IOException | Controller.ControllerException e) {
-              //Log.w(TAG, e);
-              logger.log(Level.WARNING,e.getMessage());
-            } catch (NoSuchElementException e){
-              //message queue empty
-            }finally {
-
-              Thread.yield();
-            }
+    // Poll for data from the controller board.
+    startReceiveLoop();
+    if (mController != null)
+      _serialLoop.attach(mController.getReaderThread());
+  }
+
+  /**
+   * Captures the full mission state, in the format of the mission journal.
+   * Must be called on the update thread.
+   */
+  private JSONObject captureMission() throws JSONException {
+    NavigationTask navigation = _navigationTask;
+    return new JSONObject()
+      .put("waypoints", MissionJournal.encodePoses(_waypoints))
+      .put("index", current_waypoint_index)
+      .put("controller", (navigation != null) ? navigation.controller : JSONObject.NULL)
+      .put("survey", (_adaptive != null) ? MissionJournal.encodePoses(_adaptive.getSurvey()) : new JSONArray())
+      .put("home", MissionJournal.encodePose(UTM_to_UtmPose(home_UTM)))
+      .put("rudderGains", MissionJournal.encodeArray(r_PID))
+      .put("thrustGains", MissionJournal.encodeArray(t_PID))
+      .put("autonomous", _isAutonomous.get())
+      .put("firstAutonomy", first_autonomy.get())
+      .put("failsafe", is_executing_failsafe.get())
+      .put("pose", MissionJournal.encodePose(_state.pose));
+  }
+
+  /**
+   * Restores a mission recovered from the journal, before any of the loops
+   * have started.
+   */
+  private void restoreMission(JSONObject mission, int records) {
+    long start = System.nanoTime();
+    try {
+      if (mission.has("pose")) {
+        UtmPose pose = MissionJournal.decodePose(mission.getJSONArray("pose"));
+        filter.reset(pose, _clock.now());
+        publishState(pose);
+      }
+      if (mission.has("home"))
+        home_UTM = UtmPose_to_UTM(MissionJournal.decodePose(mission.getJSONArray("home")));
+      if (mission.has("rudderGains"))
+        r_PID = MissionJournal.decodeArray(mission.getJSONArray("rudderGains"));
+      if (mission.has("thrustGains"))
+        t_PID = MissionJournal.decodeArray(mission.getJSONArray("thrustGains"));
+      if (mission.has("autonomous"))
+        _isAutonomous.set(mission.getBoolean("autonomous"));
+      if (mission.has("firstAutonomy"))
+        first_autonomy.set(mission.getBoolean("firstAutonomy"));
+      if (mission.has("failsafe"))
+        is_executing_failsafe.set(mission.getBoolean("failsafe"));
+      if (mission.has("waypoints"))
+        _waypoints = MissionJournal.decodePoses(mission.getJSONArray("waypoints"));
+      if (mission.has("index"))
+        current_waypoint_index = mission.getInt("index");
+      if (mission.has("survey") && mission.getJSONArray("survey").length() > 0)
+        _adaptive = AdaptiveSampler.fromPrefs(mPrefs, _grid, MissionJournal.decodePoses(mission.getJSONArray("survey")));
+      if (mission.has("controller") && !mission.isNull("controller")
+          && current_waypoint_index >= 0
+          && (current_waypoint_index < _waypoints.length
+              || (_adaptive != null && current_waypoint_index == _waypoints.length)))
+        startNavigation(mission.getString("controller"));
+      publishState(_state.pose);
+    } catch (JSONException e) {
+      logger.log(Level.WARNING,"Unable to restore journaled mission: " + mission, e);
+      return;
+    }
+
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    logger.log(Level.INFO,"Restored mission from " + records + " journal records in " + elapsed + " ms");
+    try {
+      mLogger.info(new JSONObject()
+                   .put("journal", new JSONObject()
+                        .put("restored", mission)
+                        .put("records", records)
+                        .put("ms", elapsed)));
+    } catch (JSONException e) {
+      logger.log(Level.WARNING,"Unable to serialize restored mission");
+    }
+  }
+
+  private volatile ReceiveTask _receiveTask = null;
+
+  /**
+   * Polls the controller board for received messages on the scheduler,
+   * replacing any previous receive task that has died.  This replaces a
+   * dedicated spinning thread per vehicle.
+   */
+  private void startReceiveLoop() {
+    synchronized (_loopLock) {
+      if (_loopsStopped) return;
+      if (_receiveTask != null) _receiveTask.cancel();
+      _receiveTask = new ReceiveTask();
+      _receiveTask.scheduleAtFixedRate(mScheduler, 0, RECEIVE_INTERVAL_MS);
+    }
+  }
+
+  private class ReceiveTask extends Watchdog.GuardedTask {
+
+      ReceiveTask() { super(_receiveLoop, _receiveLock); }
+
+      @Override
+      protected void tick() {
+        if (mController == null || !_isRunning.get())
+          return;
+
+        // Parse every message that has arrived since the last poll.
+        while (mController.hasMessages()) {
+          try {
+            onCommand(mController.receive());
+          } catch (Controller.ConnectionException e) {
+            // Do nothing, we don't need to detect this here.
+          } catch (IOException | Controller.ControllerException e) {
+            //Log.w(TAG, e);
+            logger.log(Level.WARNING,e.getMessage());
+          } catch (NoSuchElementException e){
+            //message queue empty
+            break;
           }
         }
-      });
-    receiveThread.setDaemon(true);
-    receiveThread.start();
-  }
+      }
+    }
 
   /**
    * Simple clipping function that restricts a value to a given range.
@@ -695,52 +1204,68 @@ public class VehicleServerImpl extends AbstractVehicleServer {
   }
 
   @Override
-  public void setHome(UtmPose utmPose)
+  public void setHome(final UtmPose utmPose)
   {
-    synchronized (home_lock)
-      {
-        home_UTM = UtmPose_to_UTM(utmPose);
-      }
+    final UTM home = UtmPose_to_UTM(utmPose);
+    _commands.submit(new CommandQueue.Command("setHome") {
+        @Override
+        protected void apply() {
+          home_UTM = home;
+        }
+
+        @Override
+        protected JSONObject encode() throws JSONException {
+          return new JSONObject().put("home", MissionJournal.encodePose(utmPose));
+        }
+      });
   }
 
   @Override
   public UtmPose getHome()
   {
-    synchronized (home_lock)
-      {
-        return UTM_to_UtmPose(home_UTM);
-      }
+    return UTM_to_UtmPose(home_UTM);
   }
 
   @Override
   public void startGoHome()
+  {
+    is_executing_failsafe.set(true);
+    _commands.submit(new CommandQueue.Command("startGoHome") {
+        @Override
+        protected void apply() {
+          goHome();
+        }
+
+        @Override
+        protected JSONObject encode() throws JSONException {
+          return new JSONObject().put("failsafe", true);
+        }
+      });
+  }
+
+  private void goHome()
   {
     if (home_UTM == null)
       {
         //Log.e(TAG, "Cannot trigger failsafe, home is null");
         logger.log(Level.parse("ERROR"),"Cannot trigger failsafe, home is null");
       }
-    is_executing_failsafe.set(true);
     // need to execute a single start waypoints command
     // need current position and home position
     // START the go home action
-    UTM current_location = UTM.valueOf(
-                                       _utmPose.origin.zone,
-                                       _utmPose.origin.isNorth ? 'T' : 'L',
-                                       _utmPose.pose.getX(),
-                                       _utmPose.pose.getY(),
-                                       SI.METER);
+    UTM current_location = UtmPose_to_UTM(_state.pose);
 
     /////////////////////////////////////////////
-    // List<Long> path_crumb_indices = Crumb.aStar(current_location, home_UTM);
-    List<Long> path_crumb_indices = Crumb.straightHome(current_location, home_UTM);
+    // List<Long> path_crumb_indices = mContext.crumbs.aStar(current_location, home_UTM);
+    CrumbGraph crumbs = mContext.crumbs;
+    List<Long> path_crumb_indices = crumbs.straightHome(current_location, home_UTM);
     /////////////////////////////////////////////
 
     UtmPose[] path_waypoints = new UtmPose[path_crumb_indices.size()];
     int wp_index = 0;
     for (long index : path_crumb_indices)
       {
-        UTM wp = Crumb.crumbs_by_index.get(index).getLocation();
+        UTM wp = crumbs.crumbs_by_index.get(index).getLocation();
         path_waypoints[wp_index] = UTM_to_UtmPose(wp);
         wp_index++;
       }
@@ -784,7 +1309,18 @@ public class VehicleServerImpl extends AbstractVehicleServer {
       }
     else if (axis == 5)
       {
-        r_PID = k.clone();
+        final double[] gains = k.clone();
+        _commands.submit(new CommandQueue.Command("setRudderGains") {
+            @Override
+            protected void apply() {
+              r_PID = gains;
+            }
+
+            @Override
+            protected JSONObject encode() throws JSONException {
+              return new JSONObject().put("rudderGains", MissionJournal.encodeArray(gains));
+            }
+          });
 
         // Save the PID values to the SharedPreferences as well.
         // mPrefs.edit()
@@ -795,7 +1331,18 @@ public class VehicleServerImpl extends AbstractVehicleServer {
       }
     else if (axis == 0)
       {
-        t_PID = k.clone();
+        final double[] gains = k.clone();
+        _commands.submit(new CommandQueue.Command("setThrustGains") {
+            @Override
+            protected void apply() {
+              t_PID = gains;
+            }
+
+            @Override
+            protected JSONObject encode() throws JSONException {
+              return new JSONObject().put("thrustGains", MissionJournal.encodeArray(gains));
+            }
+          });
 
         // Save the PID values to the SharedPreferences as well.
         // mPrefs.edit()
@@ -838,9 +1385,7 @@ public class VehicleServerImpl extends AbstractVehicleServer {
 
             for (int i = 1; i < 4; i++)
               {
-                String sensor_array_name = "pref_sensor_" + Integer.toString(i) + "_type";
-                String _expected_type = mPrefs.get(sensor_array_name, "NONE");
-                if (_expected_type.equals("SAMPLER"))
+                if (_sensors.getExpectedType(i) == StandardSensor.SAMPLER.ordinal())
                   {
                     command.put(String.format("s%d", i), samplerSettings);
                     mController.send(command);
@@ -887,47 +1432,257 @@ public class VehicleServerImpl extends AbstractVehicleServer {
 
       }
 
-    // Log the new gain settings to the logfile.
+    // Log the new gain settings to the logfile.
+    try {
+      mLogger.info(new JSONObject()
+                   .put("gain", new JSONObject()
+                        .put("axis", axis)
+                        .put("values", Arrays.toString(k))));
+    } catch (JSONException e) {
+      //Log.w(TAG, "Failed to serialize gains.");
+      logger.log(Level.WARNING,"Failed to serialize gains");
+    }
+  }
+
+  /**
+   * Returns the current rotation rates about the x, y and z axes, from the
+   * latest IMU sample, or zeros if the IMU has gone quiet.  Called by the
+   * controllers on the update thread; the array is reused by the next call.
+   */
+  public double[] getGyro() {
+    long time = _imu.read(_imu.getSequence() - 1, _gyroSample);
+    boolean current = time >= 0 && _clock.now() - time <= IMU_TIMEOUT_MS;
+    for (int i = 0; i < 3; i++) {
+      double rate = _gyroSample[ImuHistory.GYRO_X + i];
+      _gyro[i] = (!current || Double.isNaN(rate)) ? 0.0 : rate;
+    }
+    return _gyro;
+  }
+
+  /**
+   * Records a sample from the eboard IMU, of the form
+   * <pre>
+   *     {"heading": degrees clockwise from north,
+   *      "gyro": [x, y, z] in rad/s, "accel": [x, y, z] in m/s^2}
+   * </pre>
+   * where any of the fields may be missing.  The update loop feeds it to the
+   * filter.
+   *
+   * @param time when the sample was taken, on the host timeline
+   */
+  private void onImuSample(JSONObject value, long time) throws JSONException
+  {
+    double yaw = Double.NaN;
+    if (value.has("heading"))
+      yaw = Math.IEEEremainder(Math.PI / 2 - Math.toRadians(value.getDouble("heading")), 2 * Math.PI);
+
+    double gx = Double.NaN, gy = Double.NaN, gz = Double.NaN;
+    JSONArray gyro = value.optJSONArray("gyro");
+    if (gyro != null && gyro.length() >= 3) {
+      gx = gyro.getDouble(0);
+      gy = gyro.getDouble(1);
+      gz = gyro.getDouble(2);
+    }
+
+    double ax = Double.NaN, ay = Double.NaN, az = Double.NaN;
+    JSONArray accel = value.optJSONArray("accel");
+    if (accel != null && accel.length() >= 3) {
+      ax = accel.getDouble(0);
+      ay = accel.getDouble(1);
+      az = accel.getDouble(2);
+    }
+
+    _imu.record(time, yaw, gx, gy, gz, ax, ay, az);
+  }
+
+  /**
+   * Feeds the eboard GPS fixes that arrived since the last update to the
+   * filter, fused into one, along with the heading from a dual-antenna pair.
+   * Runs on the update thread.
+   */
+  private void applyGpsFixes(long now)
+  {
+    if (!_gps.fuse(now))
+      return;
+    UtmPose fix = _gps.getFix();
+    if (filter instanceof WeightedVehicleFilter)
+      ((WeightedVehicleFilter) filter).gpsUpdate(fix, _gps.getWeight(), _gps.getTime());
+    else
+      filter.gpsUpdate(fix, _gps.getTime());
+
+    double heading = _gps.getHeading();
+    if (!Double.isNaN(heading))
+      filter.compassUpdate(heading, _gps.getHeadingTime());
+  }
+
+  /**
+   * Feeds the IMU samples recorded since the last update to the filter, in
+   * order.  Runs on the update thread.
+   */
+  private void applyImuSamples()
+  {
+    long next = Math.max(_imuApplied, _imu.getOldest());
+    long end = _imu.getSequence();
+    for (; next < end; next++) {
+      long time = _imu.read(next, _imuSample);
+      if (time < 0)
+        continue;
+      double rate = _imuSample[ImuHistory.GYRO_Z];
+      if (!Double.isNaN(rate))
+        filter.gyroUpdate(rate, time);
+      double yaw = _imuSample[ImuHistory.YAW];
+      if (!Double.isNaN(yaw))
+        filter.compassUpdate(yaw, time);
+    }
+    _imuApplied = end;
+  }
+
+  /**
+   * Logs the average of the IMU samples since the last time, so the log
+   * grows at a fixed rate whatever the rate of the IMU.
+   */
+  private void logImu(long now)
+  {
+    if (_imuLogInterval <= 0 || now - _lastImuLogTime < _imuLogInterval)
+      return;
+    int count = _imu.average(_lastImuLogTime, _imuSample);
+    _lastImuLogTime = now;
+    if (count == 0)
+      return;
     try {
-      mLogger.info(new JSONObject()
-                   .put("gain", new JSONObject()
-                        .put("axis", axis)
-                        .put("values", Arrays.toString(k))));
+      JSONObject entry = new JSONObject().put("n", count);
+      if (!Double.isNaN(_imuSample[ImuHistory.YAW]))
+        entry.put("yaw", _imuSample[ImuHistory.YAW]);
+      if (!Double.isNaN(_imuSample[ImuHistory.GYRO_Z]))
+        entry.put("gyro", new JSONArray(Arrays.copyOfRange(_imuSample, ImuHistory.GYRO_X, ImuHistory.GYRO_Z + 1)));
+      if (!Double.isNaN(_imuSample[ImuHistory.ACCEL_Z]))
+        entry.put("accel", new JSONArray(Arrays.copyOfRange(_imuSample, ImuHistory.ACCEL_X, ImuHistory.ACCEL_Z + 1)));
+      mLogger.info(new JSONObject().put("imu", entry));
     } catch (JSONException e) {
-      //Log.w(TAG, "Failed to serialize gains.");
-      logger.log(Level.WARNING,"Failed to serialize gains");
+      logger.log(Level.WARNING,"Unable to serialize IMU sample");
     }
   }
 
   /**
-   * Returns the current gyro readings
+   * @see com.platypus.crw.VehicleServer#isConnected()
    */
-  public double[] getGyro() {
-    synchronized (gyro_lock)
-      {
-        return _gyroPhone.clone();
-      }
+  public boolean isConnected() {
+    return mController.isConnected();
   }
 
-  public void setPhoneGyro(float[] gyroValues) {
-    synchronized (gyro_lock)
-      {
-        for (int i = 0; i < gyroValues.length; i++)
-          {
-            _gyroPhone[i] = (double) gyroValues[i];
-          }
-      }
+  /**
+   * Converts a latitude and longitude to a UTM pose with no rotation.
+   */
+  static UtmPose latLongToUtmPose(double latitude, double longitude)
+  {
+    // Convert from lat/long to UTM coordinates
+    UTM utmLoc = UTM.latLongToUtm(
+                                  LatLong.valueOf(latitude, longitude, NonSI.DEGREE_ANGLE),
+                                  ReferenceEllipsoid.WGS84);
+
+    // Convert to UTM data structure
+    Pose3D pose = new Pose3D(utmLoc.eastingValue(SI.METER),
+                             utmLoc.northingValue(SI.METER),
+                             0.0,
+                             Quaternion.fromEulerAngles(0, 0, 0));
+    Utm origin = new Utm(utmLoc.longitudeZone(),
+                         utmLoc.latitudeZone() > 'O');
+    return new UtmPose(pose, origin);
   }
 
   /**
-   * @see com.platypus.crw.VehicleServer#isConnected()
+   * Feeds a position from a GPS receiver in one of the vehicle's instruments,
+   * such as the sonar or the BlueBox, into the pose filter, on the update
+   * thread.  Fixes from the eboard receivers are fused first, by
+   * {@link GpsFusion}.
+   *
+   * @param weight confidence in the fix, from 0.0 (ignored) to 1.0 (exact)
    */
-  public boolean isConnected() {
-    return mController.isConnected();
+  public void onGpsFix(double latitude, double longitude, final double weight, final long time)
+  {
+    final UtmPose utm = latLongToUtmPose(latitude, longitude);
+
+    _commands.submit(new CommandQueue.Command("gpsUpdate") {
+        @Override
+        protected void apply() {
+          if (filter instanceof WeightedVehicleFilter)
+            ((WeightedVehicleFilter) filter).gpsUpdate(utm, weight, time);
+          else
+            filter.gpsUpdate(utm, time);
+        }
+      });
+  }
+
+  /**
+   * Records, geotags, filters, logs and broadcasts a parsed sensor reading.
+   * The raw values are kept in the history and the log; the filtered values
+   * are logged alongside them and are what listeners receive, as
+   * {@link GeoSensorData}.
+   */
+  private void onSensorReading(int sensor, SensorData parsed, long now) throws JSONException
+  {
+    _history.record(parsed, now);
+
+    // Tag the reading with where the vehicle was when it arrived
+    GeoSensorData reading = new GeoSensorData(parsed, now);
+    _poseHistory.locate(reading);
+    if (_archive != null)
+      _archive.append(reading);
+
+    // Reject outliers and smooth the values, as the filter for this type asks
+    SensorFilter.State filter = _sensorFilters.state(sensor, reading.type);
+    double[] filtered = filter.apply(reading.data);
+    GeoSensorData output = (filtered == reading.data) ? reading : reading.withData(filtered.clone());
+
+    // Map the cleaned values onto the survey grid
+    _grid.add(output);
+
+    // Log the reading, or a summary of recent ones, as its policy allows
+    SensorPolicy.Gate logGate = _sensorPolicies.gate(SensorPolicies.Output.LOG, sensor, reading.type);
+    switch (logGate.offer(output.data, now)) {
+      case SensorPolicy.KEEP:
+        JSONObject logged = new JSONObject()
+          .put("channel", reading.channel)
+          .put("type", reading.type.toString())
+          .put("data", new JSONArray(reading.data));
+        if (output != reading) {
+          logged.put("filtered", new JSONArray(output.data));
+          if (filter.getRejected() > 0)
+            logged.put("rejected", filter.getRejected());
+        }
+        if (reading.located)
+          logged.put("p", new JSONArray(new double[] { reading.easting, reading.northing }))
+            .put("zone", new Utm(reading.zone, reading.isNorth).toString());
+        mLogger.info(new JSONObject().put("sensor", logged));
+        break;
+      case SensorPolicy.SUMMARY:
+        mLogger.info(new JSONObject()
+                     .put("sensor", new JSONObject()
+                          .put("channel", reading.channel)
+                          .put("type", reading.type.toString())
+                          .put("n", logGate.getCount())
+                          .put("min", new JSONArray(logGate.getMin()))
+                          .put("max", new JSONArray(logGate.getMax()))
+                          .put("mean", new JSONArray(logGate.getMean()))));
+        break;
+    }
+
+    // Queue the reading, or the mean of recent ones, for the next batch sent to listeners
+    SensorPolicy.Gate broadcastGate = _sensorPolicies.gate(SensorPolicies.Output.BROADCAST, sensor, reading.type);
+    switch (broadcastGate.offer(output.data, now)) {
+      case SensorPolicy.KEEP:
+        _sensorBatcher.offer(sensor, output, now);
+        break;
+      case SensorPolicy.SUMMARY:
+        _sensorBatcher.offer(sensor, reading.withData(broadcastGate.getMean()), now);
+        break;
+    }
   }
 
   /**
-   * Handles complete Arduino commands, once they are reassembled.
+   * Handles complete Arduino commands, once they are reassembled.  Each
+   * message is only classified here, on the receive thread, and handed to
+   * the pipeline of its source.
    *
    * @param cmd the list of arguments composing a command
    */
@@ -935,6 +1690,7 @@ public class VehicleServerImpl extends AbstractVehicleServer {
 
     @SuppressWarnings("unchecked")
       Iterator<String> keyIterator = cmd.keys();
+    long arrival = _clock.now();
 
     // Iterate through JSON fields
     while (keyIterator.hasNext()) {
@@ -942,251 +1698,13 @@ public class VehicleServerImpl extends AbstractVehicleServer {
       try {
         JSONObject value = cmd.getJSONObject(name);
         if (name.startsWith("m")) {
-          int motor = name.charAt(1) - 48;
+          // Motor feedback is not used.
         } else if (name.startsWith("s")) {
-          int sensor = name.charAt(1) - 48;
-
-          // check sensor type expected in the preferences
-          String sensor_array_name = "pref_sensor_" + Integer.toString(sensor) + "_type";
-          String _expected_type = mPrefs.get(sensor_array_name, "NONE");
-
-          // Hacks to send sensor information
-          if (value.has("type")) {
-            String type = value.getString("type");
-
-            // check if received type matches expected type
-            if (!type.equalsIgnoreCase("battery")) {
-              if (type.equalsIgnoreCase(_expected_type)) {
-                received_expected_sensor_type[sensor - 1] = true;
-                /*
-                  String message = "s" + sensor + ": expected = " + expected_type + " received = " + type;
-                  Log.w(TAG, message);
-                  NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(_context)
-                  .setSmallIcon(R.drawable.camera_icon) //just some random icon placeholder
-                  .setContentTitle("Sensor Success")
-                  .setContentText(message)
-                  .setSound(soundUri); //This sets the sound to play
-                  notificationManager.notify(0, mBuilder.build());
-                */
-              } else {
-                String message = "s" + sensor + ": expected = " + _expected_type + " received = " + type;
-                //Log.w(TAG, message);
-                logger.log(Level.WARNING,message);
-                // NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(_context)
-                //   .setSmallIcon(R.drawable.camera_icon) //just some random icon placeholder
-                //   .setContentTitle("Sensor Warning")
-                //   .setContentText(message)
-                //   .setSound(soundUri); //This sets the sound to play
-                // notificationManager.notify(0, mBuilder.build());
-              }
-            }
-
-            SensorData reading = new SensorData();
-
-            if (type.equalsIgnoreCase("es2")) {
-              try {
-                // Parse out temperature and ec values
-                String[] data = value.getString("data").trim().split(" ");
-                double ecData = Double.parseDouble(data[0]);
-                double tempData = Double.parseDouble(data[1]);
-
-                // Todo: update stored temp and ec values then push to DO/pH probes
-                // Fill in readings from parsed sensor data.
-                reading.channel = sensor;
-                reading.type = SensorType.ES2;
-                reading.data = new double[]{ecData, tempData};
-              } catch (NumberFormatException e) {
-                //Log.w(TAG, "Received malformed ES2 Sensor Data: " + value);
-                logger.log(Level.WARNING,"Received malformed ES2 Sensor Data: " + value);
-                continue;
-              }
-            } else if (type.equalsIgnoreCase("atlas_do")) {
-              // Fill in readings from parsed sensor data.
-              reading.channel = sensor;
-              reading.type = SensorType.ATLAS_DO;
-              reading.data = new double[]{value.getDouble("data")};
-            } else if (type.equalsIgnoreCase("atlas_ph")) {
-              // Fill in readings from parsed sensor data.
-              reading.channel = sensor;
-              reading.type = SensorType.ATLAS_PH;
-              reading.data = new double[]{value.getDouble("data")};
-            } else if (type.equalsIgnoreCase("hds")) {
-              String nmea = value.getString("data");
-              if (nmea.startsWith("$SDDBT")) { //Depth Below Transducer
-                try {
-                  double depth = Double.parseDouble(nmea.split(",")[3]);
-
-                  // Fill in readings from parsed sensor data.
-                  reading.type = SensorType.HDS_DEPTH;
-                  reading.channel = sensor;
-                  reading.data = new double[]{depth};
-                } catch (Exception e) {
-                  //Log.w(TAG, "Failed to parse depth reading: " + nmea);
-                  logger.log(Level.WARNING,"Failed to parse depth reading: " + nmea);
-                  continue;
-                }
-              } else if (nmea.startsWith("$SDMTW")) { //Water Temperature
-                try {
-                  double temp = Double.parseDouble((nmea.split(",")[1]));
-
-                  reading.type = SensorType.HDS_TEMP;
-                  reading.channel = sensor;
-                  reading.data = new double[]{temp};
-                } catch (Exception e) {
-                  //Log.w(TAG, "Failed to parse temperature reading: " + nmea);
-                  logger.log(Level.WARNING,"Failed to parse temperature reading: " + nmea);
-                  continue;
-                }
-              } else if (nmea.startsWith("$SDRMC")) { //GPS
-                continue;
-              } else {
-                //Log.w(TAG, "Unknown NMEA String: " + nmea);
-                logger.log(Level.WARNING,"Unknown NMEA String: " + nmea);
-                continue;
-              }
-            } else if (type.equalsIgnoreCase("battery")) {
-              try {
-                // Parse out voltage and motor velocity values
-                String[] data = value.getString("data").trim().split(" ");
-                double voltage = Double.parseDouble(data[0]);
-                synchronized (_failsafe_check_lock)
-                  {
-                    battery_voltage = voltage;
-                  }
-                double motor0Velocity = Double.parseDouble(data[1]);
-                double motor1Velocity = Double.parseDouble(data[2]);
-
-                // Fill in readings from parsed sensor data.
-                reading.channel = sensor;
-                reading.type = SensorType.BATTERY;
-                reading.data = new double[]{voltage, motor0Velocity, motor1Velocity};
-              } catch (NumberFormatException e) {
-                //Log.w(TAG, "Received malformed Battery Sensor Data: " + value);
-                logger.log(Level.WARNING,"Received malformed Battery Sensor Data: " + value);
-              }
-            } else if (type.equalsIgnoreCase("winch")) {
-              // Fill in readings from parsed sensor data.
-              reading.channel = sensor;
-              reading.type = SensorType.UNKNOWN;
-              reading.data = new double[]{value.getDouble("depth")};
-
-              // TODO: Remove this hack to store winch depth
-              winch_depth_ = reading.data[0];
-
-            } else if (type.equalsIgnoreCase("bluebox")) {
-              // need to log sensor types that don't appear in the core library enum
-              boolean skip = false; // TODO: add new sensor types to Platypus core lib
-              String nmea = value.getString("data");
-              String[] chunks = nmea.split(",");
-              String key = chunks[0];
-              if (key.equals("$GPGGA"))
-                {
-                  // TODO: $GPGGA (gps)
-                  skip = true;
-                }
-              else if (key.equals("$PGO00"))
-                {
-                  String sensor_type = chunks[4];
-                  double sensor_value = Double.parseDouble(chunks[5]);
-                  if (sensor_type.equals("conductivity"))
-                    {
-                      reading.channel = sensor;
-                      reading.type = SensorType.ES2;
-                      reading.data = new double[]{sensor_value, 0.0};
-                    }
-                  else if (sensor_type.equals("Oxygen"))
-                    {
-                      if (sensor_value < 0)
-                        {
-                          //Log.w(TAG, "BlueBox DO sensor returned negative value.");
-                          logger.log(Level.WARNING,"BlueBox DO sensor returned negative value.");
-                          continue;
-                        }
-                      reading.channel = sensor;
-                      reading.type = SensorType.ATLAS_DO;
-                      reading.data = new double[]{sensor_value};
-                    }
-                  else if (sensor_type.equals("Turbidity"))
-                    {
-                      skip = true; // TODO
-                    }
-                  else if (sensor_type.equals("Redox"))
-                    {
-                      skip = true; // TODO
-                    }
-                  else if (sensor_type.equals("temperature"))
-                    {
-                      reading.channel = sensor;
-                      reading.type = SensorType.ES2;
-                      reading.data = new double[]{0.0, Double.parseDouble(chunks[5])};
-                    }
-                  else
-                    {
-                      //Log.w(TAG, String.format("Unknown Bluebox $PGO00 sensor type: %s", sensor_type));
-                      logger.log(Level.WARNING,String.format("Unknown Bluebox $PGO00 sensor type: %s", sensor_type));
-                      skip = true;
-                    }
-                }
-              else
-                {
-                  //Log.w(TAG, String.format("Unknown BlueBox message of type: %s", key));
-                  logger.log(Level.WARNING,String.format("Unknown Bluebox message of type: %s", key));
-                  skip = true;
-                }
-              mLogger.info(value);
-              if (skip) continue;
-            }
-            else { // unrecognized sensor type
-              //Log.w(TAG, "Received data from sensor of unknown type: " + type);
-              logger.log(Level.WARNING,"Received data from sensor of unknown type: ");
-              continue;
-            }
-
-            mLogger.info(new JSONObject()
-                         .put("sensor", new JSONObject()
-                              .put("channel", reading.channel)
-                              .put("type", reading.type.toString())
-                              .put("data", new JSONArray(reading.data))));
-
-            // Send out the collected sensor reading
-            sendSensor(sensor, reading);
-          }
-        } else if (name.startsWith("g")) {
-          int gpsReceiver = name.charAt(1) - 48;
-          double latitude = -999.;
-          double longitude = -999.;
-          long time_ = 0;
-          if (value.has("lat")) {
-            latitude = value.getDouble("lat");
-          } else {
-            continue;
-          }
-          if (value.has("lon")) {
-            longitude = value.getDouble("lon");
-          } else {
-            continue;
-          }
-          if (value.has("time")) {
-            time_ = value.getLong("time");
-          } else {
-            continue;
-          }
-
-          // Convert from lat/long to UTM coordinates
-          UTM utmLoc = UTM.latLongToUtm(
-                                        LatLong.valueOf(latitude, longitude, NonSI.DEGREE_ANGLE),
-                                        ReferenceEllipsoid.WGS84);
-
-          // Convert to UTM data structure
-          Pose3D pose = new Pose3D(utmLoc.eastingValue(SI.METER),
-                                   utmLoc.northingValue(SI.METER),
-                                   0.0,
-                                   Quaternion.fromEulerAngles(0, 0, 0));
-          Utm origin = new Utm(utmLoc.longitudeZone(),
-                               utmLoc.latitudeZone() > 'O');
-          UtmPose utm = new UtmPose(pose, origin);
-
-          filter.gpsUpdate(utm, time_);
+          boolean battery = value.has("type")
+            && _sensors.lookup(value.getString("type")) == StandardSensor.BATTERY.ordinal();
+          _pipelines.submit(name, value, battery, arrival);
+        } else if (name.startsWith("g") || name.startsWith("i")) {
+          _pipelines.submit(name, value, true, arrival);
         } else {
           //Log.w(TAG, "Received unknown param '" + cmd + "'.");
           logger.log(Level.WARNING,"Received unknown param'"+cmd+"'.");
@@ -1198,6 +1716,111 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     }
   }
 
+  /**
+   * Handles one message from a sensor, GPS receiver or IMU, on the pipeline
+   * of its source.
+   *
+   * @param arrival when the message arrived, on the host timeline
+   */
+  private void onMessage(String name, JSONObject value, long arrival) throws JSONException {
+    if (name.startsWith("s")) {
+      int sensor = name.charAt(1) - 48;
+
+      // check sensor type expected in the preferences
+      int expectedId = _sensors.getExpectedType(sensor);
+
+      // Hacks to send sensor information
+      if (value.has("type")) {
+        String type = value.getString("type");
+        int typeId = _sensors.lookup(type);
+
+        // check if received type matches expected type
+        if (typeId != StandardSensor.BATTERY.ordinal()) {
+          if (typeId == expectedId) {
+            _presence.record(sensor, typeId, arrival);
+            /*
+              String message = "s" + sensor + ": expected = " + expected_type + " received = " + type;
+              Log.w(TAG, message);
+              NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(_context)
+              .setSmallIcon(R.drawable.camera_icon) //just some random icon placeholder
+              .setContentTitle("Sensor Success")
+              .setContentText(message)
+              .setSound(soundUri); //This sets the sound to play
+              notificationManager.notify(0, mBuilder.build());
+            */
+          } else {
+            String message = "s" + sensor + ": expected = " + _sensors.getName(expectedId) + " received = " + type;
+            //Log.w(TAG, message);
+            logger.log(Level.WARNING,message);
+            // NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(_context)
+            //   .setSmallIcon(R.drawable.camera_icon) //just some random icon placeholder
+            //   .setContentTitle("Sensor Warning")
+            //   .setContentText(message)
+            //   .setSound(soundUri); //This sets the sound to play
+            // notificationManager.notify(0, mBuilder.build());
+          }
+        }
+
+        // Dispatch to the parser registered for this type.
+        SensorParser parser = _sensors.getParser(typeId);
+        if (parser == null) { // unrecognized sensor type
+          //Log.w(TAG, "Received data from sensor of unknown type: " + type);
+          logger.log(Level.WARNING,"Received data from sensor of unknown type: " + type);
+          return;
+        }
+        long time = eboardTime(value, arrival);
+        SensorData reading = parser.parse(this, sensor, value, time);
+        if (reading == null)
+          return;
+
+        onSensorReading(sensor, reading, time);
+      }
+    } else if (name.startsWith("g")) {
+      int gpsReceiver = name.charAt(1) - 48;
+      double latitude = -999.;
+      double longitude = -999.;
+      long time_ = 0;
+      if (value.has("lat")) {
+        latitude = value.getDouble("lat");
+      } else {
+        return;
+      }
+      if (value.has("lon")) {
+        longitude = value.getDouble("lon");
+      } else {
+        return;
+      }
+      if (value.has("time")) {
+        time_ = value.getLong("time");
+      } else {
+        return;
+      }
+
+      _gps.record(gpsReceiver, latLongToUtmPose(latitude, longitude),
+                  _clock.stamp(ClockSync.GPS, time_, arrival), arrival);
+    } else if (name.startsWith("i")) {
+      onImuSample(value, eboardTime(value, arrival));
+    }
+  }
+
+  /**
+   * Returns when an eboard message was sent, on the host timeline: from its
+   * "time" field if it has one, or else its arrival time.
+   */
+  private long eboardTime(JSONObject value, long arrival) throws JSONException {
+    if (!value.has("time"))
+      return arrival;
+    return _clock.stamp(ClockSync.EBOARD, value.getLong("time"), arrival);
+  }
+
+  /**
+   * Returns the current time on the timeline that readings, fixes and poses
+   * are stamped on.
+   */
+  public long now() {
+    return _clock.now();
+  }
+
   // TODO: Revert capture image to take images
   // This is a hack to support the water sampler until PID is working again.
   public synchronized byte[] captureImage(int width, int height) {
@@ -1243,12 +1866,16 @@ public class VehicleServerImpl extends AbstractVehicleServer {
             + height + ") frames @ " + interval + "s");
 
     // Create a camera capture task
-    TimerTask newCaptureTask = new TimerTask() {
+    Runnable newCaptureTask = new Runnable() {
         int iFrame = 0;
 
         @Override
         public void run() {
           synchronized (_captureLock) {
+            // Ignore a run that raced with the task being replaced or stopped.
+            if (_captureTask == null || _captureTask.isCancelled())
+              return;
+
             // Take a new image and send it out
             //sendImage(captureImageInternal(width, height));
             iFrame++;
@@ -1256,7 +1883,7 @@ public class VehicleServerImpl extends AbstractVehicleServer {
             // If we exceed numFrames, we finished
             if (numFrames > 0 && iFrame >= numFrames) {
               sendCameraUpdate(CameraState.DONE);
-              this.cancel();
+              _captureTask.cancel(false);
               _captureTask = null;
             } else {
               sendCameraUpdate(CameraState.CAPTURING);
@@ -1268,12 +1895,12 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     synchronized (_captureLock) {
       // Cancel any previous capture tasks
       if (_captureTask != null)
-        _captureTask.cancel();
+        _captureTask.cancel(false);
 
       // Schedule this task for execution
-      _captureTask = newCaptureTask;
-      _captureTimer.scheduleAtFixedRate(_captureTask, 0,
-                                        (long) (interval * 1000.0));
+      _captureTask = mScheduler.scheduleAtFixedRate(newCaptureTask, 0,
+                                                    (long) (interval * 1000.0),
+                                                    TimeUnit.MILLISECONDS);
     }
 
     // Report the new imaging job in the log file
@@ -1296,7 +1923,7 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     // navigation flag and then removing the reference to the old flag.
     synchronized (_captureLock) {
       if (_captureTask != null) {
-        _captureTask.cancel();
+        _captureTask.cancel(false);
         _captureTask = null;
       }
     }
@@ -1324,6 +1951,36 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     _sensorTypes[channel] = type;
   }
 
+  /**
+   * Returns the recent readings from every sensor.
+   */
+  public SensorHistory getSensorHistory() {
+    return _history;
+  }
+
+  /**
+   * Returns the running statistics of the mapped sensors over the surveyed
+   * area.
+   */
+  public SensorGrid getSensorGrid() {
+    return _grid;
+  }
+
+  /**
+   * Returns the state of each eboard GPS receiver heard from.
+   */
+  public List<GpsFusion.Receiver> getGpsReceivers() {
+    return _gps.getReceivers();
+  }
+
+  /**
+   * Returns the on-disk archive of sensor readings, or null if archiving is
+   * disabled.
+   */
+  public SensorArchive getSensorArchive() {
+    return _archive;
+  }
+
   @Override
   public int getNumSensors() {
     return NUM_SENSORS;
@@ -1333,7 +1990,7 @@ public class VehicleServerImpl extends AbstractVehicleServer {
 
   @Override
   public UtmPose getPose() {
-    return _utmPose;
+    return _state.pose;
   }
 
   /**
@@ -1344,59 +2001,144 @@ public class VehicleServerImpl extends AbstractVehicleServer {
    * @param pose the corrected 6D pose of the vehicle: [x,y,z,roll,pitch,yaw]
    */
   @Override
-  public void setPose(UtmPose pose) {
+  public void setPose(final UtmPose pose) {
+    final UtmPose corrected = pose.clone();
+    _commands.submit(new CommandQueue.Command("setPose") {
+        @Override
+        protected void apply() {
+          // Change the offset of this vehicle by modifying filter
+          filter.reset(corrected, _clock.now());
 
-    // Change the offset of this vehicle by modifying filter
-    filter.reset(pose, System.currentTimeMillis());
+          // Publish this pose; the filter keeps a copy of its own
+          VehicleState state = publishState(corrected);
 
-    // Copy this pose over the existing value
-    _utmPose = pose.clone();
+          // Report the new pose in the log file and to listeners.
+          try {
+            mLogger.info(new JSONObject()
+                         .put("pose", new JSONObject()
+                              .put("p", new JSONArray(state.pose.pose.getPosition()))
+                              .put("q", new JSONArray(state.pose.pose.getRotation().getArray()))
+                              .put("zone", state.pose.origin.toString())));
+          } catch (JSONException e) {
+            //Log.w(TAG, "Unable to serialize pose.");
+            logger.log(Level.WARNING,"Unable to serialize pose.");
+          }
+          sendState(state.pose);
+        }
 
-    // Report the new pose in the log file and to listeners.
-    try {
-      mLogger.info(new JSONObject()
-                   .put("pose", new JSONObject()
-                        .put("p", new JSONArray(_utmPose.pose.getPosition()))
-                        .put("q", new JSONArray(_utmPose.pose.getRotation().getArray()))
-                        .put("zone", _utmPose.origin.toString())));
-    } catch (JSONException e) {
-      //Log.w(TAG, "Unable to serialize pose.");
-      logger.log(Level.WARNING,"Unable to serialize pose.");
-    }
-    sendState(_utmPose);
+        @Override
+        protected JSONObject encode() throws JSONException {
+          return new JSONObject().put("pose", MissionJournal.encodePose(corrected));
+        }
+      });
   }
 
   @Override
   public void startWaypoints(final UtmPose[] waypoints, final String controller)
   {
     last_heartbeat.set(System.currentTimeMillis());
+    final UtmPose[] path = waypoints.clone();
+    _commands.submit(new CommandQueue.Command("startWaypoints") {
+        @Override
+        protected void apply() {
+          applyStartWaypoints(path, controller);
+        }
+
+        @Override
+        protected JSONObject encode() throws JSONException {
+          AdaptiveSampler adaptive = _adaptive;
+          return new JSONObject()
+            .put("waypoints", MissionJournal.encodePoses(_waypoints))
+            .put("index", current_waypoint_index)
+            .put("controller", controller)
+            .put("survey", (adaptive != null) ? MissionJournal.encodePoses(adaptive.getSurvey()) : new JSONArray());
+        }
+      });
+  }
+
+  private void applyStartWaypoints(UtmPose[] waypoints, String controller)
+  {
     //Log.i(TAG, "Starting waypoints with " + controller + ": "
     //+ Arrays.toString(waypoints));
     logger.log(Level.INFO,"Starting waypoints with " + controller + ": " + Arrays.toString(waypoints));
 
-    synchronized (_waypointLock)
+    if (AdaptiveSampler.CONTROLLER.equals(controller) && waypoints.length > 0)
+      {
+        // The waypoints only bound the survey; the sampler chooses the path.
+        _adaptive = AdaptiveSampler.fromPrefs(mPrefs, _grid, waypoints);
+        waypoints = new UtmPose[0];
+        current_waypoint_index = 0;
+      }
+    else
       {
+        _adaptive = null;
         if (waypoints.length > 0)
           {
             current_waypoint_index = 0;
           }
-        _waypoints = waypoints.clone();
       }
+    _waypoints = waypoints;
+
+    startNavigation(controller);
+
+    // Report the new waypoint in the log file.
+    try {
+      mLogger.info(new JSONObject()
+                   .put("nav", new JSONObject()
+                        .put("controller", controller)
+                        .put("waypoints", new JSONArray(waypoints))));
+    } catch (JSONException e) {
+      //Log.w(TAG, "Unable to serialize waypoints.");
+      logger.log(Level.WARNING,"Unable to serialize waypoints.");
+    }
+  }
+
+  /**
+   * Replaces the navigation task with one that follows the current
+   * waypoints, run from the update loop.
+   */
+  private void startNavigation(String controller)
+  {
+    // Cancel any previous navigation tasks
+    if (_navigationTask != null) _navigationTask.cancel();
+    _watchdog.unregister(_navigationLoop);
+
+    // Run this task from the update loop
+    _navigationLoop = _watchdog.register("navigation", 3 * UPDATE_INTERVAL_MS, new Runnable() {
+        @Override
+        public void run() {
+          _commands.submit(new CommandQueue.Command("restartNavigation") {
+              @Override
+              protected void apply() {
+                if (_navigationTask == null) return;
+                _navigationTask.cancel();
+                _navigationTask = new NavigationTask(_navigationLoop, _navigationTask.controller);
+              }
+            });
+        }
+      });
+    _navigationTask = new NavigationTask(_navigationLoop, controller);
+  }
 
-    // Create a waypoint navigation task
-    TimerTask newNavigationTask = new TimerTask() {
+  /**
+   * Waypoint navigation task, which runs the line following controller from
+   * the update loop until the last waypoint has been reached.
+   */
+  class NavigationTask extends Watchdog.GuardedTask {
+        final String controller;
         final double dt = (double) UPDATE_INTERVAL_MS / 1000.0;
 
         LineFollowController lf = new LineFollowController();
         VehicleController vc = (VehicleController) lf;
 
+        NavigationTask(Watchdog.Loop loop, String controller) {
+          super(loop);
+          this.controller = controller;
+        }
+
         @Override
-        public void run() {
-          int wp_index;
-          synchronized (_waypointLock)
-            {
-              wp_index = current_waypoint_index;
-            }
+        protected void tick() {
+          int wp_index = current_waypoint_index;
           if (!_isAutonomous.get())
             {
               // If we are not autonomous, do nothing
@@ -1404,22 +2146,36 @@ public class VehicleServerImpl extends AbstractVehicleServer {
               logger.log(Level.INFO,"Paused");
               sendWaypointUpdate(WaypointState.PAUSED);
             }
+          else if (wp_index == _waypoints.length && _adaptive != null && planNextSample(_adaptive))
+            {
+              // The next sample is queued and followed from the next tick.
+              sendWaypointUpdate(WaypointState.GOING);
+            }
           else if (wp_index == _waypoints.length)
             {
               // finished
-              synchronized (_waypointLock)
-                {
-                  current_waypoint_index = -1;
-                }
+              _commands.submit(new CommandQueue.Command("finishWaypoints") {
+                  @Override
+                  protected void apply() {
+                    current_waypoint_index = -1;
+                    _adaptive = null;
+                  }
+
+                  @Override
+                  protected JSONObject encode() throws JSONException {
+                    return new JSONObject()
+                      .put("index", -1)
+                      .put("controller", JSONObject.NULL)
+                      .put("survey", new JSONArray());
+                  }
+                });
               //Log.i(TAG, "Done");
               logger.log(Level.INFO,"Done");
               sendWaypointUpdate(WaypointState.DONE);
-              synchronized (_navigationLock)
-                {
-                  setVelocity(new Twist(DEFAULT_TWIST));
-                  this.cancel();
-                  _navigationTask = null;
-                }
+              setVelocity(new Twist(DEFAULT_TWIST));
+              this.cancel();
+              _navigationTask = null;
+              _watchdog.unregister(loop);
             }
           else
             {
@@ -1430,70 +2186,101 @@ public class VehicleServerImpl extends AbstractVehicleServer {
               sendWaypointUpdate(WaypointState.GOING);
             }
         }
-      };
+      }
 
-    synchronized (_navigationLock) {
-      // Cancel any previous navigation tasks
-      if (_navigationTask != null) _navigationTask.cancel();
+  /**
+   * Asks the adaptive sampler for the next place to sample and queues it as
+   * the next waypoint.
+   *
+   * @return false if the survey is complete
+   */
+  private boolean planNextSample(AdaptiveSampler sampler)
+  {
+    long start = System.nanoTime();
+    UtmPose target = sampler.next(_state.pose);
+    long elapsed = System.nanoTime() - start;
+    if (target == null)
+      return false;
+
+    final UtmPose[] extended = Arrays.copyOf(_waypoints, _waypoints.length + 1);
+    extended[extended.length - 1] = target;
+    _commands.submit(new CommandQueue.Command("extendWaypoints") {
+        @Override
+        protected void apply() {
+          _waypoints = extended;
+        }
 
-      // Schedule this task for execution
-      _navigationTask = newNavigationTask;
-      _navigationTimer.scheduleAtFixedRate(_navigationTask, 0, UPDATE_INTERVAL_MS);
-    }
+        @Override
+        protected JSONObject encode() throws JSONException {
+          return new JSONObject()
+            .put("waypoints", MissionJournal.encodePoses(extended))
+            .put("index", current_waypoint_index);
+        }
+      });
 
-    // Report the new waypoint in the log file.
     try {
       mLogger.info(new JSONObject()
-                   .put("nav", new JSONObject()
-                        .put("controller", controller)
-                        .put("waypoints", new JSONArray(waypoints))));
+                   .put("adaptive", new JSONObject()
+                        .put("type", sampler.getType().toString())
+                        .put("p", new JSONArray(new double[] { target.pose.getX(), target.pose.getY() }))
+                        .put("gain", sampler.getBestGain())
+                        .put("evaluated", sampler.getEvaluated())
+                        .put("ms", elapsed / 1e6)));
     } catch (JSONException e) {
-      //Log.w(TAG, "Unable to serialize waypoints.");
-      logger.log(Level.WARNING,"Unable to serialize waypoints.");
+      logger.log(Level.WARNING,"Unable to serialize adaptive sample");
     }
+    return true;
   }
 
   @Override
   public void stopWaypoints() {
     last_heartbeat.set(System.currentTimeMillis());
-    // Stop the thread that is doing the "navigation" by terminating its
-    // navigation process, clear all the waypoints, and stop the vehicle.
-    synchronized (_navigationLock) {
-      if (_navigationTask != null) {
-        _navigationTask.cancel();
-        _navigationTask = null;
-        setVelocity(new Twist(DEFAULT_TWIST));
-        //Log.i(TAG, "StopWaypoint");
-        logger.log(Level.INFO,"StopWaypoint");
-      }
+    _commands.submit(new CommandQueue.Command("stopWaypoints") {
+        @Override
+        protected void apply() {
+          applyStopWaypoints();
+        }
+
+        @Override
+        protected JSONObject encode() throws JSONException {
+          return new JSONObject()
+            .put("waypoints", new JSONArray())
+            .put("index", -1)
+            .put("controller", JSONObject.NULL)
+            .put("survey", new JSONArray());
+        }
+      });
+  }
+
+  private void applyStopWaypoints() {
+    // Stop the "navigation" by terminating its navigation process, clear all
+    // the waypoints, and stop the vehicle.
+    if (_navigationTask != null) {
+      _navigationTask.cancel();
+      _navigationTask = null;
+      _watchdog.unregister(_navigationLoop);
+      setVelocity(new Twist(DEFAULT_TWIST));
+      //Log.i(TAG, "StopWaypoint");
+      logger.log(Level.INFO,"StopWaypoint");
     }
-    synchronized (_waypointLock)
-      {
-        _waypoints = new UtmPose[0];
-        current_waypoint_index = -1;
-      }
+    _waypoints = new UtmPose[0];
+    _adaptive = null;
+    current_waypoint_index = -1;
     sendWaypointUpdate(WaypointState.CANCELLED);
   }
 
   @Override
   public UtmPose[] getWaypoints() {
-    UtmPose[] wpts;
-    synchronized (_waypointLock) {
-      wpts = new UtmPose[_waypoints.length];
-      System.arraycopy(_waypoints, 0, wpts, 0, wpts.length);
-    }
-    return wpts;
+    return _waypoints.clone();
   }
 
   @Override
   public WaypointState getWaypointStatus() {
-    synchronized (_waypointLock) {
-      if (_waypoints.length > 0) {
-        return _isAutonomous.get() ? WaypointState.PAUSED
-          : WaypointState.GOING;
-      } else {
-        return WaypointState.DONE;
-      }
+    if (_waypoints.length > 0) {
+      return _isAutonomous.get() ? WaypointState.PAUSED
+        : WaypointState.GOING;
+    } else {
+      return WaypointState.DONE;
     }
   }
 
@@ -1506,10 +2293,11 @@ public class VehicleServerImpl extends AbstractVehicleServer {
   }
 
   /**
-   * Returns the current estimated 6D velocity of the vehicle.
+   * Returns the commanded 6D velocity of the vehicle as of the last update
+   * tick.  The returned object is shared and must not be modified.
    */
   public Twist getVelocity() {
-    return _velocities.clone();
+    return _state.velocity;
   }
 
   /**
@@ -1517,18 +2305,24 @@ public class VehicleServerImpl extends AbstractVehicleServer {
    */
   public void setVelocity(Twist vel) {
     last_heartbeat.set(System.currentTimeMillis());
-    _velocities = vel.clone();
+    final Twist velocity = vel.clone();
+    _commands.submit(new CommandQueue.Command("setVelocity") {
+        @Override
+        protected void apply() {
+          _velocities = velocity;
+        }
+      });
 
     // Schedule a task to shutdown the velocity if no command is received within the timeout.
     // Normally, this task will be canceled by a subsequent call to the setVelocity function,
     // but if no call is made within the timeout, the task will execute, stopping the vehicle.
-    synchronized (mVelocityExecutor) {
+    synchronized (_commands) {
       // Cancel the previous shutdown task.
       if (mVelocityFuture != null)
         mVelocityFuture.cancel(false);
 
       // Schedule a new shutdown task.
-      mVelocityFuture = mVelocityExecutor.schedule(new Runnable() {
+      mVelocityFuture = mScheduler.schedule(new Runnable() {
           @Override
           public void run() {
             setVelocity(new Twist());
@@ -1543,37 +2337,98 @@ public class VehicleServerImpl extends AbstractVehicleServer {
   }
 
   @Override
-  public void setAutonomous(boolean isAutonomous) {
+  public void setAutonomous(final boolean isAutonomous) {
     last_heartbeat.set(System.currentTimeMillis());
-    _isAutonomous.set(isAutonomous);
-    if (isAutonomous && first_autonomy.get())
-      {
-        first_autonomy.set(false);
-        home_UTM = UtmPose_to_UTM(_utmPose);
-      }
+    _commands.submit(new CommandQueue.Command("setAutonomous") {
+        @Override
+        protected void apply() {
+          _isAutonomous.set(isAutonomous);
+          if (isAutonomous && first_autonomy.get())
+            {
+              first_autonomy.set(false);
+              home_UTM = UtmPose_to_UTM(_state.pose);
+            }
+
+          // Set velocities to zero to allow for safer transitions
+          _velocities = new Twist(DEFAULT_TWIST);
+        }
+
+        @Override
+        protected JSONObject encode() throws JSONException {
+          return new JSONObject()
+            .put("autonomous", isAutonomous)
+            .put("firstAutonomy", first_autonomy.get())
+            .put("home", MissionJournal.encodePose(UTM_to_UtmPose(home_UTM)));
+        }
+      });
+  }
 
-    // Set velocities to zero to allow for safer transitions
-    _velocities = new Twist(DEFAULT_TWIST);
+  // Records a stopped mission directly, for when the stop commands could
+  // not be applied.
+  private void journalStopped() {
+    MissionJournal journal = mContext.journal;
+    if (journal == null)
+      return;
+    try {
+      journal.append(new JSONObject()
+                     .put("waypoints", new JSONArray())
+                     .put("index", -1)
+                     .put("controller", JSONObject.NULL)
+                     .put("survey", new JSONArray())
+                     .put("autonomous", false)
+                     .put("c", "shutdown")
+                     .put("t", _clock.now()));
+    } catch (JSONException e) {
+      logger.log(Level.WARNING,"Unable to serialize stopped mission");
+    }
   }
 
   /**
    * Performs cleanup functions in preparation for stopping the server.
    */
   public void shutdown() {
+    _watchdog.shutdown();
+    stopLoops();
+
+    // Stop the sensor pipelines first, so that nothing more is submitted,
+    // then wait out an update tick in flight before taking over the queue.
+    // The vehicle is stopped through journaled commands, so that the next
+    // start does not resume the mission.
+    _pipelines.shutdown();
     stopWaypoints();
+    setAutonomous(false);
+    boolean idle = false;
+    try {
+      idle = _tickLock.tryLock(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (idle) {
+      try {
+        _commands.drain(Integer.MAX_VALUE);
+        _commands.release();
+      } finally {
+        _tickLock.unlock();
+      }
+    } else {
+      logger.log(Level.SEVERE, "Update tick did not finish, leaving pending commands unapplied");
+      journalStopped();
+      _isAutonomous.set(false);
+    }
     stopCamera();
 
-    _isAutonomous.set(false);
     _isConnected.set(false);
     _isRunning.set(false);
 
-    _updateTimer.cancel();
-    _updateTimer.purge();
-
-    _navigationTimer.cancel();
-    _navigationTimer.purge();
+    _sensorBatcher.flush();
+    if (_archive != null)
+      _archive.close();
+    synchronized (_commands) {
+      if (mVelocityFuture != null)
+        mVelocityFuture.cancel(false);
+    }
 
-    _captureTimer.cancel();
-    _captureTimer.purge();
+    // Stops the scheduler only if it belongs to this vehicle alone.
+    mContext.shutdown();
   }
 }
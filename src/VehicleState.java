@@ -0,0 +1,78 @@
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.UtmPose;
+
+/**
+ * An immutable snapshot of the vehicle state, rebuilt once per update tick
+ * and published through a single volatile reference.
+ * <p/>
+ * Every field of a snapshot was captured at the same time, so readers on any
+ * thread get a consistent view without locking.  The pose and velocity
+ * objects are shared between all readers of a snapshot and must be treated as
+ * read-only; clone them before modifying.
+ */
+public final class VehicleState {
+
+  /**
+   * Time at which the snapshot was taken, in milliseconds.
+   */
+  public final long time;
+
+  /**
+   * Estimated 6D pose of the vehicle.  Must not be modified.
+   */
+  public final UtmPose pose;
+
+  /**
+   * Commanded 6D velocity of the vehicle.  Must not be modified.
+   */
+  public final Twist velocity;
+
+  /**
+   * Last reported battery voltage.
+   */
+  public final double batteryVoltage;
+
+  /**
+   * Index of the waypoint being navigated to, or -1 if there is none.
+   */
+  public final int waypointIndex;
+
+  public final boolean isAutonomous;
+  public final boolean isExecutingFailsafe;
+
+  private final double[] _rudderGains;
+  private final double[] _thrustGains;
+
+  /**
+   * Creates a snapshot.  The gain arrays are copied, so the caller may go on
+   * modifying them.
+   */
+  VehicleState(long time, UtmPose pose, Twist velocity,
+               double[] rudderGains, double[] thrustGains,
+               double batteryVoltage, int waypointIndex,
+               boolean isAutonomous, boolean isExecutingFailsafe) {
+    this.time = time;
+    this.pose = pose;
+    this.velocity = velocity;
+    this.batteryVoltage = batteryVoltage;
+    this.waypointIndex = waypointIndex;
+    this.isAutonomous = isAutonomous;
+    this.isExecutingFailsafe = isExecutingFailsafe;
+    _rudderGains = rudderGains.clone();
+    _thrustGains = thrustGains.clone();
+  }
+
+  /**
+   * Returns a rudder PID gain: 0 for P, 1 for I and 2 for D.
+   */
+  public double getRudderGain(int i) {
+    return _rudderGains[i];
+  }
+
+  /**
+   * Returns a thrust PID gain: 0 for P, 1 for I and 2 for D.
+   */
+  public double getThrustGain(int i) {
+    return _thrustGains[i];
+  }
+}
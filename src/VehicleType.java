@@ -0,0 +1,172 @@
+import com.platypus.crw.data.Twist;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * The hull types supported by the server, each with the thrust mixer that
+ * converts commanded velocities into actuator signals for that hull.
+ */
+public enum VehicleType {
+
+	/**
+	 * Two fixed propellers, steered by differential thrust.
+	 */
+	DIFFERENTIAL(new FixedMixer(new String[]{"m0", "m1"}, new String[]{"v", "v"}) {
+		@Override
+		public void mix(Twist velocity, double[] thrustGains, double[] outputs) {
+			double constrainedV0 = VehicleServerImpl.clip(velocity.dx() - velocity.drz(), -1.0, 1.0);
+			double constrainedV1 = VehicleServerImpl.clip(velocity.dx() + velocity.drz(), -1.0, 1.0);
+
+			// Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
+			outputs[0] = VehicleServerImpl.map(constrainedV0,
+					-1.0, 1.0, // Original range.
+					-VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
+			outputs[1] = VehicleServerImpl.map(constrainedV1,
+					-1.0, 1.0, // Original range.
+					-VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
+		}
+	}),
+
+	/**
+	 * A single propeller steered by a rudder servo.
+	 */
+	VECTORED(new FixedMixer(new String[]{"m0", "s0"}, new String[]{"v", "p"}) {
+		@Override
+		public void mix(Twist velocity, double[] thrustGains, double[] outputs) {
+			double constrainedV = VehicleServerImpl.clip(velocity.dx(), -1.0, 1.0);
+
+			// Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
+			outputs[0] = VehicleServerImpl.map(constrainedV,
+					0.0, 1.0, // Original range.
+					0.0, VehicleServerImpl.SAFE_VECTORED_THRUST); // New range.
+
+			// Rudder is constrained to +/-1.0, and reversed to fix the rudder direction.
+			outputs[1] = -1.0 * VehicleServerImpl.clip(velocity.drz(), -1.0, 1.0);
+		}
+	}),
+
+	/**
+	 * Two fixed propellers inside prop guards, which produce much less thrust
+	 * in reverse, so the forward motor is reduced when turning in place.
+	 */
+	PROPGUARD(new FixedMixer(new String[]{"m0", "m1"}, new String[]{"v", "v"}) {
+		@Override
+		public void mix(Twist velocity, double[] thrustGains, double[] outputs) {
+			// The integral gain for thrust is used as the scale between positive and negative thrust
+			double reverse_ratio = (thrustGains[1] == 0) ? 5. : thrustGains[1];
+			double T = velocity.dx();
+			double H = velocity.drz();
+
+			outputs[0] = T - H;
+			outputs[1] = T + H;
+			scaleDown(outputs, 2);
+
+			// need to account for prop guard, reduce positive motor signals if turning in place
+			if (Math.signum(outputs[0]) > 0 && Math.signum(outputs[1]) < 0)
+				outputs[0] = outputs[0] / reverse_ratio;
+			if (Math.signum(outputs[0]) < 0 && Math.signum(outputs[1]) > 0)
+				outputs[1] = outputs[1] / reverse_ratio;
+		}
+	});
+
+	/**
+	 * The thrust mixer associated with this hull type.
+	 */
+	public final ThrustMixer mixer;
+
+	VehicleType(ThrustMixer mixer) {
+		this.mixer = mixer;
+	}
+
+	/**
+	 * Looks up a hull type by name, ignoring case.
+	 *
+	 * @param name the name of the hull type, e.g. "DIFFERENTIAL"
+	 * @return the matching hull type, or null if there is none
+	 */
+	public static VehicleType fromString(String name) {
+		for (VehicleType type : values()) {
+			if (type.name().equalsIgnoreCase(name))
+				return type;
+		}
+		return null;
+	}
+
+	/**
+	 * Scales a set of signals down uniformly so that none of them exceeds a
+	 * magnitude of 1.0, preserving their ratios.  Signals already within range
+	 * are left untouched.
+	 *
+	 * @param signals the signals to scale, modified in place
+	 * @param length  the number of signals in the array to consider
+	 */
+	public static void scaleDown(double[] signals, int length) {
+		double max_signal = 0.0;
+		for (int i = 0; i < length; i++) {
+			if (Math.abs(signals[i]) > max_signal)
+				max_signal = Math.abs(signals[i]);
+		}
+		if (max_signal > 1.0) {
+			for (int i = 0; i < length; i++)
+				signals[i] = signals[i] / max_signal;
+		}
+	}
+
+	/**
+	 * Base class for mixers with a fixed list of output channels.
+	 */
+	static abstract class FixedMixer implements ThrustMixer {
+		private final String[] _channels;
+		private final String[] _fields;
+
+		FixedMixer(String[] channels, String[] fields) {
+			_channels = channels;
+			_fields = fields;
+		}
+
+		@Override
+		public int getNumOutputs() {
+			return _channels.length;
+		}
+
+		@Override
+		public String getChannel(int output) {
+			return _channels[output];
+		}
+
+		@Override
+		public String getField(int output) {
+			return _fields[output];
+		}
+	}
+
+	/**
+	 * Benchmarks each mixer and reports the time and heap allocation per mix.
+	 */
+	public static void main(String[] args) {
+		final int iterations = 10000000;
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		Twist velocity = new Twist(0.8, 0, 0, 0, 0, -0.6);
+		double[] gains = {0.5, 0.0, 0.0};
+		double[] outputs = new double[2];
+
+		for (VehicleType type : values()) {
+			// Warm up so that the JIT has compiled the mixer before measuring.
+			for (int i = 0; i < iterations; i++)
+				type.mixer.mix(velocity, gains, outputs);
+
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				type.mixer.mix(velocity, gains, outputs);
+			long elapsed = System.nanoTime() - start;
+			bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+			System.out.println(String.format("%-12s %6.1f ns/mix  %.4f bytes/mix",
+					type, (double) elapsed / iterations, (double) bytes / iterations));
+		}
+	}
+}
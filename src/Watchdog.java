@@ -0,0 +1,298 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Monitors the periodic loops and I/O threads of a vehicle and restarts any
+ * of them that stop making progress.
+ * <p/>
+ * Each monitored loop registers a {@link Loop} and calls {@link Loop#kick()}
+ * every time it completes an iteration.  A loop is considered dead when it
+ * reports a failure, when its attached thread is no longer alive, or when it
+ * has not been kicked within its stall timeout.  Dead loops are reported to
+ * the {@link Listener} and then restarted, with an exponential backoff so that
+ * a loop that fails on every iteration cannot spin the watchdog.
+ */
+public class Watchdog {
+
+  /**
+   * Interval at which loop timestamps are checked.  This bounds the detection
+   * latency of a failed loop to a single period.
+   */
+  public static final long CHECK_INTERVAL_MS = 50;
+
+  /**
+   * Bounds for the delay between consecutive restarts of the same loop.
+   */
+  public static final long MIN_RESTART_BACKOFF_MS = 100;
+  public static final long MAX_RESTART_BACKOFF_MS = 5000;
+
+  private static final Logger logger = Logger.getLogger(Watchdog.class.getName());
+
+  /**
+   * Receives notifications of loops that have stalled or died.
+   */
+  public interface Listener {
+    /**
+     * Called from the watchdog thread before a dead loop is restarted.
+     *
+     * @param loop  the loop that stopped making progress
+     * @param cause the exception that killed the loop, or null if it stalled
+     */
+    void onStall(Loop loop, Throwable cause);
+  }
+
+  /**
+   * Progress record for a single monitored loop.
+   */
+  public static class Loop {
+    final String name;
+    final long stallNs;
+    final Runnable restart;
+
+    volatile long lastProgressNs = System.nanoTime();
+    volatile Throwable failure = null;
+    volatile Thread thread = null;
+
+    long backoffMs = MIN_RESTART_BACKOFF_MS;
+    long nextRestartNs = System.nanoTime();
+    int restarts = 0;
+
+    Loop(String name, long stallMs, Runnable restart) {
+      this.name = name;
+      this.stallNs = TimeUnit.MILLISECONDS.toNanos(stallMs);
+      this.restart = restart;
+    }
+
+    /**
+     * Records that the loop has completed an iteration.
+     */
+    public void kick() {
+      lastProgressNs = System.nanoTime();
+    }
+
+    /**
+     * Records that the loop was killed by an exception.
+     */
+    public void fail(Throwable t) {
+      failure = t;
+    }
+
+    /**
+     * Attaches a thread whose liveness is checked along with the timestamp.
+     */
+    public void attach(Thread t) {
+      thread = t;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getRestarts() {
+      return restarts;
+    }
+
+    /**
+     * Returns the time since the loop last made progress.
+     */
+    public long getMillisSinceProgress() {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastProgressNs);
+    }
+  }
+
+  /**
+   * A periodic task that kicks its loop after every successful iteration and
+   * marks the loop as failed (and stops running) if an iteration throws.
+   * <p/>
+   * Without this, an exception escaping a task on a
+   * {@link ScheduledExecutorService} silently cancels every later run of it.
+   * Cancelling the task also cancels its scheduled future.
+   * <p/>
+   * A task may be given a lock shared with the tasks it replaces on restart.
+   * Its ticks then never overlap theirs: a tick that finds the lock held, by
+   * a hung tick of an earlier task, is skipped without kicking the loop.
+   */
+  public static abstract class GuardedTask implements Runnable {
+    protected final Loop loop;
+    private final Lock _exclusive;
+    private volatile boolean _cancelled = false;
+    private volatile ScheduledFuture<?> _future = null;
+
+    protected GuardedTask(Loop loop) {
+      this(loop, null);
+    }
+
+    /**
+     * @param exclusive lock held for the duration of each tick, or null
+     */
+    protected GuardedTask(Loop loop, Lock exclusive) {
+      this.loop = loop;
+      _exclusive = exclusive;
+    }
+
+    /**
+     * Runs the task periodically on a shared executor.
+     */
+    public void scheduleAtFixedRate(ScheduledExecutorService executor, long delayMs, long periodMs) {
+      _future = executor.scheduleAtFixedRate(this, delayMs, periodMs, TimeUnit.MILLISECONDS);
+      if (_cancelled)
+        _future.cancel(false);
+    }
+
+    public void cancel() {
+      _cancelled = true;
+      ScheduledFuture<?> future = _future;
+      if (future != null)
+        future.cancel(false);
+    }
+
+    /**
+     * Returns true once the task has been cancelled or has failed, which
+     * allows the task to be run directly from another loop.
+     */
+    public boolean isCancelled() {
+      return _cancelled;
+    }
+
+    /**
+     * Executes a single iteration of the loop.
+     */
+    protected abstract void tick();
+
+    @Override
+    public final void run() {
+      if (_cancelled)
+        return;
+      if (_exclusive != null && !_exclusive.tryLock())
+        return;
+      try {
+        tick();
+        loop.kick();
+      } catch (Throwable t) {
+        cancel();
+        loop.fail(t);
+      } finally {
+        if (_exclusive != null)
+          _exclusive.unlock();
+      }
+    }
+  }
+
+  private final List<Loop> _loops = new CopyOnWriteArrayList<Loop>();
+  private final Listener _listener;
+  private final ScheduledExecutorService _executor;
+  private final boolean _ownsExecutor;
+  private final ScheduledFuture<?> _checkFuture;
+
+  /**
+   * Creates a watchdog with its own checking thread.
+   */
+  public Watchdog(Listener listener) {
+    this(listener, new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "watchdog");
+          t.setDaemon(true);
+          return t;
+        }
+      }), true);
+  }
+
+  /**
+   * Creates a watchdog that checks its loops on a shared executor, so that
+   * many vehicles in one process do not each need a watchdog thread.  The
+   * executor must not be the one that runs the loops, or loops hung on all
+   * of its threads would also stop the checks.
+   */
+  public Watchdog(Listener listener, ScheduledExecutorService executor) {
+    this(listener, executor, false);
+  }
+
+  private Watchdog(Listener listener, ScheduledExecutorService executor, boolean ownsExecutor) {
+    _listener = listener;
+    _executor = executor;
+    _ownsExecutor = ownsExecutor;
+    _checkFuture = _executor.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          check();
+        }
+      }, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts monitoring a loop.
+   *
+   * @param name    human-readable name used in alerts
+   * @param stallMs maximum time between kicks, or 0 to only check for
+   *                failures and thread liveness
+   * @param restart action that replaces the dead loop with a fresh one
+   * @return the progress record that the loop must kick
+   */
+  public Loop register(String name, long stallMs, Runnable restart) {
+    Loop loop = new Loop(name, stallMs, restart);
+    _loops.add(loop);
+    return loop;
+  }
+
+  /**
+   * Stops monitoring a loop, e.g. when it is intentionally cancelled.
+   */
+  public void unregister(Loop loop) {
+    if (loop != null)
+      _loops.remove(loop);
+  }
+
+  public void shutdown() {
+    _checkFuture.cancel(false);
+    if (_ownsExecutor)
+      _executor.shutdownNow();
+    _loops.clear();
+  }
+
+  void check() {
+    long now = System.nanoTime();
+    for (Loop loop : _loops) {
+      Throwable cause = loop.failure;
+      Thread thread = loop.thread;
+      boolean dead = cause != null
+        || (thread != null && !thread.isAlive())
+        || (loop.stallNs > 0 && now - loop.lastProgressNs > loop.stallNs);
+      if (!dead) {
+        // Let the backoff decay once the loop has run cleanly for a while.
+        if (loop.backoffMs > MIN_RESTART_BACKOFF_MS
+            && now - loop.nextRestartNs > TimeUnit.MILLISECONDS.toNanos(MAX_RESTART_BACKOFF_MS))
+          loop.backoffMs = MIN_RESTART_BACKOFF_MS;
+        continue;
+      }
+      if (now - loop.nextRestartNs < 0)
+        continue;
+
+      try {
+        _listener.onStall(loop, cause);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Watchdog listener failed for " + loop.name, e);
+      }
+
+      loop.failure = null;
+      loop.restarts++;
+      loop.nextRestartNs = now + TimeUnit.MILLISECONDS.toNanos(loop.backoffMs);
+      loop.backoffMs = Math.min(loop.backoffMs * 2, MAX_RESTART_BACKOFF_MS);
+      loop.kick();
+
+      try {
+        loop.restart.run();
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to restart " + loop.name, e);
+      }
+    }
+  }
+}
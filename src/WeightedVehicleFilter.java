@@ -0,0 +1,19 @@
+import com.platypus.crw.VehicleFilter;
+import com.platypus.crw.data.UtmPose;
+
+/**
+ * A vehicle filter that fuses positions from several GPS receivers, each
+ * trusted to a different degree.
+ */
+public interface WeightedVehicleFilter extends VehicleFilter {
+
+	/**
+	 * Updates the position from one GPS source.
+	 *
+	 * @param utm the measured position
+	 * @param weight confidence in the measurement, from 0.0 (ignored) to 1.0
+	 *               (taken as exact)
+	 * @param time the time of the measurement in milliseconds
+	 */
+	void gpsUpdate(UtmPose utm, double weight, long time);
+}